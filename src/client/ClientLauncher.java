@@ -5,15 +5,16 @@ import client.behaviors.Behavior;
 import client.behaviors.RMIBehavior;
 import client.behaviors.SocketBehavior;
 import server.state.CanvasInterface;
+import server.state.RoomsInterface;
 
 import javax.swing.*;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.util.Scanner;
 
 import static server.ServerLauncher.RMI_PORT;
 import static server.ServerLauncher.SOCKET_PORT;
@@ -24,22 +25,46 @@ public class ClientLauncher {
         // args[0]:
         //		1 = RMI
         //		2 = Socket
+        // args[1] (optional):
+        //      binary = use the binary socket protocol (Socket)
+        //      poll = poll for changes instead of having them pushed (RMI)
+        // args[2] (optional, RMI poll only):
+        //      longest wait between polls in ms
+        // --port=<#> (optional, anywhere after args[0]):
+        //      port of the server's RMI registry or Socket service, e.g. of a follower
+        // --room=<name> (optional, anywhere after args[0]):
+        //      draw in that room of the server instead of the lobby
         Behavior behavior;
 
         int code = Integer.parseInt(args[0]);
+        int port = code == 1 ? RMI_PORT : SOCKET_PORT;
+        String room = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--port=")) {
+                port = Integer.parseInt(args[i].substring(7));
+            } else if (args[i].startsWith("--room=")) {
+                room = args[i].substring(7);
+            }
+        }
 
         // RMI Client
         if (code == 1) {
             // Get canvas from RMI
             CanvasInterface c = null;
             try {
-                c = (CanvasInterface) java.rmi.Naming.lookup("rmi://" + "0.0.0.0" + ":" + RMI_PORT + "/Canvas");
+                if (room != null) {
+                    c = ((RoomsInterface) java.rmi.Naming.lookup("rmi://" + "0.0.0.0" + ":" + port + "/Rooms")).join(room);
+                } else {
+                    c = (CanvasInterface) java.rmi.Naming.lookup("rmi://" + "0.0.0.0" + ":" + port + "/Canvas");
+                }
             } catch (NotBoundException | MalformedURLException | RemoteException e) {
                 e.printStackTrace();
             }
             // Assign client behavior
             assert c != null;
-            behavior = new RMIBehavior(c);
+            boolean poll = args.length > 1 && args[1].equals("poll");
+            long maxBackoff = args.length > 2 ? Long.parseLong(args[2]) : RMIBehavior.DEFAULT_MAX_BACKOFF_MILLIS;
+            behavior = new RMIBehavior(c, !poll, RMIBehavior.DEFAULT_MIN_BACKOFF_MILLIS, maxBackoff);
             System.out.println("Connected to RMI service.");
         }
 
@@ -48,24 +73,23 @@ public class ClientLauncher {
             // Open socket connection
             Socket socket = null;
             try {
-                socket = new Socket("0.0.0.0", SOCKET_PORT);
+                socket = new Socket("0.0.0.0", port);
             } catch (IOException e) {
                 e.printStackTrace();
             }
             assert socket != null;
 
-            Scanner in = null;
-            PrintWriter out = null;
+            boolean binary = args.length > 1 && args[1].equals("binary");
             try {
-                in = new Scanner(socket.getInputStream());
-                out = new PrintWriter(socket.getOutputStream(), true);
+                if (room != null) {
+                    // Sent before anything else, so the client is in the room before it asks for binary
+                    socket.getOutputStream().write(("JOIN " + room + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                behavior = new SocketBehavior(socket, socket.getInputStream(),
+                        new BufferedOutputStream(socket.getOutputStream()), binary);
             } catch (IOException e) {
-                e.printStackTrace();
+                throw new IllegalStateException("Cannot connect to Socket service", e);
             }
-            assert in != null;
-            assert out != null;
-
-            behavior = new SocketBehavior(socket, in, out);
             System.out.println("Connected to Socket service.");
         } else {
             throw new IllegalArgumentException("Args[0] must be 1 for RMI or 2 for Socket");
@@ -1,11 +1,12 @@
 package client.GUI;
 
 import server.state.GraphicalObject;
+import server.state.ShapeState;
 
 import javax.swing.*;
 import javax.swing.border.LineBorder;
 import java.awt.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  * The Drawing Surface is where the shapes are displayed, as well
@@ -14,11 +15,11 @@ import java.util.concurrent.ConcurrentHashMap;
 public class DrawingSurfacePanel extends JPanel {
 
     // List of shapes to draw
-    private ConcurrentHashMap<Long, GraphicalObject> shapesToDraw;
+    private ConcurrentSkipListMap<Long, GraphicalObject> shapesToDraw;
 
     DrawingSurfacePanel() {
         setBorder(LineBorder.createBlackLineBorder());
-        shapesToDraw = new ConcurrentHashMap<>();
+        shapesToDraw = new ConcurrentSkipListMap<>();
     }
 
     /**
@@ -26,7 +27,7 @@ public class DrawingSurfacePanel extends JPanel {
      * can be added in java.swing paint(Graphics g) method below.
      * @param list List of shapes to draw
      */
-    void setShapesToDraw(ConcurrentHashMap<Long, GraphicalObject> list) {
+    void setShapesToDraw(ConcurrentSkipListMap<Long, GraphicalObject> list) {
         shapesToDraw = list;
     }
 
@@ -38,29 +39,27 @@ public class DrawingSurfacePanel extends JPanel {
 
         // Go through list of shapes to draw
         if (!shapesToDraw.isEmpty()){
+            // The map is kept in ID order, so newer shapes are drawn on top (see SpatialIndex.topmostAt)
             shapesToDraw.forEach((shapeID, go) -> {
-                g.setColor(go.getColor());
-                switch (go.getType()) {
-                    case Circle:
-                        int x = go.getPoint().x - (go.getWidth() / 2);
-                        int y = go.getPoint().y - (go.getHeight() / 2);
-                        g.fillOval(x, y, go.getWidth(), go.getHeight());
-                        break;
+                // Read once, so the shape is drawn as it was at one time
+                ShapeState s = go.getState();
+                int x = s.getX() - (s.getWidth() / 2);
+                int y = s.getY() - (s.getHeight() / 2);
+                g.setColor(s.getColor());
+                switch (s.getType()) {
                     case Triangle:
-                        fillTriangle(g, go);
+                        fillTriangle(g, s);
                         break;
                     case Rectangle:
-                        x = go.getPoint().x - (go.getWidth() / 2);
-                        y = go.getPoint().y - (go.getHeight() / 2);
-                        g.fillRect(x, y, go.getWidth(), go.getHeight());
+                        g.fillRect(x, y, s.getWidth(), s.getHeight());
+                        break;
+                    case Circle:
                     default:
-                        x = go.getPoint().x - (go.getWidth() / 2);
-                        y = go.getPoint().y - (go.getHeight() / 2);
-                        g.fillOval(x, y, go.getWidth(), go.getHeight());
+                        g.fillOval(x, y, s.getWidth(), s.getHeight());
                 }
                 if (go.isMarked()) {
                     g.setColor(Color.BLACK);
-                    g.drawString("[" + go.getClientID() + "]", go.getPoint().x + (go.getWidth() / 2), go.getPoint().y);
+                    g.drawString("[" + s.getClientID() + "]", s.getX() + (s.getWidth() / 2), s.getY());
                 }
             });
         }
@@ -69,24 +68,23 @@ public class DrawingSurfacePanel extends JPanel {
     /**
      * Helper method for paint, draws a triangle.
      * @param g paint brush
-     * @param go triangle to be drawn
+     * @param s triangle to be drawn
      */
-    private void fillTriangle(Graphics g, GraphicalObject go) {
+    private void fillTriangle(Graphics g, ShapeState s) {
         int[] xPoints = new int[3];
         int[] yPoints = new int[3];
-        Point p = go.getPoint();
 
         // Top point
-        xPoints[0] = p.x;
-        yPoints[0] = p.y - (go.getHeight() / 2);
+        xPoints[0] = s.getX();
+        yPoints[0] = s.getY() - (s.getHeight() / 2);
 
         // Bottom left point
-        xPoints[1] = p.x - (go.getWidth() / 2);
-        yPoints[1] = p.y + (go.getHeight() / 2);
+        xPoints[1] = s.getX() - (s.getWidth() / 2);
+        yPoints[1] = s.getY() + (s.getHeight() / 2);
 
         // Bottom right point
-        xPoints[2] = p.x + (go.getWidth() / 2);
-        yPoints[2] = p.y + (go.getHeight() / 2);
+        xPoints[2] = s.getX() + (s.getWidth() / 2);
+        yPoints[2] = s.getY() + (s.getHeight() / 2);
 
         g.fillPolygon(xPoints, yPoints, 3);
     }
@@ -8,7 +8,7 @@ import javax.swing.border.TitledBorder;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  * The Drawn Shapes panel displays the info of the shapes being
@@ -24,7 +24,10 @@ class DrawnShapesPanel extends JScrollPane {
     private JComboBox<String> colorValue;
     private JSpinner widthValue, heightValue;
 
+    private Behavior behavior;
+
     DrawnShapesPanel(Behavior behavior) {
+        this.behavior = behavior;
         goJList = new JList<>();
         setBorder(new TitledBorder("All Shapes"));
         setViewportView(goJList);
@@ -38,39 +41,47 @@ class DrawnShapesPanel extends JScrollPane {
             @Override
             public void mouseClicked(MouseEvent e) {
                 if (e.getClickCount() == 2) {
-                    GraphicalObject go = goJList.getSelectedValue();
-
-                    typeValue.setSelectedItem(go.getType());
-                    colorValue.setSelectedItem(go.getColorName());
-                    widthValue.setValue(go.getWidth());
-                    heightValue.setValue(go.getHeight());
-
-                    final JComponent[] inputs = new JComponent[]{
-                            new JLabel("Type"),
-                            typeValue,
-                            new JLabel("Color"),
-                            colorValue,
-                            new JLabel("Width"),
-                            widthValue,
-                            new JLabel("Height"),
-                            heightValue
-                    };
-                    int result = JOptionPane.showConfirmDialog(null, inputs, "Change Shape", JOptionPane.DEFAULT_OPTION);
-                    if (result == JOptionPane.OK_OPTION) {
-                        behavior.editShape(go, (GraphicalObject.ShapeType) typeValue.getSelectedItem(), (String) colorValue.getSelectedItem(),
-                                (Integer) widthValue.getValue(), (Integer) heightValue.getValue());
-                    }
+                    editShape(goJList.getSelectedValue());
                 }
             }
         };
         goJList.addMouseListener(mouseListener);
     }
 
+    /**
+     * Selects a shape in the list and shows the dialog to change it
+     * @param go shape to change
+     */
+    void editShape(GraphicalObject go) {
+        goJList.setSelectedValue(go, true);
+
+        typeValue.setSelectedItem(go.getType());
+        colorValue.setSelectedItem(go.getColorName());
+        widthValue.setValue(go.getWidth());
+        heightValue.setValue(go.getHeight());
+
+        final JComponent[] inputs = new JComponent[]{
+                new JLabel("Type"),
+                typeValue,
+                new JLabel("Color"),
+                colorValue,
+                new JLabel("Width"),
+                widthValue,
+                new JLabel("Height"),
+                heightValue
+        };
+        int result = JOptionPane.showConfirmDialog(null, inputs, "Change Shape", JOptionPane.DEFAULT_OPTION);
+        if (result == JOptionPane.OK_OPTION) {
+            behavior.editShape(go, (GraphicalObject.ShapeType) typeValue.getSelectedItem(), (String) colorValue.getSelectedItem(),
+                    (Integer) widthValue.getValue(), (Integer) heightValue.getValue());
+        }
+    }
+
     /**
      * Updates the displayed list with a list of GraphicalObjects
      * @param goList list of objects to show their information
      */
-    void update(ConcurrentHashMap<Long, GraphicalObject> goList) {
+    void update(ConcurrentSkipListMap<Long, GraphicalObject> goList) {
         // update if changes are made on server
         DefaultListModel<GraphicalObject> dlm = new DefaultListModel<>();
         goList.forEach((shapeID, go) -> dlm.addElement(go));
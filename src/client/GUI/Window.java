@@ -8,7 +8,7 @@ import java.awt.*;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.util.Arrays;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  * JFrame for the GUI. The Window holds all the parts of the client.
@@ -71,7 +71,13 @@ public class Window extends JFrame {
         drawingSurface = new DrawingSurfacePanel();
         drawingSurface.addMouseListener(new MouseListener() {
             public void mouseClicked(MouseEvent e) {
-                if (behavior.isCanvasMode()) {
+                if (SwingUtilities.isRightMouseButton(e)) {
+                    // Right click changes the shape under the mouse
+                    GraphicalObject go = behavior.shapeAt(e.getX(), e.getY());
+                    if (go != null && behavior.isCanvasMode()) {
+                        drawnShapes.editShape(go);
+                    }
+                } else if (behavior.isCanvasMode()) {
                     long id = behavior.getId();
                     GraphicalObject newGO = infoPanel.makeGraphicalObject(id, e.getPoint());
                     behavior.addShape(newGO);
@@ -149,7 +155,7 @@ public class Window extends JFrame {
      */
     public void tellToRepaint() {
         SwingUtilities.invokeLater(() -> {
-            ConcurrentHashMap<Long, GraphicalObject> map = behavior.getGraphicalObjects();
+            ConcurrentSkipListMap<Long, GraphicalObject> map = behavior.getGraphicalObjects();
             drawnShapes.update(map);
             drawingSurface.setShapesToDraw(map);
             repaint();
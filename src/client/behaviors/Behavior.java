@@ -3,7 +3,8 @@ package client.behaviors;
 import client.GUI.Window;
 import server.state.GraphicalObject;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.awt.Rectangle;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  * The Behavior interface is used to specify what the client should do when
@@ -53,6 +54,21 @@ public interface Behavior {
      */
     void loadCurrentCanvas();
 
+    /**
+     * Only keep the shapes in one region of the canvas, and only hear
+     * about changes there
+     * @param viewport  The region the user looks at, null for the whole canvas
+     */
+    void setViewport(Rectangle viewport);
+
+    /**
+     * Finds the shape the user clicked on, in the list being drawn
+     * @param x     x coordinate of the click
+     * @param y     y coordinate of the click
+     * @return The topmost shape at the point, or null if there is none
+     */
+    GraphicalObject shapeAt(int x, int y);
+
     /**
      * @return Whether or not the client is viewing the current state of the
      * server (vs a snapshot)
@@ -66,10 +82,10 @@ public interface Behavior {
 
     /**
      * This can be one of two lists. Either the current state of the server,
-     * or a snapshot
+     * or a snapshot. Kept in ID order, which is the order shapes are drawn in
      * @return Current working GraphicalObject list
      */
-    ConcurrentHashMap<Long, GraphicalObject> getGraphicalObjects();
+    ConcurrentSkipListMap<Long, GraphicalObject> getGraphicalObjects();
 
     /**
      * Used as a shutdown hook, it disconnects from the server. Not all
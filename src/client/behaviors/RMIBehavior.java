@@ -1,15 +1,30 @@
 package client.behaviors;
 
 import client.GUI.Window;
+import server.state.AdmissionRejectedException;
+import server.state.CanvasChange;
+import server.state.CanvasDelta;
 import server.state.CanvasInterface;
+import server.state.CanvasListener;
 import server.state.GraphicalObject;
+import server.state.SpatialIndex;
 
+import java.awt.Rectangle;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
-import java.util.concurrent.ConcurrentHashMap;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  * RMIBehavior uses RMI to interact with the server. In this case, it has a
  * stub object of the Canvas, and uses RMI to make changes to the server.
+ * It keeps its own copy of the canvas, which it brings up to date with
+ * the changes since the last version it saw rather than pulling every
+ * shape again.
+ *
+ * Changes are pushed by the server to an exported CanvasListener. If the
+ * listener can't be registered (or push is turned off), the client polls
+ * for changes instead, backing off while nothing changes.
  */
 public class RMIBehavior implements Behavior {
 
@@ -25,10 +40,43 @@ public class RMIBehavior implements Behavior {
     // If the window should refresh the image (e.g., on snapshot load)
     private boolean refreshImage;
 
-    // Current version of canvas, used for repainting on update
+    // Local copy of the canvas, an index over it for hit tests, and the change log version it is at
+    private ConcurrentSkipListMap<Long, GraphicalObject> shapes;
+    private SpatialIndex shapeIndex;
     private long currentVersion;
 
+    // Region of the canvas being looked at, null for all of it, and how
+    // many times it changed (deltas asked for before a change are stale)
+    private volatile Rectangle viewport;
+    private int viewportChanges;
+
+    // Default polling backoff, and how often a pushed-to client checks it wasn't evicted
+    public static final long DEFAULT_MIN_BACKOFF_MILLIS = 50;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 2000;
+    private static final long PUSH_CHECK_MILLIS = 5000;
+
+    // Push callback (null when polling) and polling backoff
+    private volatile CanvasListener listener;
+    private boolean usePush;
+    private long minBackoff, maxBackoff;
+
+    // Window to repaint when a change is pushed
+    private volatile Window window;
+
     public RMIBehavior(CanvasInterface c) {
+        this(c, true, DEFAULT_MIN_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @param c RMI Canvas object
+     * @param usePush whether to have changes pushed, or only poll for them
+     * @param minBackoff shortest wait between polls, in ms
+     * @param maxBackoff longest wait between polls while nothing changes, in ms
+     */
+    public RMIBehavior(CanvasInterface c, boolean usePush, long minBackoff, long maxBackoff) {
+        this.usePush = usePush;
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
         canvas = c;
         try {
             userID = c.registerNewUser();
@@ -37,6 +85,8 @@ public class RMIBehavior implements Behavior {
         }
         displayCanvas = true;
         refreshImage = false;
+        shapes = new ConcurrentSkipListMap<>();
+        shapeIndex = new SpatialIndex();
         currentVersion = 0;
     }
 
@@ -44,6 +94,8 @@ public class RMIBehavior implements Behavior {
     public void addShape(GraphicalObject go) {
         try {
             canvas.addShape(go);
+        } catch (AdmissionRejectedException e) {
+            System.out.println(e.getMessage());
         } catch (RemoteException e) {
             e.printStackTrace();
         }
@@ -53,6 +105,8 @@ public class RMIBehavior implements Behavior {
     public void editShape(GraphicalObject go, GraphicalObject.ShapeType type, String color, int width, int height) {
         try {
             canvas.editShape(go.getShapeID(), userID, type, color, width, height);
+        } catch (AdmissionRejectedException e) {
+            System.out.println(e.getMessage());
         } catch (RemoteException e) {
             e.printStackTrace();
         }
@@ -62,6 +116,8 @@ public class RMIBehavior implements Behavior {
     public void removeYours() {
         try {
             canvas.removeAllWithID(userID);
+        } catch (AdmissionRejectedException e) {
+            System.out.println(e.getMessage());
         } catch (RemoteException e) {
             e.printStackTrace();
         }
@@ -71,6 +127,8 @@ public class RMIBehavior implements Behavior {
     public void removeAll() {
         try {
             canvas.removeAll(userID);
+        } catch (AdmissionRejectedException e) {
+            System.out.println(e.getMessage());
         } catch (RemoteException e) {
             e.printStackTrace();
         }
@@ -86,15 +144,64 @@ public class RMIBehavior implements Behavior {
     }
 
     @Override
-    public void loadSnapshot() {
+    public synchronized void loadSnapshot() {
         displayCanvas = false;
         refreshImage = true;
+        notifyAll();
     }
 
     @Override
-    public void loadCurrentCanvas() {
+    public synchronized void loadCurrentCanvas() {
         displayCanvas = true;
         refreshImage = true;
+        notifyAll();
+    }
+
+    /**
+     * Starts over with the shapes in the new region. When changes are
+     * pushed, a new listener replaces the old one, since the server keeps
+     * the region a listener registered with.
+     */
+    @Override
+    public void setViewport(Rectangle viewport) {
+        synchronized (this) {
+            this.viewport = viewport;
+            viewportChanges++;
+            shapes.clear();
+            shapeIndex.clear();
+            currentVersion = 0;
+        }
+        CanvasListener old = listener;
+        try {
+            if (old != null) {
+                canvas.removeListener(old);
+                UnicastRemoteObject.unexportObject(old, true);
+                registerListener();
+            } else {
+                syncShapes();
+            }
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        loadCurrentCanvas();
+    }
+
+    /**
+     * Hit tests the local copy of the canvas. A snapshot isn't indexed,
+     * since it is fetched again for every repaint, so it is searched.
+     */
+    @Override
+    public GraphicalObject shapeAt(int x, int y) {
+        if (displayCanvas) {
+            return shapeIndex.topmostAt(shapes, x, y);
+        }
+        GraphicalObject top = null;
+        for (GraphicalObject go : getGraphicalObjects().values()) {
+            if ((top == null || go.getShapeID() > top.getShapeID()) && go.contains(x, y)) {
+                top = go;
+            }
+        }
+        return top;
     }
 
     @Override
@@ -108,47 +215,198 @@ public class RMIBehavior implements Behavior {
     }
 
     @Override
-    public ConcurrentHashMap<Long, GraphicalObject> getGraphicalObjects() {
+    public ConcurrentSkipListMap<Long, GraphicalObject> getGraphicalObjects() {
+        if (displayCanvas) {
+            return shapes;
+        }
         try {
-            return displayCanvas ? canvas.getShapeMap() : canvas.getSnapshot(userID);
+            return new ConcurrentSkipListMap<>(canvas.getSnapshot(userID));
         } catch (RemoteException e) {
             e.printStackTrace();
         }
         System.err.println("Cannot get shapes");
-        return new ConcurrentHashMap<>();
+        return new ConcurrentSkipListMap<>();
     }
 
     /**
-     * Nothing to do with RMI object
+     * Stops the server from pushing to this client
      */
     @Override
     public void disconnect() {
-        // Do Nothing
+        if (listener != null) {
+            try {
+                canvas.removeListener(listener);
+                UnicastRemoteObject.unexportObject(listener, true);
+            } catch (RemoteException ignored) {}
+        }
     }
 
     /**
-     * Listens for updates by checking the current version of the canvas. When
-     * the client is not up to date, it refreshes it's version number and repaints
-     * the list.
+     * Listens for updates. With push, changes arrive on RMI threads and this
+     * thread only handles snapshot/canvas switches, re-registering now and
+     * then in case the server evicted the listener. Without push, it asks
+     * for the changes since the current version of the canvas, waiting
+     * longer between polls the longer nothing changes.
      * @param w     The Window that it needs to let know when it is updated
      */
     @Override
     public void listenForUpdates(Window w) {
+        window = w;
+        boolean pushing = usePush && registerListener();
+        long backoff = minBackoff;
         //noinspection InfiniteLoopStatement
         while (true) {
             try {
-                if (refreshImage) {
-                    refreshImage = false;
+                if (takeRefresh()) {
                     w.tellToRepaint();
-                } else if (displayCanvas && currentVersion != canvas.getVersionNumber()) {
-                    currentVersion = canvas.getVersionNumber();
+                    backoff = minBackoff;
+                } else if (pushing) {
+                    waitForRefresh(PUSH_CHECK_MILLIS);
+                    if (!takeRefresh()) {
+                        // Registering again does nothing unless the server evicted us
+                        canvas.addListener(listener, currentVersion, viewport);
+                    } else {
+                        w.tellToRepaint();
+                    }
+                } else if (displayCanvas && syncShapes()) {
                     w.tellToRepaint();
+                    backoff = minBackoff;
+                } else {
+                    waitForRefresh(backoff);
+                    backoff = Math.min(backoff * 2, maxBackoff);
                 }
             } catch (RemoteException e) {
                 e.printStackTrace();
+                waitForRefresh(maxBackoff);
+            }
+        }
+    }
+
+    private synchronized boolean takeRefresh() {
+        boolean refresh = refreshImage;
+        refreshImage = false;
+        return refresh;
+    }
+
+    private synchronized void waitForRefresh(long millis) {
+        if (!refreshImage) {
+            try {
+                wait(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
     }
 
+    /**
+     * Exports a callback and registers it with the server.
+     * @return whether changes will be pushed
+     */
+    private boolean registerListener() {
+        try {
+            synchronized (this) {
+                listener = new PushListener(viewportChanges);
+            }
+            UnicastRemoteObject.exportObject(listener, 0);
+            canvas.addListener(listener, currentVersion, viewport);
+            System.out.println("Changes will be pushed by the server.");
+            return true;
+        } catch (RemoteException e) {
+            System.out.println("Cannot register for pushed changes, polling instead: " + e);
+            try {
+                UnicastRemoteObject.unexportObject(listener, true);
+            } catch (NoSuchObjectException ignored) {}
+            listener = null;
+            return false;
+        }
+    }
+
+    /**
+     * Brings the local copy of the canvas up to date.
+     * @return whether anything changed
+     * @throws RemoteException on RMI error
+     */
+    private boolean syncShapes() throws RemoteException {
+        long version;
+        Rectangle region;
+        int changes;
+        synchronized (this) {
+            version = currentVersion;
+            region = viewport;
+            changes = viewportChanges;
+        }
+        return applyDelta(canvas.getChangesSince(version, region), changes);
+    }
+
+    /**
+     * Applies a polled or pushed delta to the local copy, unless the copy
+     * is already newer or the delta is for another viewport.
+     * @param changes viewportChanges when the delta was asked for
+     * @return whether anything changed
+     */
+    private synchronized boolean applyDelta(CanvasDelta delta, int changes) {
+        if (changes != viewportChanges || delta.isEmpty() ||
+                (!delta.isFull() && delta.getToVersion() <= currentVersion)) {
+            return false;
+        }
+        delta.applyTo(shapes);
+        Rectangle region = viewport;
+        if (region != null) {
+            // Drop shapes that were edited out of the viewport
+            delta.getChanges().forEach(change -> {
+                if (change.getKind() == CanvasChange.Kind.EDITED && !change.getShape().intersects(region)) {
+                    shapes.remove(change.getShapeID());
+                }
+            });
+        }
+        updateIndex(delta);
+        currentVersion = delta.getToVersion();
+        return true;
+    }
+
+    /**
+     * Brings the hit test index in line with the local copy after a delta.
+     * Removals don't say which shapes went, so they rebuild the index.
+     */
+    private void updateIndex(CanvasDelta delta) {
+        boolean rebuild = delta.isFull() || delta.getChanges().stream().anyMatch(change ->
+                change.getKind() == CanvasChange.Kind.REMOVED_FROM || change.getKind() == CanvasChange.Kind.REMOVED_ALL);
+        if (rebuild) {
+            shapeIndex.clear();
+            shapes.forEach((shapeID, go) -> shapeIndex.put(shapeID, go.getBounds()));
+            return;
+        }
+        for (CanvasChange change : delta.getChanges()) {
+            if (change.getKind() == CanvasChange.Kind.ADDED || change.getKind() == CanvasChange.Kind.EDITED) {
+                GraphicalObject go = shapes.get(change.getShapeID());
+                if (go != null) {
+                    shapeIndex.put(change.getShapeID(), go.getBounds());
+                } else {
+                    shapeIndex.remove(change.getShapeID());
+                }
+            }
+        }
+    }
+
+    /**
+     * Callback the server pushes deltas to
+     */
+    private class PushListener implements CanvasListener {
+
+        // viewportChanges when the listener was registered
+        private final int changes;
+
+        PushListener(int changes) {
+            this.changes = changes;
+        }
+
+        @Override
+        public void canvasChanged(CanvasDelta delta) {
+            Window w = window;
+            if (applyDelta(delta, changes) && displayCanvas && w != null) {
+                w.tellToRepaint();
+            }
+        }
+    }
 
 }
@@ -1,12 +1,20 @@
 package client.behaviors;
 
 import client.GUI.Window;
+import server.Socket.BinaryProtocol;
+import server.Socket.TextParser;
 import server.state.GraphicalObject;
+import server.state.SpatialIndex;
 
-import java.io.PrintWriter;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.Scanner;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  * SocketBehavior interacts with the server using a socket connection. It
@@ -19,6 +27,9 @@ import java.util.concurrent.ConcurrentHashMap;
  *          SAVE_SNAPSHOT
  *          LOAD_SNAPSHOT
  *          LOAD_CANVAS
+ *          VIEWPORT [<x> <y> <width> <height>]
+ *          JOIN <ROOM>
+ *          BINARY
  *          EXIT
  *
  *      The server can send the following messages to the client:
@@ -32,16 +43,43 @@ import java.util.concurrent.ConcurrentHashMap;
  *          SH <S#>:<ID>:<GO>
  *          MARK <SHAPE_ID>
  *          UNMARK <SHAPE_ID>
+ *          REJECTED <MS>
+ *          BINARY_OK
+ *
+ * After BINARY / BINARY_OK the same messages are sent in the compact
+ * format described in BinaryProtocol. The server reads binary from the
+ * byte after the BINARY line, so the client writes binary from then on
+ * too, without waiting for BINARY_OK; it reads binary after BINARY_OK.
+ *
+ * After VIEWPORT the server answers with GETTING_CANVAS for the shapes in
+ * that region and from then on leaves out shapes added outside it.
+ * VIEWPORT with no region goes back to the whole canvas.
+ *
+ * After JOIN the server answers with GETTING_CANVAS for the room's shapes,
+ * and everything sent either way is about that room until the next JOIN.
  */
 public class SocketBehavior implements Behavior{
 
     // Socket connection and input/output
     private Socket socket;
-    private Scanner in;
-    private PrintWriter out;
+    private InputStream in;
+    private OutputStream out;
+
+    // Input not yet processed, the parser of its text lines, and whether each direction is binary
+    private ByteBuffer input;
+    private final TextParser parser = new TextParser();
+    private boolean binaryIn;
+    private volatile boolean binaryOut;
 
-    // List of shapes being drawn (can be canvas or snapshot)
-    private ConcurrentHashMap<Long, GraphicalObject> goList;
+    // Shapes still to come in a GETTING_* list
+    private int shapesToGet;
+
+    // List of shapes being drawn (can be canvas or snapshot), and an index over it for hit tests
+    private ConcurrentSkipListMap<Long, GraphicalObject> goList;
+    private SpatialIndex goIndex;
+
+    // Region of the canvas being looked at, null for all of it
+    private volatile Rectangle viewport;
 
     // ID of the client
     private long userID;
@@ -49,67 +87,105 @@ public class SocketBehavior implements Behavior{
     // Whether or not the user is looking at the canvas (vs a snapshot)
     private boolean displayCanvas;
 
-    public SocketBehavior(Socket socket, Scanner in, PrintWriter out) {
+    public SocketBehavior(Socket socket, InputStream in, OutputStream out, boolean binary) throws IOException {
         this.socket = socket;
         this.in = in;
         this.out = out;
+        this.input = ByteBuffer.allocate(4096);
 
-        goList = new ConcurrentHashMap<>();
+        goList = new ConcurrentSkipListMap<>();
+        goIndex = new SpatialIndex();
 
         displayCanvas = true;
 
         // Get userID from WELCOME message
-        String firstResponse = in.nextLine();
-        userID = Long.parseLong(firstResponse.substring(8));
+        userID = readWelcome();
+
+        if (binary) {
+            // The server reads binary right after this line, so nothing more is sent as text
+            sendLine(BinaryProtocol.REQUEST);
+            binaryOut = true;
+        }
     }
 
     @Override
     public void addShape(GraphicalObject go) {
-        String message = "ADD " + go.toString();
-        outputMessage(message);
-        out.println(message);
+        if (binaryOut) {
+            outputMessage("ADD " + go);
+            ByteBuffer buf = ByteBuffer.allocate(BinaryProtocol.MAX_MESSAGE_SIZE);
+            buf.put(BinaryProtocol.ADD);
+            go.writeBinary(buf);
+            sendBinary(buf);
+            return;
+        }
+        sendLine("ADD " + go.toString());
     }
 
     @Override
     public void editShape(GraphicalObject go, GraphicalObject.ShapeType type, String color, int width, int height) {
-        String message = "EDIT " + go.getShapeID() + ":" + type + " " + color + " " + width + " " + height;
-        outputMessage(message);
-        out.println(message);
+        if (binaryOut) {
+            outputMessage("EDIT " + go.getShapeID() + ":" + type + " " + color + " " + width + " " + height);
+            ByteBuffer buf = ByteBuffer.allocate(BinaryProtocol.MAX_MESSAGE_SIZE);
+            buf.put(BinaryProtocol.EDIT);
+            BinaryProtocol.putVarLong(buf, go.getShapeID());
+            buf.put((byte) type.ordinal());
+            BinaryProtocol.putRGB(buf, GraphicalObject.colorForName(color).getRGB());
+            BinaryProtocol.putVarInt(buf, width);
+            BinaryProtocol.putVarInt(buf, height);
+            sendBinary(buf);
+            return;
+        }
+        sendLine("EDIT " + go.getShapeID() + ":" + type + " " + color + " " + width + " " + height);
     }
 
     @Override
     public void removeYours() {
-        String message = "REMOVE_MINE";
-        outputMessage(message);
-        out.println(message);
+        sendCommand("REMOVE_MINE", BinaryProtocol.REMOVE_MINE);
     }
 
     @Override
     public void removeAll() {
-        String message = "REMOVE_ALL";
-        outputMessage(message);
-        out.println(message);
+        sendCommand("REMOVE_ALL", BinaryProtocol.REMOVE_ALL);
     }
 
     @Override
     public void saveSnapshot() {
-        String message = "SAVE_SNAPSHOT";
-        outputMessage(message);
-        out.println(message);
+        sendCommand("SAVE_SNAPSHOT", BinaryProtocol.SAVE_SNAPSHOT);
     }
 
     @Override
     public void loadSnapshot() {
-        String message = "LOAD_SNAPSHOT";
-        outputMessage(message);
-        out.println(message);
+        sendCommand("LOAD_SNAPSHOT", BinaryProtocol.LOAD_SNAPSHOT);
     }
 
     @Override
     public void loadCurrentCanvas() {
-        String message = "LOAD_CANVAS";
-        outputMessage(message);
-        out.println(message);
+        sendCommand("LOAD_CANVAS", BinaryProtocol.LOAD_CANVAS);
+    }
+
+    @Override
+    public void setViewport(Rectangle viewport) {
+        this.viewport = viewport;
+        if (binaryOut) {
+            Rectangle region = viewport != null ? viewport : new Rectangle();
+            outputMessage("VIEWPORT " + region.x + " " + region.y + " " + region.width + " " + region.height);
+            ByteBuffer buf = ByteBuffer.allocate(1 + 4 * BinaryProtocol.MAX_VARINT_SIZE);
+            buf.put(BinaryProtocol.VIEWPORT);
+            BinaryProtocol.putZigZag(buf, region.x);
+            BinaryProtocol.putZigZag(buf, region.y);
+            BinaryProtocol.putVarInt(buf, region.width);
+            BinaryProtocol.putVarInt(buf, region.height);
+            sendBinary(buf);
+        } else if (viewport != null) {
+            sendLine("VIEWPORT " + viewport.x + " " + viewport.y + " " + viewport.width + " " + viewport.height);
+        } else {
+            sendLine("VIEWPORT");
+        }
+    }
+
+    @Override
+    public GraphicalObject shapeAt(int x, int y) {
+        return goIndex.topmostAt(goList, x, y);
     }
 
     @Override
@@ -126,13 +202,47 @@ public class SocketBehavior implements Behavior{
         System.out.println("  ---> " + m);
     }
 
+    /**
+     * Sends a command that has no arguments, as text or as its opcode
+     */
+    private void sendCommand(String message, byte opcode) {
+        if (binaryOut) {
+            outputMessage(message);
+            ByteBuffer buf = ByteBuffer.allocate(1);
+            buf.put(opcode);
+            sendBinary(buf);
+        } else {
+            sendLine(message);
+        }
+    }
+
+    private void sendLine(String message) {
+        outputMessage(message);
+        write((message + "\n").getBytes(StandardCharsets.UTF_8), 0, -1);
+    }
+
+    private void sendBinary(ByteBuffer buf) {
+        write(buf.array(), 0, buf.position());
+    }
+
+    private void write(byte[] bytes, int offset, int length) {
+        synchronized (out) {
+            try {
+                out.write(bytes, offset, length < 0 ? bytes.length : length);
+                out.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      * Only one list to work with. It is either the canvas or the snapshot at
      * any given time.
      * @return The current list of shapes to be drawn
      */
     @Override
-    public ConcurrentHashMap<Long, GraphicalObject> getGraphicalObjects() {
+    public ConcurrentSkipListMap<Long, GraphicalObject> getGraphicalObjects() {
         return goList;
     }
 
@@ -143,8 +253,7 @@ public class SocketBehavior implements Behavior{
     @Override
     public void disconnect() {
         // Run as a shutdown hook
-        System.out.println(" ---> EXIT");
-        out.println("EXIT");
+        sendCommand("EXIT", BinaryProtocol.EXIT);
     }
 
     /**
@@ -154,79 +263,34 @@ public class SocketBehavior implements Behavior{
     @Override
     public void listenForUpdates(Window w) {
         try {
-            while (in.hasNextLine()) {
-                // Get next line
-                String response = in.nextLine();
-                System.out.println("<--- " + response);
-
-                // If it starts with GETTING, it's switching between canvas and snapshot
-                if (response.startsWith("GETTING")) {
-                    displayCanvas = response.startsWith("GETTING_CANVAS");
-                    // clear the list in prep for new list
-                    goList.clear();
-                    int numToGet = displayCanvas ?
-                            Integer.parseInt(response.substring(15)) :
-                            Integer.parseInt(response.substring(17));
-                    // These shapes are sent sequentially, and are a list of either the snapshot or the canvas
-                    for (int i = 0; i < numToGet && in.hasNextLine(); i++) {
-                        String newShape = in.nextLine();
-                        String[] shapeValues = newShape.substring(3).split(":");
-                        long shapeID = Long.parseLong(shapeValues[0]);
-                        long clientID = Long.parseLong(shapeValues[1]);
-                        GraphicalObject newGO = new GraphicalObject(clientID, shapeValues[2]);
-                        newGO.setShapeID(shapeID);
-                        goList.put(shapeID, newGO);
-                    }
-                    // Repaint the canvas
-                    w.tellToRepaint();
-                }
-
-                // The following commands are only read if the user is displaying the canvas.
-                // If the user is looking at a snapshot, nothing should be updated until
-                // switching back to the canvas.
-                if (displayCanvas) {
-                    // New shape was added to canvas
-                    if (response.startsWith("ADDED")) {
-                        String[] responseValues = response.substring(6).split(":");
-                        long shapeID = Long.parseLong(responseValues[0]);
-                        long clientID = Long.parseLong(responseValues[1]);
-                        GraphicalObject go = new GraphicalObject(clientID, responseValues[2]);
-                        go.setShapeID(shapeID);
-                        goList.put(shapeID, go);
-                    }
-                    // Shape was edited
-                    else if (response.startsWith("EDITED")) {
-                        String[] responseValues = response.substring(7).split(":");
-                        long shapeID = Long.parseLong(responseValues[0]);
-                        long clientID = Long.parseLong(responseValues[1]);
-                        GraphicalObject go = new GraphicalObject(clientID, responseValues[2]);
-                        go.setShapeID(shapeID);
-                        goList.put(shapeID, go);
-                    }
-                    // All shapes with specified ID were removed from canvas
-                    else if (response.startsWith("REMOVED_FROM")) {
-                        long idValue = Long.parseLong(response.substring(13));
-                        goList.entrySet().removeIf(e -> e.getValue().getClientID() == idValue);
-                    }
-                    // All shapes were removed from canvas
-                    else if (response.startsWith("REMOVED_ALL")) {
-                        goList.clear();
-                    } else if (response.startsWith("MARK")) {
-                        String[] responseValues = response.substring(5).split(":");
-                        long shapeID = Long.parseLong(responseValues[0]);
-                        goList.get(shapeID).setMarked(true);
-                    } else if (response.startsWith("UNMARK")) {
-                        String[] responseValues = response.substring(7).split(":");
-                        long shapeID = Long.parseLong(responseValues[0]);
-                        GraphicalObject markedGo = goList.get(shapeID);
-                        if (markedGo != null) {
-                            markedGo.setMarked(false);
+            while (true) {
+                input.flip();
+                boolean repaint = false;
+                while (input.hasRemaining()) {
+                    if (binaryIn) {
+                        input.mark();
+                        try {
+                            repaint |= processBinary(input);
+                        } catch (BufferUnderflowException e) {
+                            // Only part of the message has arrived
+                            input.reset();
+                            break;
                         }
+                    } else {
+                        if (!parser.nextLine(input)) {
+                            break;
+                        }
+                        repaint |= processLine();
                     }
+                }
+                input.compact();
+                if (repaint) {
                     // Repaint the canvas
                     w.tellToRepaint();
                 }
-
+                if (!fill()) {
+                    return;
+                }
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -234,4 +298,225 @@ public class SocketBehavior implements Behavior{
             try { socket.close(); } catch (Exception ignored) {}
         }
     }
+
+    /**
+     * Does something with one text message from the server, reading its
+     * fields from the parser.
+     * @return whether the canvas should be repainted
+     */
+    private boolean processLine() {
+        System.out.println("<--- " + parser.line());
+
+        byte opcode = parser.command();
+        switch (opcode) {
+            case TextParser.BINARY_ACCEPT:
+                // Everything after this line is binary (output switched when BINARY was sent)
+                binaryIn = true;
+                return false;
+            case BinaryProtocol.REJECTED:
+                // The last change was turned away; it can be made again after the delay
+                return false;
+            case BinaryProtocol.GETTING_CANVAS:
+            case BinaryProtocol.GETTING_SNAPSHOT:
+                // Switching between canvas and snapshot
+                return startList(opcode == BinaryProtocol.GETTING_CANVAS, parser.nextInt());
+            case BinaryProtocol.SH: {
+                // These shapes are sent sequentially, and are a list of either the snapshot or the canvas
+                long shapeID = parser.nextLong();
+                long clientID = parser.nextLong();
+                return listShape(shapeID, GraphicalObject.readText(clientID, parser));
+            }
+        }
+
+        // The following commands are only read if the user is displaying the canvas.
+        // If the user is looking at a snapshot, nothing should be updated until
+        // switching back to the canvas.
+        if (!displayCanvas) {
+            return false;
+        }
+        switch (opcode) {
+            case BinaryProtocol.ADDED:
+            case BinaryProtocol.EDITED: {
+                // New shape was added to canvas, or a shape was edited
+                long shapeID = parser.nextLong();
+                long clientID = parser.nextLong();
+                putShape(shapeID, GraphicalObject.readText(clientID, parser));
+                break;
+            }
+            case BinaryProtocol.REMOVED_FROM:
+                // All shapes with specified ID were removed from canvas
+                removeFrom(parser.nextLong());
+                break;
+            case BinaryProtocol.REMOVED_ALL:
+                // All shapes were removed from canvas
+                clearShapes();
+                break;
+            case BinaryProtocol.MARK:
+            case BinaryProtocol.UNMARK:
+                mark(parser.nextLong(), opcode == BinaryProtocol.MARK);
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes and does something with one binary message from the server.
+     * Nothing is changed unless the whole message is in the buffer.
+     * @param buf input positioned at the opcode
+     * @return whether the canvas should be repainted
+     * @throws BufferUnderflowException if only part of the message is in the buffer
+     */
+    private boolean processBinary(ByteBuffer buf) {
+        byte opcode = buf.get();
+        switch (opcode) {
+            case BinaryProtocol.GETTING_CANVAS:
+            case BinaryProtocol.GETTING_SNAPSHOT:
+                return startList(opcode == BinaryProtocol.GETTING_CANVAS, BinaryProtocol.getVarInt(buf));
+            case BinaryProtocol.SH: {
+                long shapeID = BinaryProtocol.getVarLong(buf);
+                long clientID = BinaryProtocol.getVarLong(buf);
+                return listShape(shapeID, GraphicalObject.readBinary(clientID, buf));
+            }
+            case BinaryProtocol.ADDED:
+            case BinaryProtocol.EDITED: {
+                long shapeID = BinaryProtocol.getVarLong(buf);
+                long clientID = BinaryProtocol.getVarLong(buf);
+                GraphicalObject go = GraphicalObject.readBinary(clientID, buf);
+                if (displayCanvas) {
+                    putShape(shapeID, go);
+                }
+                break;
+            }
+            case BinaryProtocol.REMOVED_FROM: {
+                long clientID = BinaryProtocol.getVarLong(buf);
+                if (displayCanvas) {
+                    removeFrom(clientID);
+                }
+                break;
+            }
+            case BinaryProtocol.REMOVED_ALL:
+                if (displayCanvas) {
+                    clearShapes();
+                }
+                break;
+            case BinaryProtocol.MARK:
+            case BinaryProtocol.UNMARK: {
+                long shapeID = BinaryProtocol.getVarLong(buf);
+                BinaryProtocol.getVarLong(buf);
+                if (displayCanvas) {
+                    mark(shapeID, opcode == BinaryProtocol.MARK);
+                }
+                break;
+            }
+            case BinaryProtocol.WELCOME:
+                BinaryProtocol.getVarLong(buf);
+                return false;
+            case BinaryProtocol.REJECTED:
+                System.out.println("<--- REJECTED " + BinaryProtocol.getVarLong(buf));
+                return false;
+            default:
+                throw new IllegalStateException("Unknown opcode " + opcode);
+        }
+        return displayCanvas;
+    }
+
+    /**
+     * Starts a GETTING_* list: clears the list in prep for the new one.
+     * @return whether the canvas should be repainted (the list is empty)
+     */
+    private boolean startList(boolean canvas, int numToGet) {
+        displayCanvas = canvas;
+        clearShapes();
+        shapesToGet = numToGet;
+        return numToGet == 0;
+    }
+
+    /**
+     * Adds one shape of a GETTING_* list.
+     * @return whether the canvas should be repainted (the list is complete)
+     */
+    private boolean listShape(long shapeID, GraphicalObject go) {
+        go.setShapeID(shapeID);
+        goList.put(shapeID, go);
+        goIndex.put(shapeID, go.getBounds());
+        return --shapesToGet <= 0;
+    }
+
+    private void putShape(long shapeID, GraphicalObject go) {
+        Rectangle region = viewport;
+        if (region != null && !go.intersects(region)) {
+            // Edited out of the viewport
+            goList.remove(shapeID);
+            goIndex.remove(shapeID);
+            return;
+        }
+        go.setShapeID(shapeID);
+        goList.put(shapeID, go);
+        goIndex.put(shapeID, go.getBounds());
+    }
+
+    private void removeFrom(long clientID) {
+        goList.entrySet().removeIf(e -> {
+            if (e.getValue().getClientID() != clientID) {
+                return false;
+            }
+            goIndex.remove(e.getKey());
+            return true;
+        });
+    }
+
+    private void clearShapes() {
+        goList.clear();
+        goIndex.clear();
+    }
+
+    private void mark(long shapeID, boolean marked) {
+        GraphicalObject markedGo = goList.get(shapeID);
+        if (markedGo != null) {
+            markedGo.setMarked(marked);
+        }
+    }
+
+    /**
+     * Blocks until the WELCOME line has arrived. Only used before listening starts.
+     * @return the ID the server gave the client
+     * @throws IOException if the connection closes first
+     */
+    private long readWelcome() throws IOException {
+        while (true) {
+            input.flip();
+            boolean line;
+            try {
+                line = parser.nextLine(input);
+                if (line && parser.command() == BinaryProtocol.WELCOME) {
+                    return parser.nextLong();
+                }
+            } finally {
+                input.compact();
+            }
+            if (!line && !fill()) {
+                throw new IOException("Connection closed");
+            }
+        }
+    }
+
+    /**
+     * Reads more bytes into the input buffer (in write mode), growing it if it is full.
+     * @return false at end of stream
+     * @throws IOException on socket error
+     */
+    private boolean fill() throws IOException {
+        if (!input.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(input.capacity() * 2);
+            input.flip();
+            bigger.put(input);
+            input = bigger;
+        }
+        int n = in.read(input.array(), input.position(), input.remaining());
+        if (n < 0) {
+            return false;
+        }
+        input.position(input.position() + n);
+        return true;
+    }
 }
@@ -1,8 +1,13 @@
 package server.RMI;
 
+import server.metrics.MeteredRemote;
 import server.state.CanvasInterface;
+import server.state.CanvasRegistry;
+import server.state.RoomsInterface;
 
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 
@@ -12,8 +17,13 @@ import java.rmi.server.UnicastRemoteObject;
 public class RMIService {
 
     private static final String BINDING_NAME = "Canvas";
+    private static final String ROOMS_BINDING_NAME = "Rooms";
     private static Registry registry;
 
+    // What is exported in place of the canvas and the rooms: proxies counting the calls made to them
+    private static CanvasInterface exportedCanvas;
+    private static RoomsInterface exportedRooms;
+
     /**
      * Starts the RMI service
      * @param port port number to run RMI
@@ -26,8 +36,34 @@ public class RMIService {
         }
         registry = java.rmi.registry.LocateRegistry.createRegistry(port);
         registry.list();
-        UnicastRemoteObject.exportObject(canvas, 0);
-        registry.rebind(BINDING_NAME, canvas);
+        exportedCanvas = MeteredRemote.wrap(canvas, CanvasInterface.class);
+        UnicastRemoteObject.exportObject(exportedCanvas, 0);
+        registry.rebind(BINDING_NAME, exportedCanvas);
+    }
+
+    /**
+     * Exports the server's rooms next to its canvas. Rooms are exported as
+     * they are made, and unexported when they are evicted.
+     * @param rooms rooms of the server, whose lobby is the canvas being exported
+     */
+    public static void startRooms(CanvasRegistry rooms) throws RemoteException {
+        if (registry == null) {
+            throw new IllegalStateException("Server not running");
+        }
+        rooms.setExported(exportedCanvas);
+        exportedRooms = MeteredRemote.wrap(rooms, RoomsInterface.class);
+        UnicastRemoteObject.exportObject(exportedRooms, 0);
+        registry.rebind(ROOMS_BINDING_NAME, exportedRooms);
+    }
+
+    /**
+     * Finds the canvas another server exports
+     * @param host host of the server
+     * @param port port of its RMI registry
+     * @return the server's canvas
+     */
+    public static CanvasInterface lookup(String host, int port) throws RemoteException, NotBoundException {
+        return (CanvasInterface) LocateRegistry.getRegistry(host, port).lookup(BINDING_NAME);
     }
 
     /**
@@ -42,8 +78,11 @@ public class RMIService {
         System.out.println("Shutting down RMI service...");
         try {
             registry.unbind(BINDING_NAME);
+            try {
+                registry.unbind(ROOMS_BINDING_NAME);
+            } catch (NotBoundException ignored) {}
             registry = null;
-            UnicastRemoteObject.unexportObject(canvas, false);
+            UnicastRemoteObject.unexportObject(exportedCanvas, false);
         } catch (Exception ignored) {}
     }
 
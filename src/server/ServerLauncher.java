@@ -1,17 +1,27 @@
 package server;
 
 import server.RMI.RMIService;
+import server.Socket.Drawer;
+import server.Socket.NioSocketService;
 import server.Socket.SocketService;
+import server.metrics.FlightRecording;
+import server.metrics.ServerMetrics;
 import server.simulation.GhostClient;
 import server.state.Canvas;
 import server.state.CanvasInterface;
+import server.state.CanvasRegistry;
+import server.state.TokenBucketAdmission;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.file.Paths;
+import java.nio.channels.ServerSocketChannel;
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 
 public class ServerLauncher {
 
@@ -27,17 +37,115 @@ public class ServerLauncher {
         //      # of ghost clients to start
         // args[2]:
         //      % activity from ghost clients
+        // args[3...] (optional flags):
+        //      --nio               serve sockets from selector event loops
+        //      --nio-loops=<#>     number of event loops for --nio (default 2)
+        //      --virtual           run Drawers and ghost clients on virtual threads (JDK 21+)
+        //      --slow-consumer=<p> drop or resync clients whose outbound queue fills up (default resync)
+        //      --outbound-capacity=<#>  frames queued per socket client (default 1024)
+        //      --write-timeout=<s> drop a socket client a write has blocked on this long (default 10)
+        //      --batch-window=<ms> how long socket broadcasts are gathered into one frame (default 5)
+        //      --batch-size=<#>    most messages in one broadcast frame (default 512)
+        //      --journal=<dir>     journal every change to dir and rebuild the canvas from it on startup
+        //      --journal-commit=<ms>    time between journal group commits (default 10)
+        //      --checkpoint-every=<#>   journal records between checkpoints (default 100000)
+        //      --columnar          keep shapes in primitive columns, for canvases with millions of shapes
+        //      --shards=<#>        split the shapes into # shards (a power of two up to 32) written concurrently (default 1)
+        //      --snapshots=<file>  file client snapshots are kept in (default src/server/state/snapshots.bin)
+        //      --rate-limit=<#>    changes per second each client may make, the rest are rejected (default no limit)
+        //      --rate-burst=<#>    changes a client may make at once under --rate-limit (default one second's worth)
+        //      --rmi-port=<#>      port of the RMI registry (default 1099)
+        //      --socket-port=<#>   port of the Socket service (default 1100)
+        //      --follow=<host>[:<port>]  follow the leader whose RMI registry is there (it must run RMI):
+        //                          serve its canvas to this server's clients and forward their changes to it
+        //      --rooms=<dir>       directory the rooms clients JOIN are kept in, one journal each (default rooms)
+        //      --room-idle=<s>     seconds a room stays in memory with nobody in it (default 60)
+        //      --max-rooms=<#>     most empty rooms kept in memory, the longest empty are dropped first (default 256)
+        //      --snapshot-idle=<s> seconds a client snapshot nobody uses stays in memory (default 300)
+        //      --max-snapshots=<#> most client snapshots kept in memory, the rest are read from disk (default 1024)
+        //      --jfr=<file>        keep a flight recording of the server's events, written to file on exit
+        //      --jfr-threshold=<ms>     shortest canvas change or socket command the recording keeps (default 1)
 
-        CanvasInterface canvas = new Canvas();
-        ThreadPoolExecutor threadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(200);
+        // Started first, so startup (journal replay, ...) is recorded too
+        String jfrFile = flagValue(args, "--jfr", null);
+        FlightRecording recording = jfrFile == null ? null : FlightRecording.start(Paths.get(jfrFile),
+                Long.parseLong(flagValue(args, "--jfr-threshold", String.valueOf(FlightRecording.DEFAULT_THRESHOLD_MILLIS))));
+
+        boolean columnar = hasFlag(args, "--columnar");
+        int shards = Integer.parseInt(flagValue(args, "--shards", "1"));
+        String snapshots = flagValue(args, "--snapshots", null);
+        CanvasInterface canvas = snapshots == null ? new Canvas(columnar, shards)
+                : new Canvas(columnar, shards, Paths.get(snapshots));
+        ((Canvas) canvas).setBatching(
+                Long.parseLong(flagValue(args, "--batch-window", String.valueOf(Canvas.DEFAULT_BATCH_WINDOW_MILLIS))),
+                Integer.parseInt(flagValue(args, "--batch-size", String.valueOf(Canvas.DEFAULT_BATCH_MAX_MESSAGES))));
+        String rateLimit = flagValue(args, "--rate-limit", null);
+        if (rateLimit != null) {
+            double perSecond = Double.parseDouble(rateLimit);
+            int burst = Integer.parseInt(flagValue(args, "--rate-burst", String.valueOf(Math.max(1, (int) perSecond))));
+            ((Canvas) canvas).setAdmissionPolicy(new TokenBucketAdmission(perSecond, burst));
+        }
+        int rmiPort = Integer.parseInt(flagValue(args, "--rmi-port", String.valueOf(RMI_PORT)));
+        int socketPort = Integer.parseInt(flagValue(args, "--socket-port", String.valueOf(SOCKET_PORT)));
+        String leaderAddress = flagValue(args, "--follow", null);
+        if (leaderAddress != null) {
+            int colon = leaderAddress.lastIndexOf(':');
+            String host = colon < 0 ? leaderAddress : leaderAddress.substring(0, colon);
+            int port = colon < 0 ? RMI_PORT : Integer.parseInt(leaderAddress.substring(colon + 1));
+            try {
+                ((Canvas) canvas).follow(RMIService.lookup(host, port));
+            } catch (RemoteException | NotBoundException e) {
+                System.out.println("Cannot follow leader at " + leaderAddress + ": " + e);
+                System.exit(1);
+            }
+        }
+        String journalDir = flagValue(args, "--journal", null);
+        if (journalDir != null) {
+            try {
+                ((Canvas) canvas).openJournal(Paths.get(journalDir),
+                        Long.parseLong(flagValue(args, "--journal-commit", String.valueOf(Canvas.DEFAULT_JOURNAL_COMMIT_MILLIS))),
+                        Integer.parseInt(flagValue(args, "--checkpoint-every", String.valueOf(Canvas.DEFAULT_JOURNAL_CHECKPOINT_RECORDS))));
+            } catch (IOException e) {
+                // Starting without it would throw away the journaled canvas at the next checkpoint
+                System.out.println("Cannot open journal in " + journalDir + ": " + e);
+                System.exit(1);
+            }
+        }
+        // Followers only serve the leader's main canvas
+        CanvasRegistry rooms = leaderAddress != null ? null : new CanvasRegistry((Canvas) canvas,
+                Paths.get(flagValue(args, "--rooms", "rooms")),
+                Long.parseLong(flagValue(args, "--room-idle", String.valueOf(CanvasRegistry.DEFAULT_IDLE_MILLIS / 1000))) * 1000,
+                Integer.parseInt(flagValue(args, "--max-rooms", String.valueOf(CanvasRegistry.DEFAULT_MAX_ROOMS))));
+        ((Canvas) canvas).setSnapshotResidency(
+                Integer.parseInt(flagValue(args, "--max-snapshots", String.valueOf(Canvas.DEFAULT_MAX_RESIDENT_SNAPSHOTS))),
+                Long.parseLong(flagValue(args, "--snapshot-idle", String.valueOf(Canvas.DEFAULT_SNAPSHOT_IDLE_MILLIS / 1000))) * 1000);
+        ExecutorService virtual = hasFlag(args, "--virtual") ? newVirtualThreadExecutor() : null;
+        ExecutorService threadPool = virtual != null ? virtual : Executors.newFixedThreadPool(200);
+        if (virtual != null) {
+            // Writers only share the pool when its threads are virtual; a fixed pool would starve them
+            Drawer.setWriterExecutor(virtual);
+        }
+        Drawer.setSlowConsumerPolicy(Drawer.SlowConsumerPolicy.valueOf(
+                flagValue(args, "--slow-consumer", "resync").toUpperCase()));
+        Drawer.setOutboundCapacity(Integer.parseInt(
+                flagValue(args, "--outbound-capacity", String.valueOf(Drawer.DEFAULT_OUTBOUND_CAPACITY))));
+        Drawer.setWriteTimeout(Long.parseLong(
+                flagValue(args, "--write-timeout", String.valueOf(Drawer.DEFAULT_WRITE_TIMEOUT_MILLIS / 1000))) * 1000);
 
         int code = Integer.parseInt(args[0]);
         if (code == 1 || code == 3) {
+            // Don't let a client that stops answering hold a push thread forever
+            if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) {
+                System.setProperty("sun.rmi.transport.tcp.responseTimeout", "15000");
+            }
             // Start RMI service in new thread
             Thread RMIThread = new Thread(() -> {
                 System.out.println("Starting RMI service...");
                 try {
-                    RMIService.start(RMI_PORT, canvas);
+                    RMIService.start(rmiPort, canvas);
+                    if (rooms != null) {
+                        RMIService.startRooms(rooms);
+                    }
                     System.out.println("RMI service running.");
                 } catch (RemoteException e) {
                     e.printStackTrace();
@@ -49,12 +157,25 @@ public class ServerLauncher {
         }
         if (code == 2 || code == 3) {
             // Start Socket service in new thread
-            Thread SocketThread = new Thread(() -> {
+            Thread SocketThread = hasFlag(args, "--nio") ? new Thread(() -> {
+                System.out.println("Starting non-blocking Socket service...");
+                try (var listener = ServerSocketChannel.open()) {
+                    listener.bind(new InetSocketAddress(socketPort));
+                    int loops = Integer.parseInt(flagValue(args, "--nio-loops", "2"));
+                    System.out.println("Socket service running:");
+                    System.out.println("    Host: " + listener.socket().getInetAddress().getHostName());
+                    System.out.println("    Port: " + socketPort);
+                    System.out.println("    Event loops: " + loops);
+                    NioSocketService.start(listener, canvas, loops);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }) : new Thread(() -> {
                 System.out.println("Starting Socket service...");
-                try (var listener = new ServerSocket(SOCKET_PORT)) {
+                try (var listener = new ServerSocket(socketPort)) {
                     System.out.println("Socket service running:");
                     System.out.println("    Host: " + listener.getInetAddress().getHostName());
-                    System.out.println("    Port: " + SOCKET_PORT);
+                    System.out.println("    Port: " + socketPort);
                     SocketService.start(threadPool, listener, canvas);
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -72,6 +193,9 @@ public class ServerLauncher {
         }
 
 
+        // Readable with jconsole and other JMX clients as server:type=Metrics
+        ServerMetrics.get().registerMBean();
+
         Scanner scanner = new Scanner(System.in);
         System.out.println("Enter your commands");
         Canvas c = (Canvas) canvas;
@@ -87,8 +211,59 @@ public class ServerLauncher {
                 c.dumpStateToFile();
             } else if (cmd.startsWith("erase snapshots")) {
                 c.eraseSnapshots();
+            } else if (cmd.startsWith("snapshots")) {
+                c.printSnapshotMemory();
+            } else if (cmd.startsWith("queues")) {
+                c.printOutboundStats();
+            } else if (cmd.startsWith("checkpoint")) {
+                c.checkpoint();
+            } else if (cmd.startsWith("rooms") && rooms != null) {
+                rooms.print();
+            } else if (cmd.startsWith("stats")) {
+                ServerMetrics.get().print();
+            } else if (cmd.startsWith("jfr") && recording != null) {
+                recording.dump();
             }
         }
     }
 
+    /**
+     * Makes an executor that starts a new virtual thread for every task, so
+     * blocking reads and sleeps don't hold on to a platform thread. Virtual
+     * threads only exist on JDK 21+, so the factory is looked up reflectively
+     * and the caller falls back to its fixed pool on older runtimes.
+     * @return executor for Drawers and ghost clients, or null without virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            ExecutorService exec = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            System.out.println("Using virtual threads for Drawers and ghost clients");
+            return exec;
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads not supported by this JVM, using a fixed thread pool");
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the optional flag was given on the command line
+     */
+    private static boolean hasFlag(String[] args, String flag) {
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals(flag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the value of an optional --name=value flag, or the default
+     */
+    private static String flagValue(String[] args, String name, String defaultValue) {
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].startsWith(name + "=")) return args[i].substring(name.length() + 1);
+        }
+        return defaultValue;
+    }
+
 }
@@ -0,0 +1,162 @@
+package server.Socket;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Constants and primitive codecs of the binary socket protocol. A client
+ * switches to it by sending the text line BINARY; the server answers with
+ * the text line BINARY_OK and every byte after those two lines is binary
+ * in that direction.
+ *
+ * Every message is a one byte opcode followed by its fields. IDs and
+ * sizes are unsigned varints, coordinates are zigzag varints, a shape
+ * type is its enum ordinal and a color is packed 0xRRGGBB in 3 bytes:
+ *
+ *      Client to server:
+ *          ADD             <shape>
+ *          EDIT            <S#> <type> <rgb> <width> <height>
+ *          REMOVE_MINE, REMOVE_ALL, SAVE_SNAPSHOT, LOAD_SNAPSHOT,
+ *          LOAD_CANVAS, EXIT
+ *          VIEWPORT        <x> <y> <width> <height>
+ *          JOIN            <room>
+ *
+ *      Server to client:
+ *          WELCOME         <ID>
+ *          ADDED, EDITED   <S#> <ID> <shape>
+ *          REMOVED_FROM    <ID>
+ *          REMOVED_ALL
+ *          GETTING_SNAPSHOT, GETTING_CANVAS    <# GOs>
+ *          SH              <S#> <ID> <shape>
+ *          MARK, UNMARK    <S#> <ID>
+ *          REJECTED        <retry after ms>
+ *
+ *      <shape> = <type> <rgb> <width> <height> <x> <y>
+ *      <room>  = <# bytes> <UTF-8 name>
+ *
+ * A VIEWPORT with a width or height of 0 goes back to the whole canvas.
+ */
+public final class BinaryProtocol {
+
+    // Client to server
+    public static final byte ADD = 0x01;
+    public static final byte EDIT = 0x02;
+    public static final byte REMOVE_MINE = 0x03;
+    public static final byte REMOVE_ALL = 0x04;
+    public static final byte SAVE_SNAPSHOT = 0x05;
+    public static final byte LOAD_SNAPSHOT = 0x06;
+    public static final byte LOAD_CANVAS = 0x07;
+    public static final byte EXIT = 0x08;
+    public static final byte VIEWPORT = 0x09;
+    public static final byte JOIN = 0x0A;
+
+    // Server to client
+    public static final byte WELCOME = 0x41;
+    public static final byte ADDED = 0x42;
+    public static final byte EDITED = 0x43;
+    public static final byte REMOVED_FROM = 0x44;
+    public static final byte REMOVED_ALL = 0x45;
+    public static final byte GETTING_SNAPSHOT = 0x46;
+    public static final byte GETTING_CANVAS = 0x47;
+    public static final byte SH = 0x48;
+    public static final byte MARK = 0x49;
+    public static final byte UNMARK = 0x4A;
+    public static final byte REJECTED = 0x4B;
+
+    // Text lines used to negotiate the switch
+    public static final String REQUEST = "BINARY";
+    public static final String ACCEPT = "BINARY_OK";
+
+    // Longest encoding of a varint, a shape and a whole message
+    public static final int MAX_VARINT_SIZE = 10;
+    public static final int MAX_SHAPE_SIZE = 1 + 3 + 4 * 5;
+    public static final int MAX_MESSAGE_SIZE = 1 + 2 * MAX_VARINT_SIZE + MAX_SHAPE_SIZE;
+
+    // Longest string, in UTF-8 bytes
+    public static final int MAX_STRING_SIZE = 256;
+
+    private BinaryProtocol() {}
+
+    /**
+     * Writes an unsigned varint (7 bits per byte, high bit set on all but the last)
+     */
+    public static void putVarLong(ByteBuffer buf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned varint
+     * @throws BufferUnderflowException if the buffer ends before the varint does
+     */
+    public static long getVarLong(ByteBuffer buf) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    public static void putVarInt(ByteBuffer buf, int value) {
+        putVarLong(buf, value & 0xFFFFFFFFL);
+    }
+
+    public static int getVarInt(ByteBuffer buf) {
+        return (int) getVarLong(buf);
+    }
+
+    /**
+     * Writes a signed int so that small negative values stay small
+     */
+    public static void putZigZag(ByteBuffer buf, int value) {
+        putVarInt(buf, (value << 1) ^ (value >> 31));
+    }
+
+    public static int getZigZag(ByteBuffer buf) {
+        int n = getVarInt(buf);
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    public static void putRGB(ByteBuffer buf, int rgb) {
+        buf.put((byte) (rgb >> 16)).put((byte) (rgb >> 8)).put((byte) rgb);
+    }
+
+    public static int getRGB(ByteBuffer buf) {
+        return ((buf.get() & 0xFF) << 16) | ((buf.get() & 0xFF) << 8) | (buf.get() & 0xFF);
+    }
+
+    /**
+     * Writes a string as its length and UTF-8 bytes
+     */
+    public static void putString(ByteBuffer buf, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putVarInt(buf, bytes.length);
+        buf.put(bytes);
+    }
+
+    /**
+     * Reads a string
+     * @throws BufferUnderflowException if the buffer ends before the string does
+     */
+    public static String getString(ByteBuffer buf) {
+        int length = getVarInt(buf);
+        if (length < 0 || length > MAX_STRING_SIZE) {
+            throw new IllegalArgumentException("String too long: " + length);
+        }
+        if (buf.remaining() < length) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,64 @@
+package server.Socket;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Collapses a batch of broadcast messages into the smallest list that
+ * leaves a client in the same state.
+ *
+ * Two rules are applied:
+ *      Everything before the last REMOVED_ALL is dropped, since the
+ *      client clears its shapes when it reads REMOVED_ALL.
+ *
+ *      Only the last MARK/UNMARK of each shape is kept. If that is an
+ *      UNMARK of a shape that was ADDED earlier in the same batch it is
+ *      dropped too, because a newly added shape starts out unmarked.
+ */
+public final class BroadcastBatch {
+
+    private BroadcastBatch() {}
+
+    /**
+     * @param batch messages in the order they were broadcast
+     * @return the coalesced messages, in the same relative order
+     */
+    public static List<SocketMessage> coalesce(List<SocketMessage> batch) {
+        int start = 0;
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            if (batch.get(i).type == SocketMessage.Type.REMOVED_ALL) {
+                start = i;
+                break;
+            }
+        }
+
+        // Index of the last mark message of each shape, and shapes added in this batch
+        HashMap<Long, Integer> lastMark = new HashMap<>();
+        HashSet<Long> added = new HashSet<>();
+        for (int i = start; i < batch.size(); i++) {
+            SocketMessage m = batch.get(i);
+            if (m.type == SocketMessage.Type.MARK || m.type == SocketMessage.Type.UNMARK) {
+                lastMark.put(m.shapeID, i);
+            } else if (m.type == SocketMessage.Type.ADDED) {
+                added.add(m.shapeID);
+            }
+        }
+
+        List<SocketMessage> result = new ArrayList<>(batch.size() - start);
+        for (int i = start; i < batch.size(); i++) {
+            SocketMessage m = batch.get(i);
+            if (m.type == SocketMessage.Type.MARK || m.type == SocketMessage.Type.UNMARK) {
+                if (lastMark.get(m.shapeID) != i) {
+                    continue;
+                }
+                if (m.type == SocketMessage.Type.UNMARK && added.contains(m.shapeID)) {
+                    continue;
+                }
+            }
+            result.add(m);
+        }
+        return result;
+    }
+}
@@ -1,38 +1,233 @@
 package server.Socket;
 
+import server.metrics.DrawerCommandEvent;
+import server.metrics.DrawerWriteEvent;
+import server.metrics.ServerMetrics;
+import server.state.AdmissionRejectedException;
 import server.state.Canvas;
 import server.state.GraphicalObject;
+import server.state.ShapeState;
 
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.Socket;
-import java.util.Scanner;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * The Drawer class represents 1 Socket connection. It holds
  * information on what ID it is connected to, socket information,
  * as well as has a copy of the canvas to make changes to it.
+ *
+ * A Drawer either owns a blocking Socket and runs on its own thread,
+ * or is backed by a non-blocking SocketChannel, in which case a
+ * NioSocketService event loop feeds it input and writes its output.
+ * Either way it speaks the text protocol described in SocketBehavior
+ * until the client asks for the BinaryProtocol.
+ *
+ * Everything sent to the client goes through a bounded outbound queue,
+ * so a client that stops reading never blocks the Canvas broadcast.
+ * When the queue overflows the client is either disconnected or sent a
+ * full copy of the canvas, depending on the SlowConsumerPolicy.
+ *
+ * A change the Canvas's admission policy turns away is answered with
+ * REJECTED, telling the client how long to wait before trying again.
+ *
+ * A client can send VIEWPORT to only hear about its part of the canvas.
+ * Broadcast frames are then filtered for it (see Frame.within), and every
+ * full copy of the canvas it is sent only holds the shapes in the viewport.
+ *
+ * A client starts in the server's main canvas and can send JOIN to move to
+ * another room (see CanvasRegistry). It is then sent the room's shapes, and
+ * everything it sends and hears is about that room.
  */
 public class Drawer implements Runnable {
 
+    // What to do with a client whose outbound queue is full
+    public enum SlowConsumerPolicy { DROP, RESYNC }
+
+    // Default outbound queue size, in frames
+    public static final int DEFAULT_OUTBOUND_CAPACITY = 1024;
+
+    // Most writer threads of blocking Drawers, when the JVM has no virtual threads.
+    // A Drawer has at most one writer running, but a blocked writer holds its
+    // thread, so past this many stalled clients the other writers queue up
+    // until the write timeout frees them.
+    public static final int MAX_WRITER_THREADS = 200;
+
+    // Most threads making the canvas calls of non-blocking Drawers that follow a leader
+    public static final int MAX_FORWARDER_THREADS = 32;
+
+    // Default longest time a writer may block on its client's socket
+    public static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 10_000;
+
+    // Input buffer size, and the longest text line accepted
+    private static final int INPUT_BUFFER_SIZE = 4096;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    // Markers put in the outbound queue: the frames that were discarded, and the switch to binary
+    private static final Frame RESYNC_MARKER = new Frame(Collections.emptyList());
+    private static final Frame BINARY_SWITCH = Frame.of(SocketMessage.binaryOK());
+
+    // Shared outbound settings, set by the launcher
+    private static volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.RESYNC;
+    private static volatile int outboundCapacity = DEFAULT_OUTBOUND_CAPACITY;
+    private static volatile ExecutorService writers = newWriterExecutor();
+    private static volatile long writeTimeoutMillis = DEFAULT_WRITE_TIMEOUT_MILLIS;
+
+    // Runs the canvas calls of non-blocking Drawers whose canvas follows a leader
+    private static final ExecutorService forwarders = newDaemonPool("Drawer-forwarder", MAX_FORWARDER_THREADS);
+
+    // Disconnects clients whose writer has been blocked longer than the write timeout
+    private static final ScheduledExecutorService stallWatch = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Drawer-stall-watch");
+        t.setDaemon(true);
+        return t;
+    });
+
     // Drawer information
     private long ID;
-    private Canvas canvas;
+    // Canvas of the room the client is in; switched by JOIN
+    private volatile Canvas canvas;
 
-    // Socket stuff
+    // Socket stuff (blocking mode)
     private Socket socket;
-    private Scanner input;
-    private PrintWriter output;
+    private OutputStream output;
+
+    // Channel stuff (non-blocking mode)
+    private NioConnection connection;
+
+    // Region of the canvas the client looks at, null for all of it
+    private volatile Rectangle viewport;
 
-    // Output lock
-    private final Object lock;
+    // Input not yet processed, the parser of its text lines, and whether it is binary
+    private ByteBuffer input;
+    private final TextParser parser = new TextParser();
+    private boolean binaryIn;
+
+    // Outbound frames, the first of them, and the flag that keeps one writer running at a time
+    private final ArrayBlockingQueue<Frame> outbound;
+    private final Frame welcome;
+    private final AtomicBoolean writerScheduled;
+    private boolean binaryOut;
+    private volatile boolean disconnected;
+
+    // Canvas calls waiting for a forwarder, and the flag that keeps one running at a time
+    private final ConcurrentLinkedQueue<Runnable> pendingCalls;
+    private final AtomicBoolean callsScheduled;
+
+    // Outbound metrics
+    private final AtomicLong droppedFrames;
+    private final AtomicLong resyncs;
 
     public Drawer(Socket socket, long ID, Canvas canvas) {
+        this(ID, canvas);
         this.socket = socket;
+    }
+
+    public Drawer(SocketChannel channel, long ID, Canvas canvas) {
+        this(ID, canvas);
+        this.connection = new NioConnection(channel, this);
+    }
+
+    private Drawer(long ID, Canvas canvas) {
         this.ID = ID;
         this.canvas = canvas;
-        this.lock = new Object();
+        this.input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+        this.outbound = new ArrayBlockingQueue<>(outboundCapacity);
+        this.writerScheduled = new AtomicBoolean(false);
+        this.pendingCalls = new ConcurrentLinkedQueue<>();
+        this.callsScheduled = new AtomicBoolean(false);
+        this.droppedFrames = new AtomicLong(0);
+        this.resyncs = new AtomicLong(0);
+        // The client expects WELCOME before anything broadcast after it connected
+        this.welcome = Frame.of(SocketMessage.welcome(ID));
+        this.outbound.offer(welcome);
+    }
+
+    /**
+     * Sets what happens to clients that fall too far behind.
+     * @param policy DROP to disconnect them, RESYNC to send them the whole canvas
+     */
+    public static void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+        slowConsumerPolicy = policy;
+    }
+
+    /**
+     * Sets the outbound queue size of Drawers created from now on.
+     * @param capacity maximum number of frames waiting for one client
+     */
+    public static void setOutboundCapacity(int capacity) {
+        outboundCapacity = capacity;
+    }
+
+    /**
+     * Sets the executor that runs the writers of blocking Drawers.
+     * @param exec executor for writer tasks
+     */
+    public static void setWriterExecutor(ExecutorService exec) {
+        writers = exec;
+    }
+
+    /**
+     * Sets how long a writer of a blocking Drawer may block on its client's
+     * socket before the client is treated as stalled and disconnected.
+     * @param millis longest write, in milliseconds
+     */
+    public static void setWriteTimeout(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Write timeout must be positive: " + millis);
+        }
+        writeTimeoutMillis = millis;
+    }
+
+    /**
+     * Writers block on their client's socket, so each needs a thread of its
+     * own while it writes: a virtual thread where the JVM has them (JDK 21+),
+     * otherwise a pooled thread, up to MAX_WRITER_THREADS. Drawers under a
+     * NioSocketService don't use these; their event loop writes for them.
+     */
+    private static ExecutorService newWriterExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return newDaemonPool("Drawer-writer", MAX_WRITER_THREADS);
+        }
+    }
+
+    /**
+     * @return a pool of up to the given number of daemon threads, which end when idle
+     */
+    private static ExecutorService newDaemonPool(String name, int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
     }
 
     /**
@@ -44,7 +239,9 @@ public class Drawer implements Runnable {
             setup();
             processCommands();
         } catch (Exception e){
-            e.printStackTrace();
+            if (!disconnected) {
+                e.printStackTrace();
+            }
         } finally {
             try {
                 canvas.removeSocketConnection(this);
@@ -54,88 +251,513 @@ public class Drawer implements Runnable {
     }
 
     /**
-     * Tell sends a message to the client via socket.
-     * @param message Message to send to client
-     */
-    public void tell(String message) {
-        // Synchronize on a lock so messages come/go in order
-        synchronized (lock) {
-            output.println(message);
-        }
-    }
-
-    /**
-     * Listens for input from socket, does something with command.
-     */
-    private void processCommands() {
-        while(input.hasNextLine()) {
-            // Synchronize on a lock so messages come/go in order
-            synchronized (lock) {
-                var command = input.nextLine();
-                if (command.startsWith("EXIT")) {
-                    // Stops listening for commands so thread can end
-                    return;
-                } else if (command.startsWith("ADD")) {
-                    // Adds shape to canvas
-                    GraphicalObject go = new GraphicalObject(ID, command.substring(4));
-                    canvas.addShape(go);
-                } else if (command.startsWith("EDIT")) {
-                    // Edit shape
-                    String[] commandArgs = command.substring(5).split(":");
-                    String[] shapeArgs = commandArgs[1].split(" ");
-                    long shapeID = Long.parseLong(commandArgs[0]);
-                    GraphicalObject.ShapeType type = null;
-                    switch (shapeArgs[0]) {
-                        case "Circle":
-                            type = GraphicalObject.ShapeType.Circle;
-                            break;
-                        case "Triangle":
-                            type = GraphicalObject.ShapeType.Triangle;
-                            break;
-                        case "Rectangle":
-                            type = GraphicalObject.ShapeType.Rectangle;
-                            break;
+     * Tell sends a frame to the client via socket. It only queues the
+     * frame, so it never blocks on a slow client.
+     * @param frame Messages to send to client
+     */
+    public void tell(Frame frame) {
+        Rectangle region = viewport;
+        if (region != null) {
+            frame = frame.within(region);
+            if (frame.isEmpty()) {
+                return;
+            }
+        }
+        send(frame);
+    }
+
+    /**
+     * Listens for input from socket, does something with each command.
+     * @throws IOException on socket error
+     */
+    private void processCommands() throws IOException {
+        InputStream in = socket.getInputStream();
+        while (true) {
+            int n = in.read(input.array(), input.position(), input.remaining());
+            if (n < 0) {
+                return;
+            }
+            input.position(input.position() + n);
+            if (!processInput()) {
+                // Stops listening for commands so thread can end
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return buffer new input is read into
+     */
+    ByteBuffer getInput() {
+        return input;
+    }
+
+    /**
+     * Processes every complete command in the input buffer and keeps the
+     * rest for the next read. Commands are text lines or binary messages,
+     * depending on what the client negotiated.
+     * @return false if the client asked to exit, true otherwise
+     */
+    boolean processInput() {
+        input.flip();
+        try {
+            while (input.hasRemaining()) {
+                if (binaryIn) {
+                    input.mark();
+                    int start = input.position();
+                    byte opcode = input.get(start);
+                    DrawerCommandEvent event = new DrawerCommandEvent();
+                    event.begin();
+                    try {
+                        if (!processBinaryCommand(input)) {
+                            return false;
+                        }
+                        event.finish(ID, TextParser.commandName(opcode), input.position() - start, outbound);
+                    } catch (BufferUnderflowException e) {
+                        // Only part of the message has arrived
+                        input.reset();
+                        break;
+                    } catch (AdmissionRejectedException e) {
+                        // The whole message was read, so carry on with the next one
+                        reject(e);
+                    }
+                } else {
+                    int start = input.position();
+                    DrawerCommandEvent event = new DrawerCommandEvent();
+                    event.begin();
+                    if (!parser.nextLine(input)) {
+                        break;
                     }
-                    int width = Integer.parseInt(shapeArgs[2]);
-                    int height = Integer.parseInt(shapeArgs[3]);
-                    canvas.editShape(shapeID, ID, type, shapeArgs[1], width, height);
-                } else if (command.startsWith("REMOVE_MINE")) {
-                    // Removes shapes with client ID
-                    canvas.removeAllWithID(ID);
-                } else if (command.startsWith("REMOVE_ALL")) {
-                    // Removes all shapes from canvas
-                    canvas.removeAll(ID);
-                } else if (command.startsWith("SAVE_SNAPSHOT")) {
-                    // Saves a snapshot of the current state of the canvas
-                    System.out.println("Saving snapshot for ID: " + ID);
-                    canvas.saveSnapshot(ID);
-                } else if (command.startsWith("LOAD_SNAPSHOT")) {
-                    // Loads the client's snapshot
-                    ConcurrentHashMap<Long, GraphicalObject> snapshotList = canvas.getSnapshot(ID);
-                    output.println("GETTING_SNAPSHOT " + snapshotList.size());
-                    snapshotList.forEach((shapeID, go) -> output.println("SH " + shapeID + ":" + go.getClientID() + ":" + go));
-                } else if (command.startsWith("LOAD_CANVAS")) {
-                    // Loads the current state of the canvas
-                    ConcurrentHashMap<Long, GraphicalObject> canvasList = canvas.getShapeMap();
-                    output.println("GETTING_CANVAS " + canvasList.size());
-                    canvasList.forEach((shapeID, go) -> output.println("SH " + shapeID + ":" + go.getClientID() + ":" + go));
+                    byte opcode = parser.command();
+                    try {
+                        if (!processTextCommand(opcode)) {
+                            return false;
+                        }
+                        event.finish(ID, TextParser.commandName(opcode), input.position() - start, outbound);
+                    } catch (AdmissionRejectedException e) {
+                        reject(e);
+                    }
+                }
+            }
+        } finally {
+            input.compact();
+        }
+        if (!input.hasRemaining()) {
+            // A text line longer than the buffer
+            if (input.capacity() >= MAX_LINE_LENGTH) {
+                throw new IllegalStateException("Line too long from " + this);
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(input.capacity() * 2);
+            input.flip();
+            bigger.put(input);
+            input = bigger;
+        }
+        return true;
+    }
+
+    private void reject(AdmissionRejectedException e) {
+        send(Frame.of(SocketMessage.rejected(e.getRetryAfterMillis())));
+    }
+
+    /**
+     * Does something with a single text command from the client, reading
+     * its fields from the parser.
+     * @param opcode what the command is, from its first word
+     * @return false if the client asked to exit, true otherwise
+     */
+    private boolean processTextCommand(byte opcode) {
+        switch (opcode) {
+            case BinaryProtocol.ADD:
+                GraphicalObject go = GraphicalObject.readText(ID, parser);
+                onCanvas(target -> target.addShape(go));
+                break;
+            case BinaryProtocol.EDIT:
+                long shapeID = parser.nextLong();
+                GraphicalObject.ShapeType type = parser.nextShapeType();
+                Color color = parser.nextColor();
+                int width = ShapeState.clampSize(parser.nextInt());
+                int height = ShapeState.clampSize(parser.nextInt());
+                onCanvas(target -> target.editShape(shapeID, ID, type, color, width, height));
+                break;
+            case BinaryProtocol.VIEWPORT:
+                // Only hear about one region of the canvas (no region is all of it)
+                if (!parser.hasMore()) {
+                    setViewport(0, 0, 0, 0);
+                } else {
+                    setViewport(parser.nextInt(), parser.nextInt(), parser.nextInt(), parser.nextInt());
+                }
+                break;
+            case BinaryProtocol.JOIN:
+                join(parser.rest());
+                break;
+            case TextParser.BINARY_REQUEST:
+                // Everything after this line is binary, both ways
+                binaryIn = true;
+                send(BINARY_SWITCH);
+                break;
+            default:
+                // Commands with no fields (unknown ones are ignored)
+                return processCommand(opcode);
+        }
+        return true;
+    }
+
+    /**
+     * Does something with a command that has no fields, the same in text
+     * and binary.
+     * @param opcode what the command is
+     * @return false if the client asked to exit, true otherwise
+     */
+    private boolean processCommand(byte opcode) {
+        switch (opcode) {
+            case BinaryProtocol.EXIT:
+                return false;
+            case BinaryProtocol.REMOVE_MINE:
+                // Removes shapes with client ID
+                onCanvas(target -> target.removeAllWithID(ID));
+                break;
+            case BinaryProtocol.REMOVE_ALL:
+                // Removes all shapes from canvas
+                onCanvas(target -> target.removeAll(ID));
+                break;
+            case BinaryProtocol.SAVE_SNAPSHOT:
+                // Saves a snapshot of the current state of the canvas
+                System.out.println("Saving snapshot for ID: " + ID);
+                onCanvas(target -> target.saveSnapshot(ID));
+                break;
+            case BinaryProtocol.LOAD_SNAPSHOT:
+                // Loads the client's snapshot
+                onCanvas(target -> {
+                    var snapshot = target.getSnapshot(ID);
+                    send(Frame.shapeList(SocketMessage.gettingSnapshot(snapshot.size()), snapshot));
+                });
+                break;
+            case BinaryProtocol.LOAD_CANVAS:
+                // Loads the current state of the canvas
+                var shapes = canvas.getShapesInRegion(viewport);
+                send(Frame.shapeList(SocketMessage.gettingCanvas(shapes.size()), shapes));
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Makes a call on the client's canvas. A follower makes its changes on
+     * the leader, over RMI, so when an event loop reads this client its
+     * calls are handed to a forwarder instead of blocking every other
+     * client of the loop. They still run one at a time, in order.
+     * @param call what to do with the canvas the client is in now
+     * @throws AdmissionRejectedException if the call is made right away and turned away
+     */
+    private void onCanvas(Consumer<Canvas> call) {
+        Canvas target = canvas;
+        if (connection == null || !target.isFollower()) {
+            call.accept(target);
+            return;
+        }
+        pendingCalls.add(() -> {
+            try {
+                call.accept(target);
+            } catch (AdmissionRejectedException e) {
+                reject(e);
+            }
+        });
+        if (callsScheduled.compareAndSet(false, true)) {
+            forwarders.execute(this::runPendingCalls);
+        }
+    }
+
+    /**
+     * Forwarder task of a non-blocking Drawer. Makes every waiting canvas
+     * call, then exits unless more arrived meanwhile.
+     */
+    private void runPendingCalls() {
+        do {
+            Runnable call;
+            while ((call = pendingCalls.poll()) != null) {
+                try {
+                    call.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
                 }
             }
+            callsScheduled.set(false);
+        } while (!pendingCalls.isEmpty() && callsScheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Moves to another room, and loads its canvas
+     * @param room name of the room
+     */
+    private void join(String room) {
+        try {
+            canvas = canvas.joinRoom(this, room);
+        } catch (IllegalArgumentException | UncheckedIOException e) {
+            System.out.println("Client " + ID + " cannot join " + room + ": " + e.getMessage());
         }
+        processCommand(BinaryProtocol.LOAD_CANVAS);
     }
 
     /**
-     * Sets up input and output from socket, as well as tells the user it's
-     * ID and current state of the canvas.
+     * Decodes and does something with a single binary command. Nothing is
+     * changed unless the whole command is in the buffer.
+     * @param buf input positioned at the opcode
+     * @return false if the client asked to exit, true otherwise
+     * @throws BufferUnderflowException if only part of the command is in the buffer
+     */
+    private boolean processBinaryCommand(ByteBuffer buf) {
+        byte opcode = buf.get();
+        switch (opcode) {
+            case BinaryProtocol.ADD:
+                GraphicalObject go = GraphicalObject.readBinary(ID, buf);
+                onCanvas(target -> target.addShape(go));
+                break;
+            case BinaryProtocol.EDIT:
+                long shapeID = BinaryProtocol.getVarLong(buf);
+                GraphicalObject.ShapeType type = GraphicalObject.ShapeType.values()[buf.get()];
+                Color color = new Color(BinaryProtocol.getRGB(buf));
+                int width = ShapeState.clampSize(BinaryProtocol.getVarInt(buf));
+                int height = ShapeState.clampSize(BinaryProtocol.getVarInt(buf));
+                onCanvas(target -> target.editShape(shapeID, ID, type, color, width, height));
+                break;
+            case BinaryProtocol.EXIT:
+            case BinaryProtocol.REMOVE_MINE:
+            case BinaryProtocol.REMOVE_ALL:
+            case BinaryProtocol.SAVE_SNAPSHOT:
+            case BinaryProtocol.LOAD_SNAPSHOT:
+            case BinaryProtocol.LOAD_CANVAS:
+                return processCommand(opcode);
+            case BinaryProtocol.VIEWPORT:
+                int x = BinaryProtocol.getZigZag(buf);
+                int y = BinaryProtocol.getZigZag(buf);
+                int regionWidth = BinaryProtocol.getVarInt(buf);
+                int regionHeight = BinaryProtocol.getVarInt(buf);
+                setViewport(x, y, regionWidth, regionHeight);
+                break;
+            case BinaryProtocol.JOIN:
+                join(BinaryProtocol.getString(buf));
+                break;
+            default:
+                throw new IllegalStateException("Unknown opcode " + opcode + " from " + this);
+        }
+        return true;
+    }
+
+    /**
+     * Changes the region the client hears about, and sends it the shapes
+     * in the new region.
+     * @param width width of the region, 0 for the whole canvas
+     * @param height height of the region, 0 for the whole canvas
+     */
+    private void setViewport(int x, int y, int width, int height) {
+        // Set before the shapes are copied, so nothing added meanwhile is filtered out and missed
+        viewport = width > 0 && height > 0 ? new Rectangle(x, y, width, height) : null;
+        processCommand(BinaryProtocol.LOAD_CANVAS);
+    }
+
+    /**
+     * Sets up output to the socket, and tells the user the current state of the canvas.
      * @throws IOException on input/output error
      */
     private void setup() throws IOException {
-        input = new Scanner(socket.getInputStream());
-        output = new PrintWriter(socket.getOutputStream(), true);
+        output = new BufferedOutputStream(socket.getOutputStream());
+        greet();
+    }
+
+    /**
+     * Tells the user the current state of the canvas. The WELCOME message is
+     * already at the head of the queue.
+     */
+    void greet() {
+        var shapes = canvas.getShapeMap();
+        if (shapes.isEmpty()) {
+            scheduleWrite();
+            return;
+        }
+        List<SocketMessage> added = new ArrayList<>(shapes.size());
+        shapes.forEach((shapeID, go) -> added.add(SocketMessage.added(shapeID, go)));
+        send(new Frame(added));
+    }
+
+    /**
+     * Queues a frame for the client and makes sure a writer will pick it up.
+     * Handles overflow as a slow consumer.
+     * @param frame messages to send
+     */
+    private void send(Frame frame) {
+        // Frames are queued under the queue's lock, so none can slip in
+        // between a resync's clear and the frames that replace what it cleared
+        boolean drop = false;
+        synchronized (outbound) {
+            if (disconnected) {
+                return;
+            }
+            if (!outbound.offer(frame)) {
+                droppedFrames.incrementAndGet();
+                if (slowConsumerPolicy == SlowConsumerPolicy.DROP) {
+                    // Nothing more is queued once it is marked disconnected
+                    disconnected = true;
+                    drop = true;
+                } else {
+                    // Everything queued is superseded by a full copy of the canvas
+                    // (an unsent WELCOME or switch to binary has to survive the clear)
+                    boolean welcomePending = outbound.peek() == welcome;
+                    boolean switchPending = outbound.contains(BINARY_SWITCH);
+                    droppedFrames.addAndGet(outbound.size());
+                    outbound.clear();
+                    resyncs.incrementAndGet();
+                    if (welcomePending) {
+                        outbound.offer(welcome);
+                    }
+                    if (switchPending) {
+                        outbound.offer(BINARY_SWITCH);
+                    }
+                    outbound.offer(RESYNC_MARKER);
+                }
+            }
+        }
+        if (drop) {
+            System.out.println("Dropping slow consumer: " + this);
+            disconnect();
+            return;
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * Makes sure the queued frames will be written: the event loop is asked
+     * for write interest, or a writer task is started if none is running.
+     */
+    private void scheduleWrite() {
+        if (connection != null) {
+            connection.requestWrite();
+        } else if (output != null && writerScheduled.compareAndSet(false, true)) {
+            writers.execute(this::drainOutbound);
+        }
+    }
+
+    /**
+     * Takes the next frame to write and encodes it in the format the client
+     * reads. A resync marker becomes the current state of the canvas.
+     * Only called by the single writer of this Drawer.
+     * @return bytes of the next frame, or null if the queue is empty
+     */
+    byte[] pollOutbound() {
+        Frame frame = outbound.poll();
+        if (frame == null) {
+            return null;
+        }
+        if (frame == RESYNC_MARKER) {
+            var shapes = canvas.getShapesInRegion(viewport);
+            frame = Frame.shapeList(SocketMessage.gettingCanvas(shapes.size()), shapes);
+        }
+        byte[] bytes = frame.bytes(binaryOut);
+        if (frame == BINARY_SWITCH) {
+            binaryOut = true;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writer task of a blocking Drawer. Writes every queued frame and
+     * flushes once, then exits unless more frames arrived meanwhile.
+     * A socket has no write timeout, so a watch closes it if the writer
+     * is still blocked after the write timeout.
+     */
+    private void drainOutbound() {
+        do {
+            ScheduledFuture<?> watch = stallWatch.schedule(this::writeStalled, writeTimeoutMillis, TimeUnit.MILLISECONDS);
+            try {
+                DrawerWriteEvent event = new DrawerWriteEvent();
+                event.begin();
+                long start = System.nanoTime();
+                long written = 0;
+                byte[] bytes;
+                while ((bytes = pollOutbound()) != null) {
+                    output.write(bytes);
+                    written += bytes.length;
+                }
+                output.flush();
+                ServerMetrics.get().drawerWriteMicros.record((System.nanoTime() - start) / 1000);
+                event.finish(ID, written);
+            } catch (IOException e) {
+                disconnect();
+                return;
+            } finally {
+                watch.cancel(false);
+            }
+            writerScheduled.set(false);
+        } while (!outbound.isEmpty() && writerScheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Drops a client whose writer is still blocked after the write timeout.
+     * Closing the socket makes the blocked write fail, freeing its thread.
+     */
+    private void writeStalled() {
+        System.out.println("Dropping stalled client: " + this);
+        disconnect();
+    }
+
+    /**
+     * Closes the connection from the server side.
+     */
+    private void disconnect() {
+        synchronized (outbound) {
+            disconnected = true;
+            outbound.clear();
+        }
+        if (connection != null) {
+            connection.close();
+            canvas.removeSocketConnection(this);
+        } else {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * @return the channel state when running under a NioSocketService,
+     * null for a blocking Drawer
+     */
+    NioConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * @return canvas of the room the client is in
+     */
+    public Canvas getCanvas() {
+        return canvas;
+    }
 
-        output.println("WELCOME " + ID);
-        canvas.getShapeMap().forEach((shapeID, go) ->
-                output.println("ADDED " + shapeID + ":" + go.getClientID() + ":" + go));
+    /**
+     * @return ID of the client
+     */
+    public long getID() {
+        return ID;
+    }
+
+    /**
+     * @return number of frames waiting to be written
+     */
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    /**
+     * @return number of frames discarded because the queue was full
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * @return number of times the client was sent the whole canvas after falling behind
+     */
+    public long getResyncs() {
+        return resyncs.get();
     }
 
     @Override
@@ -0,0 +1,115 @@
+package server.Socket;
+
+import server.state.GraphicalObject;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A group of messages written to a socket client with a single flush.
+ * Each wire format is encoded at most once, so a broadcast frame shared
+ * by every Drawer costs one encoding per format rather than one per client.
+ */
+public final class Frame {
+
+    private final List<SocketMessage> messages;
+
+    // Encoded forms, made on first use
+    private volatile byte[] text;
+    private volatile byte[] binary;
+
+    public Frame(List<SocketMessage> messages) {
+        this.messages = messages;
+    }
+
+    public static Frame of(SocketMessage message) {
+        return new Frame(Collections.singletonList(message));
+    }
+
+    /**
+     * Builds a GETTING_* header followed by one SH message per shape.
+     * @param header GETTING_CANVAS or GETTING_SNAPSHOT message
+     * @param shapes shapes to list
+     * @return frame holding the whole list
+     */
+    static Frame shapeList(SocketMessage header, Map<Long, GraphicalObject> shapes) {
+        List<SocketMessage> list = new ArrayList<>(shapes.size() + 1);
+        list.add(header);
+        shapes.forEach((shapeID, go) -> list.add(SocketMessage.sh(shapeID, go)));
+        return new Frame(list);
+    }
+
+    /**
+     * Leaves out the shapes added outside a client's viewport. Edits are
+     * kept, since an edit can shrink a shape out of the viewport and the
+     * client has to drop it then.
+     * @param viewport region the client looks at
+     * @return this frame if nothing was left out, otherwise a new frame
+     */
+    public Frame within(Rectangle viewport) {
+        List<SocketMessage> kept = null;
+        for (int i = 0; i < messages.size(); i++) {
+            SocketMessage m = messages.get(i);
+            boolean outside = m.type == SocketMessage.Type.ADDED && !m.shape.intersects(viewport);
+            if (outside && kept == null) {
+                kept = new ArrayList<>(messages.subList(0, i));
+            } else if (!outside && kept != null) {
+                kept.add(m);
+            }
+        }
+        return kept == null ? this : new Frame(kept);
+    }
+
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    /**
+     * @param binaryFormat true for the binary protocol, false for text lines
+     * @return the frame encoded in that format
+     */
+    public byte[] bytes(boolean binaryFormat) {
+        if (binaryFormat) {
+            byte[] b = binary;
+            if (b == null) {
+                binary = b = encodeBinary();
+            }
+            return b;
+        }
+        byte[] t = text;
+        if (t == null) {
+            text = t = encodeText();
+        }
+        return t;
+    }
+
+    private byte[] encodeText() {
+        StringBuilder sb = new StringBuilder(messages.size() * 32);
+        for (SocketMessage m : messages) {
+            m.appendText(sb);
+            sb.append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] encodeBinary() {
+        ByteBuffer buf = ByteBuffer.allocate(messages.size() * BinaryProtocol.MAX_MESSAGE_SIZE);
+        for (SocketMessage m : messages) {
+            m.writeBinary(buf);
+        }
+        byte[] b = new byte[buf.position()];
+        buf.flip();
+        buf.get(b);
+        return b;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes(false), StandardCharsets.UTF_8);
+    }
+}
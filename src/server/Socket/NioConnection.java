@@ -0,0 +1,143 @@
+package server.Socket;
+
+import server.metrics.DrawerWriteEvent;
+import server.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Per-channel state for a Drawer served by a NioSocketService event
+ * loop. It reads into the Drawer's input buffer and writes the Drawer's
+ * outbound frames when the channel is writable.
+ */
+class NioConnection {
+
+    private final SocketChannel channel;
+    private final Drawer drawer;
+
+    // Set once the channel is registered with an event loop
+    private volatile NioSocketService.EventLoop loop;
+    private SelectionKey key;
+
+    // Output: the frame being written and whether write interest was requested
+    private ByteBuffer current;
+    private final AtomicBoolean writeRequested;
+
+    NioConnection(SocketChannel channel, Drawer drawer) {
+        this.channel = channel;
+        this.drawer = drawer;
+        this.writeRequested = new AtomicBoolean(false);
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    Drawer getDrawer() {
+        return drawer;
+    }
+
+    /**
+     * Called by the event loop once the channel has been registered.
+     * @param loop loop that owns the channel
+     * @param key selection key of the channel
+     */
+    void registered(NioSocketService.EventLoop loop, SelectionKey key) {
+        this.key = key;
+        this.loop = loop;
+        requestWrite();
+    }
+
+    /**
+     * Asks the event loop to write the Drawer's queued frames. Safe to call
+     * from any thread.
+     */
+    void requestWrite() {
+        NioSocketService.EventLoop l = loop;
+        if (l != null && writeRequested.compareAndSet(false, true)) {
+            l.requestWrite(this);
+        }
+    }
+
+    /**
+     * Turns on write interest. Runs on the event loop thread.
+     */
+    void enableWrite() {
+        writeRequested.set(false);
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Reads what is available and lets the Drawer process the complete
+     * commands. Runs on the event loop thread.
+     * @return false if the connection should be closed
+     * @throws IOException on channel error
+     */
+    boolean read() throws IOException {
+        if (channel.read(drawer.getInput()) < 0) {
+            return false;
+        }
+        return drawer.processInput();
+    }
+
+    /**
+     * Writes as many queued frames as the channel accepts. Runs on the
+     * event loop thread.
+     * @throws IOException on channel error
+     */
+    void write() throws IOException {
+        DrawerWriteEvent event = new DrawerWriteEvent();
+        event.begin();
+        long start = System.nanoTime();
+        long written = 0;
+        try {
+            written = writeQueued();
+        } finally {
+            ServerMetrics.get().drawerWriteMicros.record((System.nanoTime() - start) / 1000);
+            event.finish(drawer.getID(), written);
+        }
+    }
+
+    /**
+     * @return bytes written
+     */
+    private long writeQueued() throws IOException {
+        long written = 0;
+        while (true) {
+            if (current == null) {
+                byte[] frame = drawer.pollOutbound();
+                if (frame == null) {
+                    break;
+                }
+                current = ByteBuffer.wrap(frame);
+            }
+            written += channel.write(current);
+            if (current.hasRemaining()) {
+                // Socket buffer is full, wait for the next OP_WRITE
+                return written;
+            }
+            current = null;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        // A frame may have been queued after the loop above ended
+        if (drawer.getQueueDepth() > 0) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        return written;
+    }
+
+    void close() {
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+}
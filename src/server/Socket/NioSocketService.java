@@ -0,0 +1,157 @@
+package server.Socket;
+
+import server.state.CanvasInterface;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Starts the socket service in non-blocking mode. Instead of one thread
+ * per Drawer, a fixed number of event loops multiplex every connection
+ * with a Selector, so the number of clients is no longer tied to the
+ * size of a thread pool. It speaks the same line protocol as the
+ * blocking SocketService.
+ */
+public class NioSocketService {
+
+    /**
+     * Accepts connections forever and spreads them over the event loops.
+     * @param listener The server channel waiting for connections
+     * @param c The shared Canvas object
+     * @param numLoops number of event loop threads
+     * @throws IOException on socket error
+     */
+    public static void start(ServerSocketChannel listener, CanvasInterface c, int numLoops) throws IOException {
+        EventLoop[] loops = new EventLoop[Math.max(1, numLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(c);
+            Thread t = new Thread(loops[i], "NioSocketService-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        listener.configureBlocking(true);
+        int next = 0;
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            // new connection
+            SocketChannel channel = listener.accept();
+            Drawer drawer;
+            try {
+                channel.configureBlocking(false);
+                drawer = c.newSocketConnection(channel);
+            } catch (IOException | RuntimeException e) {
+                // Such as a follower that cannot reach its leader for an ID; keep accepting
+                System.out.println("Cannot take connection: " + e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+                continue;
+            }
+            loops[next].register(drawer.getConnection());
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    /**
+     * One selector thread. New channels and write requests from other
+     * threads are handed over through queues and a selector wakeup.
+     */
+    static class EventLoop implements Runnable {
+
+        private final CanvasInterface canvas;
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<NioConnection> newConnections;
+        private final ConcurrentLinkedQueue<NioConnection> pendingWrites;
+
+        EventLoop(CanvasInterface canvas) throws IOException {
+            this.canvas = canvas;
+            this.selector = Selector.open();
+            this.newConnections = new ConcurrentLinkedQueue<>();
+            this.pendingWrites = new ConcurrentLinkedQueue<>();
+        }
+
+        void register(NioConnection connection) {
+            newConnections.add(connection);
+            selector.wakeup();
+        }
+
+        void requestWrite(NioConnection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                //noinspection InfiniteLoopStatement
+                while (true) {
+                    selector.select();
+                    registerNewConnections();
+                    enablePendingWrites();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void registerNewConnections() {
+            NioConnection connection;
+            while ((connection = newConnections.poll()) != null) {
+                // One client that can't be set up doesn't stop the loop
+                try {
+                    SelectionKey key = connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+                    connection.registered(this, key);
+                    connection.getDrawer().greet();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    close(connection);
+                }
+            }
+        }
+
+        private void enablePendingWrites() {
+            NioConnection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                connection.enableWrite();
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            NioConnection connection = (NioConnection) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable() && !connection.read()) {
+                    close(connection);
+                    return;
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.write();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                close(connection);
+            }
+        }
+
+        private void close(NioConnection connection) {
+            // The client may have moved to another room since it connected
+            Drawer drawer = connection.getDrawer();
+            drawer.getCanvas().removeSocketConnection(drawer);
+            connection.close();
+        }
+    }
+
+}
@@ -0,0 +1,196 @@
+package server.Socket;
+
+import server.state.CanvasChange;
+import server.state.GraphicalObject;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One message from the server to a socket client. Messages are kept in
+ * this form until they are written, so that a broadcast batch can be
+ * coalesced first and then encoded once per wire format.
+ */
+public final class SocketMessage {
+
+    public enum Type { WELCOME, ADDED, EDITED, REMOVED_FROM, REMOVED_ALL,
+        GETTING_SNAPSHOT, GETTING_CANVAS, SH, MARK, UNMARK, REJECTED, BINARY_OK }
+
+    final Type type;
+    final long shapeID;
+
+    // Client ID, the shape count of a GETTING_* message, or the retry delay of a REJECTED one
+    final long clientID;
+
+    // Shape as it was when the message was made (ADDED, EDITED and SH only)
+    final GraphicalObject shape;
+
+    private SocketMessage(Type type, long shapeID, long clientID, GraphicalObject shape) {
+        this.type = type;
+        this.shapeID = shapeID;
+        this.clientID = clientID;
+        this.shape = shape;
+    }
+
+    /**
+     * @param change change recorded by the Canvas
+     * @return the message that tells socket clients about it
+     */
+    public static SocketMessage of(CanvasChange change) {
+        switch (change.getKind()) {
+            case ADDED:
+                return new SocketMessage(Type.ADDED, change.getShapeID(), change.getClientID(), change.getShape());
+            case EDITED:
+                return new SocketMessage(Type.EDITED, change.getShapeID(), change.getClientID(), change.getShape());
+            case REMOVED_FROM:
+                return removedFrom(change.getClientID());
+            case REMOVED_ALL:
+                return removedAll();
+            case MARK:
+                return mark(change.getShapeID(), change.getClientID());
+            case UNMARK:
+                return unmark(change.getShapeID(), change.getClientID());
+            default:
+                throw new IllegalArgumentException("Unknown change " + change);
+        }
+    }
+
+    public static SocketMessage welcome(long clientID) {
+        return new SocketMessage(Type.WELCOME, 0, clientID, null);
+    }
+
+    public static SocketMessage added(long shapeID, GraphicalObject go) {
+        GraphicalObject copy = go.clone();
+        return new SocketMessage(Type.ADDED, shapeID, copy.getClientID(), copy);
+    }
+
+    public static SocketMessage edited(long shapeID, GraphicalObject go) {
+        GraphicalObject copy = go.clone();
+        return new SocketMessage(Type.EDITED, shapeID, copy.getClientID(), copy);
+    }
+
+    public static SocketMessage removedFrom(long clientID) {
+        return new SocketMessage(Type.REMOVED_FROM, 0, clientID, null);
+    }
+
+    public static SocketMessage removedAll() {
+        return new SocketMessage(Type.REMOVED_ALL, 0, 0, null);
+    }
+
+    public static SocketMessage gettingSnapshot(int count) {
+        return new SocketMessage(Type.GETTING_SNAPSHOT, 0, count, null);
+    }
+
+    public static SocketMessage gettingCanvas(int count) {
+        return new SocketMessage(Type.GETTING_CANVAS, 0, count, null);
+    }
+
+    /**
+     * A shape of a GETTING_* list. The shape is not copied, since the
+     * list is written right away.
+     */
+    public static SocketMessage sh(long shapeID, GraphicalObject go) {
+        return new SocketMessage(Type.SH, shapeID, go.getClientID(), go);
+    }
+
+    public static SocketMessage mark(long shapeID, long clientID) {
+        return new SocketMessage(Type.MARK, shapeID, clientID, null);
+    }
+
+    public static SocketMessage unmark(long shapeID, long clientID) {
+        return new SocketMessage(Type.UNMARK, shapeID, clientID, null);
+    }
+
+    /**
+     * Tells a client its last change was turned away by the admission policy
+     * @param retryAfterMillis how long the client should wait before trying again
+     */
+    public static SocketMessage rejected(long retryAfterMillis) {
+        return new SocketMessage(Type.REJECTED, 0, retryAfterMillis, null);
+    }
+
+    static SocketMessage binaryOK() {
+        return new SocketMessage(Type.BINARY_OK, 0, 0, null);
+    }
+
+    /**
+     * Appends the text protocol line of this message (see SocketBehavior).
+     * @param sb builder the line is appended to
+     */
+    void appendText(StringBuilder sb) {
+        sb.append(type.name());
+        switch (type) {
+            case ADDED:
+            case EDITED:
+            case SH:
+                sb.append(' ').append(shapeID).append(':').append(clientID).append(':').append(shape);
+                break;
+            case MARK:
+            case UNMARK:
+                sb.append(' ').append(shapeID).append(':').append(clientID);
+                break;
+            case WELCOME:
+            case REMOVED_FROM:
+            case GETTING_SNAPSHOT:
+            case GETTING_CANVAS:
+            case REJECTED:
+                sb.append(' ').append(clientID);
+                break;
+            case REMOVED_ALL:
+            case BINARY_OK:
+                break;
+        }
+    }
+
+    /**
+     * Writes the binary protocol encoding of this message, at most
+     * BinaryProtocol.MAX_MESSAGE_SIZE bytes.
+     * @param buf buffer to write to
+     */
+    void writeBinary(ByteBuffer buf) {
+        switch (type) {
+            case WELCOME:
+                buf.put(BinaryProtocol.WELCOME);
+                BinaryProtocol.putVarLong(buf, clientID);
+                break;
+            case ADDED:
+            case EDITED:
+            case SH:
+                buf.put(type == Type.ADDED ? BinaryProtocol.ADDED : type == Type.EDITED ? BinaryProtocol.EDITED : BinaryProtocol.SH);
+                BinaryProtocol.putVarLong(buf, shapeID);
+                BinaryProtocol.putVarLong(buf, clientID);
+                shape.writeBinary(buf);
+                break;
+            case REMOVED_FROM:
+                buf.put(BinaryProtocol.REMOVED_FROM);
+                BinaryProtocol.putVarLong(buf, clientID);
+                break;
+            case REMOVED_ALL:
+                buf.put(BinaryProtocol.REMOVED_ALL);
+                break;
+            case GETTING_SNAPSHOT:
+            case GETTING_CANVAS:
+                buf.put(type == Type.GETTING_CANVAS ? BinaryProtocol.GETTING_CANVAS : BinaryProtocol.GETTING_SNAPSHOT);
+                BinaryProtocol.putVarLong(buf, clientID);
+                break;
+            case MARK:
+            case UNMARK:
+                buf.put(type == Type.MARK ? BinaryProtocol.MARK : BinaryProtocol.UNMARK);
+                BinaryProtocol.putVarLong(buf, shapeID);
+                BinaryProtocol.putVarLong(buf, clientID);
+                break;
+            case REJECTED:
+                buf.put(BinaryProtocol.REJECTED);
+                BinaryProtocol.putVarLong(buf, clientID);
+                break;
+            case BINARY_OK:
+                throw new IllegalStateException("BINARY_OK is only sent as text");
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        appendText(sb);
+        return sb.toString();
+    }
+}
@@ -5,7 +5,7 @@ import server.state.CanvasInterface;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Starts the socket service.
@@ -14,16 +14,27 @@ public class SocketService {
 
     /**
      * Waits for a new connection, makes a Drawer and starts running it
+     * @param threadPool executor that runs each Drawer
      * @param listener The server waiting for connections
      * @param c The shared Canvas object
      * @throws IOException on socket error
      */
-    public static void start(ThreadPoolExecutor threadPool, ServerSocket listener, CanvasInterface c) throws IOException {
+    public static void start(ExecutorService threadPool, ServerSocket listener, CanvasInterface c) throws IOException {
         //noinspection InfiniteLoopStatement
         while (true) {
             // new connection
             Socket socket = listener.accept();
-            Drawer drawer = c.newSocketConnection(socket);
+            Drawer drawer;
+            try {
+                drawer = c.newSocketConnection(socket);
+            } catch (RuntimeException e) {
+                // Such as a follower that cannot reach its leader for an ID; keep accepting
+                System.out.println("Cannot take connection: " + e);
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+                continue;
+            }
             threadPool.submit(drawer);
         }
     }
@@ -0,0 +1,259 @@
+package server.Socket;
+
+import server.state.GraphicalObject;
+
+import java.awt.Color;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the text socket protocol (see SocketBehavior) straight out of an
+ * input buffer. A line's first word is turned into the opcode of the same
+ * message in the BinaryProtocol, so text and binary input can share one
+ * switch, and its fields are read as primitives, shape types and colors
+ * without making a String or array for each line.
+ *
+ * Fields are separated by spaces or colons, so "EDIT 7:Circle Red 10 20"
+ * reads as EDIT, 7, Circle, Red, 10, 20. A parser keeps no state between
+ * lines, and is used by one thread at a time.
+ */
+public final class TextParser {
+
+    // Opcodes of the lines that negotiate the binary protocol, and of words that aren't a command
+    public static final byte BINARY_REQUEST = 0x20;
+    public static final byte BINARY_ACCEPT = 0x21;
+    public static final byte UNKNOWN = 0x00;
+
+    // First words of every message, in either direction, and their opcodes
+    private static final String[] COMMANDS = {
+            "ADD", "EDIT", "REMOVE_MINE", "REMOVE_ALL", "SAVE_SNAPSHOT", "LOAD_SNAPSHOT", "LOAD_CANVAS",
+            "EXIT", "VIEWPORT", "JOIN", BinaryProtocol.REQUEST,
+            "WELCOME", "ADDED", "EDITED", "REMOVED_FROM", "REMOVED_ALL", "GETTING_SNAPSHOT", "GETTING_CANVAS",
+            "SH", "MARK", "UNMARK", "REJECTED", BinaryProtocol.ACCEPT
+    };
+    private static final byte[] OPCODES = {
+            BinaryProtocol.ADD, BinaryProtocol.EDIT, BinaryProtocol.REMOVE_MINE, BinaryProtocol.REMOVE_ALL,
+            BinaryProtocol.SAVE_SNAPSHOT, BinaryProtocol.LOAD_SNAPSHOT, BinaryProtocol.LOAD_CANVAS,
+            BinaryProtocol.EXIT, BinaryProtocol.VIEWPORT, BinaryProtocol.JOIN, BINARY_REQUEST,
+            BinaryProtocol.WELCOME, BinaryProtocol.ADDED, BinaryProtocol.EDITED, BinaryProtocol.REMOVED_FROM,
+            BinaryProtocol.REMOVED_ALL, BinaryProtocol.GETTING_SNAPSHOT, BinaryProtocol.GETTING_CANVAS,
+            BinaryProtocol.SH, BinaryProtocol.MARK, BinaryProtocol.UNMARK, BinaryProtocol.REJECTED, BINARY_ACCEPT
+    };
+    private static final byte[][] COMMAND_BYTES = encode(COMMANDS);
+    private static final String[] COMMAND_NAMES = new String[128];
+
+    // Names of the shape types and colors, as GraphicalObject writes them
+    private static final GraphicalObject.ShapeType[] SHAPE_TYPES = GraphicalObject.ShapeType.values();
+    private static final byte[][] SHAPE_TYPE_BYTES = new byte[SHAPE_TYPES.length][];
+    private static final String[] COLOR_NAMES = {"Black", "Red", "Green", "Blue"};
+    private static final byte[][] COLOR_BYTES = encode(COLOR_NAMES);
+    private static final Color[] COLORS = new Color[COLOR_NAMES.length];
+
+    static {
+        for (int i = 0; i < OPCODES.length; i++) {
+            COMMAND_NAMES[OPCODES[i]] = COMMANDS[i];
+        }
+        for (int i = 0; i < SHAPE_TYPES.length; i++) {
+            SHAPE_TYPE_BYTES[i] = SHAPE_TYPES[i].toString().getBytes(StandardCharsets.US_ASCII);
+        }
+        for (int i = 0; i < COLOR_NAMES.length; i++) {
+            COLORS[i] = GraphicalObject.colorForName(COLOR_NAMES[i]);
+        }
+    }
+
+    // The line being read: the buffer, where the line starts, the next byte
+    // to read, and where the line ends (without its terminator)
+    private ByteBuffer buf;
+    private int start;
+    private int pos;
+    private int end;
+
+    private static byte[][] encode(String[] words) {
+        byte[][] bytes = new byte[words.length][];
+        for (int i = 0; i < words.length; i++) {
+            bytes[i] = words[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return bytes;
+    }
+
+    /**
+     * Starts reading the next line of a buffer (in read mode), and moves
+     * the buffer past it
+     * @return false if no whole line has arrived, leaving the buffer as it was
+     */
+    public boolean nextLine(ByteBuffer buf) {
+        int limit = buf.limit();
+        for (int i = buf.position(); i < limit; i++) {
+            if (buf.get(i) == '\n') {
+                this.buf = buf;
+                this.start = buf.position();
+                this.pos = start;
+                this.end = i > start && buf.get(i - 1) == '\r' ? i - 1 : i;
+                buf.position(i + 1);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the first word of the line
+     * @return opcode of the message, UNKNOWN if it isn't one
+     */
+    public byte command() {
+        int wordEnd = wordEnd();
+        for (int i = 0; i < COMMAND_BYTES.length; i++) {
+            if (wordIs(COMMAND_BYTES[i], wordEnd)) {
+                pos = wordEnd;
+                return OPCODES[i];
+            }
+        }
+        pos = wordEnd;
+        return UNKNOWN;
+    }
+
+    /**
+     * @return the first word of messages with the opcode, for logging
+     */
+    public static String commandName(byte opcode) {
+        String name = opcode >= 0 ? COMMAND_NAMES[opcode] : null;
+        return name != null ? name : "UNKNOWN";
+    }
+
+    /**
+     * @return whether the line has another field
+     */
+    public boolean hasMore() {
+        skipSeparators();
+        return pos < end;
+    }
+
+    /**
+     * Reads a decimal long
+     * @throws NumberFormatException if the next field isn't one
+     */
+    public long nextLong() {
+        skipSeparators();
+        boolean negative = pos < end && buf.get(pos) == '-';
+        if (negative) {
+            pos++;
+        }
+        int first = pos;
+        long value = 0;
+        while (pos < end) {
+            int digit = buf.get(pos) - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                throw new NumberFormatException("Number too big");
+            }
+            value = value * 10 + digit;
+            pos++;
+        }
+        if (pos == first || (pos < end && !isSeparator(buf.get(pos)))) {
+            throw new NumberFormatException("Expected a number in " + line());
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Reads a decimal int
+     * @throws NumberFormatException if the next field isn't one
+     */
+    public int nextInt() {
+        long value = nextLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Number too big");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Reads a shape type by name
+     * @return the type, Circle if the name is unknown
+     */
+    public GraphicalObject.ShapeType nextShapeType() {
+        skipSeparators();
+        int wordEnd = wordEnd();
+        GraphicalObject.ShapeType type = GraphicalObject.ShapeType.Circle;
+        for (int i = 0; i < SHAPE_TYPE_BYTES.length; i++) {
+            if (wordIs(SHAPE_TYPE_BYTES[i], wordEnd)) {
+                type = SHAPE_TYPES[i];
+                break;
+            }
+        }
+        pos = wordEnd;
+        return type;
+    }
+
+    /**
+     * Reads a color by name
+     * @return the color, black if the name is unknown
+     */
+    public Color nextColor() {
+        skipSeparators();
+        int wordEnd = wordEnd();
+        Color color = Color.BLACK;
+        for (int i = 0; i < COLOR_BYTES.length; i++) {
+            if (wordIs(COLOR_BYTES[i], wordEnd)) {
+                color = COLORS[i];
+                break;
+            }
+        }
+        pos = wordEnd;
+        return color;
+    }
+
+    /**
+     * Reads the rest of the line as a String, without surrounding spaces
+     * (for the few fields that are text, such as a room name)
+     */
+    public String rest() {
+        skipSeparators();
+        int last = end;
+        while (last > pos && buf.get(last - 1) == ' ') {
+            last--;
+        }
+        String rest = new String(buf.array(), buf.arrayOffset() + pos, last - pos, StandardCharsets.UTF_8);
+        pos = end;
+        return rest;
+    }
+
+    /**
+     * @return the whole line as a String (for logging)
+     */
+    public String line() {
+        return new String(buf.array(), buf.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ' ' || b == ':';
+    }
+
+    private void skipSeparators() {
+        while (pos < end && isSeparator(buf.get(pos))) {
+            pos++;
+        }
+    }
+
+    private int wordEnd() {
+        int i = pos;
+        while (i < end && !isSeparator(buf.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private boolean wordIs(byte[] word, int wordEnd) {
+        if (wordEnd - pos != word.length) {
+            return false;
+        }
+        for (int i = 0; i < word.length; i++) {
+            if (buf.get(pos + i) != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
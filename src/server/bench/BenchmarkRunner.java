@@ -0,0 +1,66 @@
+package server.bench;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the benchmarks and writes every result to one JSON file, so runs can
+ * be compared over time. CanvasBench runs once per writer thread count;
+ * the other groups run on one thread.
+ *
+ * The benchmarks need JMH (jmh-core) on the class path and its annotation
+ * processor (jmh-generator-annprocess) on the processor path when they are
+ * compiled, which writes the META-INF/BenchmarkList the Runner looks them
+ * up in. Both are libraries of the module. Without the IDE:
+ *
+ *      javac -cp <jmh-core jars> -processorpath <annprocess and jmh-core jars> -d out <sources>
+ *      java -cp out:<jmh-core jars> server.bench.BenchmarkRunner
+ *
+ * where the jmh-core jars are jmh-core, jopt-simple and commons-math3.
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {}
+
+    public static void main(String[] args) throws RunnerException {
+        // args (all optional):
+        //      --out=<file>        where the JSON results go (default bench_output.json)
+        //      --threads=<#,#...>  writer thread counts for CanvasBench (default 1,2,4,8)
+        String out = flagValue(args, "--out", "bench_output.json");
+
+        List<RunResult> results = new ArrayList<>();
+        for (String threads : flagValue(args, "--threads", "1,2,4,8").split(",")) {
+            Options canvas = new OptionsBuilder()
+                    .include(CanvasBench.class.getName() + "\\..*")
+                    .threads(Integer.parseInt(threads.trim()))
+                    .build();
+            results.addAll(new Runner(canvas).run());
+        }
+        Options others = new OptionsBuilder()
+                .include(BenchmarkRunner.class.getPackage().getName() + "\\..*")
+                .exclude(CanvasBench.class.getName())
+                .build();
+        results.addAll(new Runner(others).run());
+
+        ResultFormatFactory.getInstance(ResultFormatType.JSON, out).writeOut(results);
+        System.out.println("Wrote " + results.size() + " results to " + out);
+    }
+
+    /**
+     * @return the value of an optional --name=value flag, or the default
+     */
+    private static String flagValue(String[] args, String name, String defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith(name + "=")) return arg.substring(name.length() + 1);
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,120 @@
+package server.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.state.Canvas;
+import server.state.GraphicalObject;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Changes to the canvas, made by as many writer threads as JMH runs (see
+ * BenchmarkRunner, which runs this group at several thread counts). Each
+ * thread is a client of its own. A fresh canvas is used for every
+ * iteration, so it doesn't grow with the length of the run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CanvasBench {
+
+    private static final GraphicalObject.ShapeType[] TYPES = GraphicalObject.ShapeType.values();
+    private static final Color[] COLORS = {Color.BLACK, Color.BLUE, Color.RED, Color.GREEN};
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+
+        // Shapes on the canvas before each iteration, for edits to pick from
+        static final int PRELOADED = 10_000;
+
+        @Param({"false", "true"})
+        boolean columnar;
+
+        @Param({"1", "8"})
+        int shards;
+
+        Canvas canvas;
+
+        @Setup(Level.Iteration)
+        public void setUp() throws IOException {
+            canvas = new Canvas(columnar, shards, snapshotFile());
+            long owner = canvas.registerNewUser();
+            SplittableRandom random = new SplittableRandom(835);
+            for (int i = 0; i < PRELOADED; i++) {
+                canvas.addShape(randomShape(owner, random));
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            canvas.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+
+        long clientID;
+        SplittableRandom random;
+
+        @Setup(Level.Iteration)
+        public void setUp(Shared shared) {
+            clientID = shared.canvas.registerNewUser();
+            random = new SplittableRandom(clientID);
+        }
+    }
+
+    @Benchmark
+    public void addShape(Shared shared, Writer writer) {
+        shared.canvas.addShape(randomShape(writer.clientID, writer.random));
+    }
+
+    @Benchmark
+    public void editShape(Shared shared, Writer writer) {
+        SplittableRandom random = writer.random;
+        shared.canvas.editShape(1 + random.nextInt(Shared.PRELOADED), writer.clientID,
+                TYPES[random.nextInt(TYPES.length)], COLORS[random.nextInt(COLORS.length)],
+                1 + random.nextInt(100), 1 + random.nextInt(100));
+    }
+
+    /**
+     * Adds a few shapes and removes them again, as a client clearing what
+     * it drew. Removing has to find the client's shapes among all of them.
+     */
+    @Benchmark
+    public void removeAllWithID(Shared shared, Writer writer) {
+        for (int i = 0; i < 4; i++) {
+            shared.canvas.addShape(randomShape(writer.clientID, writer.random));
+        }
+        shared.canvas.removeAllWithID(writer.clientID);
+    }
+
+    // A snapshot file of the benchmark's own, away from the server's
+    static Path snapshotFile() throws IOException {
+        return Files.createTempDirectory("bench").resolve("snapshots.bin");
+    }
+
+    static GraphicalObject randomShape(long clientID, SplittableRandom random) {
+        return new GraphicalObject(clientID, TYPES[random.nextInt(TYPES.length)], COLORS[random.nextInt(COLORS.length)],
+                1 + random.nextInt(100), 1 + random.nextInt(100), new Point(random.nextInt(800), random.nextInt(600)));
+    }
+}
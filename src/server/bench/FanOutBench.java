@@ -0,0 +1,163 @@
+package server.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.Socket.Drawer;
+import server.state.Canvas;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A change broadcast to K socket clients: the Canvas queues it, batches it
+ * (tellAllDrawers, then run), and every Drawer's writer encodes and writes
+ * it. The clients are blocking Drawers on sockets that throw their output
+ * away and count the lines written, so an operation ends when every client
+ * has been sent the change.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBench {
+
+    @Param({"1", "16", "256"})
+    int drawers;
+
+    // Broadcasts are sent as soon as they are queued, or batched for this long
+    @Param({"0", "5"})
+    long batchWindowMillis;
+
+    private Canvas canvas;
+    private NullSocket[] sockets;
+    private long[] linesBefore;
+    private long clientID;
+    private SplittableRandom random;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException, IOException {
+        canvas = new Canvas(CanvasBench.snapshotFile());
+        canvas.setBatching(batchWindowMillis, Canvas.DEFAULT_BATCH_MAX_MESSAGES);
+        sockets = new NullSocket[drawers];
+        linesBefore = new long[drawers];
+        for (int i = 0; i < drawers; i++) {
+            sockets[i] = new NullSocket();
+            Drawer drawer = canvas.newSocketConnection(sockets[i]);
+            Thread t = new Thread(drawer, "Bench-drawer-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        clientID = canvas.registerNewUser();
+        random = new SplittableRandom(835);
+        // Wait for every client to be greeted
+        for (NullSocket socket : sockets) {
+            while (socket.lines.get() == 0) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (NullSocket socket : sockets) {
+            socket.close();
+        }
+        canvas.close();
+    }
+
+    @Benchmark
+    public void addShapeToAll() {
+        for (int i = 0; i < drawers; i++) {
+            linesBefore[i] = sockets[i].lines.get();
+        }
+        canvas.addShape(CanvasBench.randomShape(clientID, random));
+        for (int i = 0; i < drawers; i++) {
+            while (sockets[i].lines.get() == linesBefore[i]) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * A socket whose output is thrown away after counting its lines, and
+     * whose input has nothing to read until it is closed
+     */
+    static final class NullSocket extends Socket {
+
+        final AtomicLong lines = new AtomicLong();
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                if (b == '\n') {
+                    lines.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                int n = 0;
+                for (int i = off; i < off + len; i++) {
+                    if (b[i] == '\n') {
+                        n++;
+                    }
+                }
+                if (n > 0) {
+                    lines.addAndGet(n);
+                }
+            }
+        };
+
+        private final InputStream in = new InputStream() {
+            @Override
+            public int read() {
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return read();
+            }
+        };
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed.countDown();
+        }
+    }
+}
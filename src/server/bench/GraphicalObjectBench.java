@@ -0,0 +1,58 @@
+package server.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import server.state.GraphicalObject;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The text form of a shape, as the socket protocol reads (ADD, EDIT) and
+ * writes it (ADDED, SH...). The inputs cycle through a few hundred shapes so
+ * no single string is all the JIT sees.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GraphicalObjectBench {
+
+    private static final int SHAPES = 256;
+
+    private String[] texts;
+    private GraphicalObject[] shapes;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(835);
+        texts = new String[SHAPES];
+        shapes = new GraphicalObject[SHAPES];
+        for (int i = 0; i < SHAPES; i++) {
+            shapes[i] = CanvasBench.randomShape(1 + i, random);
+            texts[i] = shapes[i].toString();
+        }
+    }
+
+    @Benchmark
+    public GraphicalObject parse() {
+        int i = next++ & (SHAPES - 1);
+        return new GraphicalObject(1 + i, texts[i]);
+    }
+
+    @Benchmark
+    public String encode() {
+        return shapes[next++ & (SHAPES - 1)].toString();
+    }
+}
@@ -0,0 +1,72 @@
+package server.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.state.Canvas;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving a client's snapshot of canvases of different sizes. take is what
+ * the client waits for; takeAndWrite also waits until the snapshot is in
+ * the snapshot file, which the server does in the background.
+ *
+ * Snapshots are written to src/server/state/snapshots.bin under the
+ * working directory, so run the benchmarks somewhere other than the
+ * server's.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SnapshotBench {
+
+    @Param({"1000", "100000", "1000000"})
+    int shapes;
+
+    private Canvas canvas;
+    private long clientID;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        canvas = new Canvas(CanvasBench.snapshotFile());
+        clientID = canvas.registerNewUser();
+        SplittableRandom random = new SplittableRandom(835);
+        for (int i = 0; i < shapes; i++) {
+            canvas.addShape(CanvasBench.randomShape(clientID, random));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        canvas.syncSnapshots();
+        canvas.eraseSnapshots();
+        canvas.close();
+    }
+
+    @Benchmark
+    public void take() {
+        canvas.saveSnapshot(clientID);
+    }
+
+    @Benchmark
+    public void takeAndWrite() {
+        canvas.saveSnapshot(clientID);
+        canvas.syncSnapshots();
+    }
+}
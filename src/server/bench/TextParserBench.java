@@ -0,0 +1,117 @@
+package server.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import server.Socket.BinaryProtocol;
+import server.Socket.TextParser;
+import server.state.GraphicalObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading text commands from a Drawer's input buffer, in commands per
+ * second. The buffer holds a few hundred ADD and EDIT lines, as a busy
+ * client would send them. fields is the TextParser reading every field
+ * into primitives; shapes also makes the GraphicalObjects the canvas gets;
+ * strings is the same work done by making a String of each line and
+ * splitting it, as Drawer used to.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TextParserBench {
+
+    private static final int LINES = 256;
+
+    private ByteBuffer input;
+    private final TextParser parser = new TextParser();
+
+    @Setup
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(835);
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            GraphicalObject go = CanvasBench.randomShape(1, random);
+            if (i % 4 == 3) {
+                lines.append("EDIT ").append(random.nextInt(100000)).append(':').append(go.getType()).append(' ')
+                        .append(go.getColorName()).append(' ').append(go.getWidth()).append(' ').append(go.getHeight());
+            } else {
+                lines.append("ADD ").append(go);
+            }
+            lines.append('\n');
+        }
+        input = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public long fields() {
+        input.rewind();
+        long sum = 0;
+        while (parser.nextLine(input)) {
+            switch (parser.command()) {
+                case BinaryProtocol.ADD:
+                    sum += parser.nextShapeType().ordinal() + parser.nextColor().getRGB() + parser.nextInt() +
+                            parser.nextInt() + parser.nextInt() + parser.nextInt();
+                    break;
+                case BinaryProtocol.EDIT:
+                    sum += parser.nextLong() + parser.nextShapeType().ordinal() + parser.nextColor().getRGB() +
+                            parser.nextInt() + parser.nextInt();
+                    break;
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void shapes(Blackhole bh) {
+        input.rewind();
+        while (parser.nextLine(input)) {
+            if (parser.command() == BinaryProtocol.ADD) {
+                bh.consume(GraphicalObject.readText(1, parser));
+            } else {
+                bh.consume(parser.nextLong() + parser.nextShapeType().ordinal() + parser.nextColor().getRGB() +
+                        parser.nextInt() + parser.nextInt());
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void strings(Blackhole bh) {
+        byte[] bytes = input.array();
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            String command = new String(bytes, start, i - start, StandardCharsets.UTF_8);
+            start = i + 1;
+            if (command.startsWith("ADD")) {
+                bh.consume(new GraphicalObject(1, command.substring(4)));
+            } else if (command.startsWith("EDIT")) {
+                String[] commandArgs = command.substring(5).split(":");
+                String[] shapeArgs = commandArgs[1].split(" ");
+                bh.consume(Long.parseLong(commandArgs[0]) + GraphicalObject.colorForName(shapeArgs[1]).getRGB() +
+                        Integer.parseInt(shapeArgs[2]) + Integer.parseInt(shapeArgs[3]));
+            }
+        }
+    }
+}
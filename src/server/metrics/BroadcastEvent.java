@@ -0,0 +1,51 @@
+package server.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One batch of messages broadcast by a canvas: coalescing it, handing the
+ * frame to every Drawer, and telling the RMI listeners
+ */
+@Name("server.Broadcast")
+@Label("Broadcast")
+@Category({"Canvas Server", "Canvas"})
+@Description("A batch of changes broadcast to the socket clients and RMI listeners of a canvas")
+@Enabled(false)
+@StackTrace(false)
+public final class BroadcastEvent extends Event {
+
+    @Label("Messages")
+    @Description("Messages taken from the queue")
+    int messages;
+
+    @Label("Frame Messages")
+    @Description("Messages left after coalescing")
+    int frameMessages;
+
+    @Label("Drawers")
+    int drawers;
+
+    @Label("Queue Depth")
+    @Description("Messages left waiting for the next batch")
+    int queueDepth;
+
+    /**
+     * Ends the event and records it if it is enabled and lasted long enough
+     */
+    public void finish(int messages, int frameMessages, int drawers, int queueDepth) {
+        end();
+        if (shouldCommit()) {
+            this.messages = messages;
+            this.frameMessages = frameMessages;
+            this.drawers = drawers;
+            this.queueDepth = queueDepth;
+            commit();
+        }
+    }
+}
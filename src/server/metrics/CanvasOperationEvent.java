@@ -0,0 +1,54 @@
+package server.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A change made to a canvas: ADD, EDIT, REMOVE_MINE or REMOVE_ALL. It lasts
+ * from the change being checked (ban, admission) to it being published.
+ */
+@Name("server.CanvasOperation")
+@Label("Canvas Operation")
+@Category({"Canvas Server", "Canvas"})
+@Description("A change made to a canvas")
+@Enabled(false)
+@StackTrace(false)
+public final class CanvasOperationEvent extends Event {
+
+    public static final String ADD = "ADD";
+    public static final String EDIT = "EDIT";
+    public static final String REMOVE_MINE = "REMOVE_MINE";
+    public static final String REMOVE_ALL = "REMOVE_ALL";
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Shape ID")
+    long shapeID;
+
+    @Label("Client ID")
+    long clientID;
+
+    @Label("Broadcast Queue Depth")
+    @Description("Messages waiting to be broadcast to socket clients")
+    int queueDepth;
+
+    /**
+     * Ends the event and records it if it is enabled and lasted long enough
+     */
+    public void finish(String operation, long shapeID, long clientID, int queueDepth) {
+        end();
+        if (shouldCommit()) {
+            this.operation = operation;
+            this.shapeID = shapeID;
+            this.clientID = clientID;
+            this.queueDepth = queueDepth;
+            commit();
+        }
+    }
+}
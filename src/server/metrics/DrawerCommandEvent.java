@@ -0,0 +1,56 @@
+package server.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.util.Collection;
+
+/**
+ * A command from a socket client, from being decoded to being done
+ */
+@Name("server.DrawerCommand")
+@Label("Drawer Command")
+@Category({"Canvas Server", "Sockets"})
+@Description("A command from a socket client")
+@Enabled(false)
+@StackTrace(false)
+public final class DrawerCommandEvent extends Event {
+
+    @Label("Client ID")
+    long clientID;
+
+    @Label("Command")
+    @Description("First word of the command in the text protocol")
+    String command;
+
+    @Label("Size")
+    @DataAmount
+    int bytes;
+
+    @Label("Outbound Queue Depth")
+    @Description("Frames waiting to be written to the client")
+    int outboundDepth;
+
+    /**
+     * Ends the event and records it if it is enabled and lasted long enough.
+     * The queue depth is only worked out if it is recorded.
+     * @param command first word of the command, in the text protocol
+     * @param outbound the client's outbound queue
+     */
+    public void finish(long clientID, String command, int bytes, Collection<?> outbound) {
+        end();
+        if (shouldCommit()) {
+            this.clientID = clientID;
+            this.command = command;
+            this.bytes = bytes;
+            this.outboundDepth = outbound.size();
+            commit();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package server.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Drawer writing its queued frames to its socket. A long one is a client
+ * that reads slowly, or a blocked socket.
+ */
+@Name("server.DrawerWrite")
+@Label("Drawer Write")
+@Category({"Canvas Server", "Sockets"})
+@Description("Queued frames written to a socket client")
+@Enabled(false)
+@StackTrace(false)
+public final class DrawerWriteEvent extends Event {
+
+    @Label("Client ID")
+    long clientID;
+
+    @Label("Written")
+    @DataAmount
+    long bytes;
+
+    /**
+     * Ends the event and records it if it is enabled and lasted long enough
+     */
+    public void finish(long clientID, long bytes) {
+        end();
+        if (shouldCommit()) {
+            this.clientID = clientID;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package server.metrics;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+
+/**
+ * A continuous Java Flight Recorder recording of the server: the JDK's
+ * default events (GC, lock contention, socket and file I/O, ...) and the
+ * server's own, which are off unless a recording like this turns them on.
+ *
+ * The events of single operations (canvas changes, Drawer commands and
+ * writes) are only kept when they take longer than a threshold, so a busy
+ * server doesn't spend its time recording them; broadcast batches and
+ * snapshots are always kept. The recording keeps the last hour on disk
+ * and is written to its file when the server exits; a copy of it so far
+ * can be written while it runs.
+ */
+public final class FlightRecording {
+
+    public static final long DEFAULT_THRESHOLD_MILLIS = 1;
+
+    private static final Duration MAX_AGE = Duration.ofHours(1);
+    private static final long MAX_SIZE = 256L * 1024 * 1024;
+
+    private final Recording recording;
+    private final Path destination;
+
+    private FlightRecording(Recording recording, Path destination) {
+        this.recording = recording;
+        this.destination = destination;
+    }
+
+    /**
+     * Starts recording
+     * @param destination file the recording is written to
+     * @param thresholdMillis shortest single operation recorded
+     * @return the recording, or null if it could not be started
+     */
+    public static FlightRecording start(Path destination, long thresholdMillis) {
+        try {
+            Recording recording = new Recording(Configuration.getConfiguration("default"));
+            Duration threshold = Duration.ofMillis(thresholdMillis);
+            recording.enable(CanvasOperationEvent.class).withThreshold(threshold);
+            recording.enable(DrawerCommandEvent.class).withThreshold(threshold);
+            recording.enable(DrawerWriteEvent.class).withThreshold(threshold);
+            recording.enable(BroadcastEvent.class);
+            recording.enable(SnapshotEvent.class);
+            recording.setName("Canvas server");
+            recording.setToDisk(true);
+            recording.setMaxAge(MAX_AGE);
+            recording.setMaxSize(MAX_SIZE);
+            recording.setDestination(destination);
+            recording.setDumpOnExit(true);
+            recording.start();
+            System.out.println("Flight recording to " + destination);
+            return new FlightRecording(recording, destination);
+        } catch (IOException | ParseException | IllegalStateException | SecurityException e) {
+            System.out.println("Cannot start flight recording: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes what has been recorded so far next to the recording's file,
+     * named after the time, and carries on recording. (Writing to the
+     * recording's own file would leave nothing for it to write on exit.)
+     */
+    public void dump() {
+        String name = destination.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stamp = "-" + System.currentTimeMillis();
+        Path copy = destination.resolveSibling(dot < 0 ? name + stamp : name.substring(0, dot) + stamp + name.substring(dot));
+        try {
+            recording.dump(copy);
+            System.out.println("Flight recording so far written to " + copy);
+        } catch (IOException e) {
+            System.out.println("Cannot write flight recording: " + e);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package server.metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.Remote;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the calls made to a remote object by exporting a proxy of it in
+ * its place, so only calls that come in over RMI are counted and the
+ * object itself doesn't change. It also keeps when the last call came in,
+ * so an object only RMI clients use can be told apart from an unused one.
+ */
+public final class MeteredRemote implements InvocationHandler {
+
+    private final Object target;
+
+    // Counter of each method, looked up without allocating
+    private final Map<Method, LongAdder> calls;
+
+    // When the last call came in, in epoch milliseconds (0 if none has)
+    private volatile long lastCallMillis;
+
+    private MeteredRemote(Object target, Class<?> type) {
+        this.target = target;
+        calls = new HashMap<>();
+        for (Method method : type.getMethods()) {
+            calls.put(method, ServerMetrics.get().rmiCalls(method.getName()));
+        }
+    }
+
+    /**
+     * @param target object to export
+     * @param type remote interface the proxy implements
+     * @return proxy to export instead of the object
+     */
+    public static <T extends Remote> T wrap(T target, Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                new MeteredRemote(target, type)));
+    }
+
+    /**
+     * @param proxy proxy made by wrap
+     * @return when the last call came in through it, in epoch milliseconds (0 if none has)
+     */
+    public static long lastCallMillis(Remote proxy) {
+        return ((MeteredRemote) Proxy.getInvocationHandler(proxy)).lastCallMillis;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        LongAdder counter = calls.get(method);
+        if (counter != null) {
+            counter.increment();
+        }
+        lastCallMillis = System.currentTimeMillis();
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
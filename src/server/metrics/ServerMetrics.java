@@ -0,0 +1,238 @@
+package server.metrics;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the server has been doing, for the stats console command and for
+ * JMX (as server:type=Metrics). There is one per process, shared by every
+ * canvas and connection in it.
+ *
+ * Counters are LongAdders, striped so threads counting at once don't
+ * contend, and distributions are Histograms, recorded with atomic
+ * increments; neither takes a lock or allocates. Rates are worked out
+ * from the counters once a second by a sampler thread, off the paths
+ * being counted.
+ */
+public final class ServerMetrics implements ServerMetricsMBean {
+
+    public static final String OBJECT_NAME = "server:type=Metrics";
+
+    private static final ServerMetrics INSTANCE = new ServerMetrics();
+
+    // Changes made, by kind
+    public final LongAdder adds = new LongAdder();
+    public final LongAdder edits = new LongAdder();
+    public final LongAdder removeMines = new LongAdder();
+    public final LongAdder removeAlls = new LongAdder();
+
+    // Changes ignored from banned clients, and turned away by the admission policy
+    public final LongAdder banRejections = new LongAdder();
+    public final LongAdder admissionRejections = new LongAdder();
+
+    // Messages waiting to be broadcast to socket clients, and socket clients connected
+    public final LongAdder queuedBroadcasts = new LongAdder();
+    public final LongAdder connections = new LongAdder();
+
+    // Time to hand one broadcast frame to every Drawer, and for a Drawer to
+    // write its queued frames to its socket, in microseconds
+    public final Histogram fanOutMicros = new Histogram();
+    public final Histogram drawerWriteMicros = new Histogram();
+
+    // Shapes in each snapshot saved
+    public final Histogram snapshotShapes = new Histogram();
+
+    // Calls made over RMI, by method
+    private final ConcurrentHashMap<String, LongAdder> rmiCalls = new ConcurrentHashMap<>();
+
+    // Changes per second over the last second, by kind (set by the sampler)
+    private volatile long addsPerSecond;
+    private volatile long editsPerSecond;
+    private volatile long removesPerSecond;
+    private long lastAdds, lastEdits, lastRemoves;
+
+    private ServerMetrics() {
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Metrics-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public static ServerMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, so JMX clients
+     * such as jconsole can read them
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException ignored) {
+            // Registered already
+        } catch (JMException e) {
+            System.out.println("Cannot register metrics with JMX: " + e);
+        }
+    }
+
+    /**
+     * @return the counter of RMI calls to a method, made the first time
+     */
+    public LongAdder rmiCalls(String method) {
+        return rmiCalls.computeIfAbsent(method, m -> new LongAdder());
+    }
+
+    private void sample() {
+        long a = adds.sum(), e = edits.sum(), r = removeMines.sum() + removeAlls.sum();
+        addsPerSecond = a - lastAdds;
+        editsPerSecond = e - lastEdits;
+        removesPerSecond = r - lastRemoves;
+        lastAdds = a;
+        lastEdits = e;
+        lastRemoves = r;
+    }
+
+    /**
+     * Prints every metric
+     */
+    public void print() {
+        System.out.println("Changes: " + getAdds() + " adds, " + getEdits() + " edits, " +
+                getRemoveMines() + " remove mine, " + getRemoveAlls() + " remove all");
+        System.out.println("Per second: " + addsPerSecond + " adds, " + editsPerSecond + " edits, " +
+                removesPerSecond + " removes");
+        System.out.println("Ignored from banned clients: " + getBanRejections() +
+                ", rejected by admission: " + getAdmissionRejections());
+        System.out.println("Socket clients: " + getConnections() + ", broadcasts queued: " + getQueuedBroadcasts());
+        printHistogram("Broadcast fan-out (us)", fanOutMicros);
+        printHistogram("Drawer write (us)", drawerWriteMicros);
+        printHistogram("Snapshot size (shapes)", snapshotShapes);
+        System.out.println("RMI calls: " + getRmiCalls());
+    }
+
+    private static void printHistogram(String name, Histogram histogram) {
+        System.out.println(name + ": " + histogram.getCount() + " recorded, p50 " + histogram.getValueAtPercentile(50) +
+                ", p99 " + histogram.getValueAtPercentile(99) + ", p99.9 " + histogram.getValueAtPercentile(99.9) +
+                ", max " + histogram.getMax());
+    }
+
+    @Override
+    public long getAdds() {
+        return adds.sum();
+    }
+
+    @Override
+    public long getEdits() {
+        return edits.sum();
+    }
+
+    @Override
+    public long getRemoveMines() {
+        return removeMines.sum();
+    }
+
+    @Override
+    public long getRemoveAlls() {
+        return removeAlls.sum();
+    }
+
+    @Override
+    public long getAddsPerSecond() {
+        return addsPerSecond;
+    }
+
+    @Override
+    public long getEditsPerSecond() {
+        return editsPerSecond;
+    }
+
+    @Override
+    public long getRemovesPerSecond() {
+        return removesPerSecond;
+    }
+
+    @Override
+    public long getBanRejections() {
+        return banRejections.sum();
+    }
+
+    @Override
+    public long getAdmissionRejections() {
+        return admissionRejections.sum();
+    }
+
+    @Override
+    public long getQueuedBroadcasts() {
+        return queuedBroadcasts.sum();
+    }
+
+    @Override
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    @Override
+    public long getFanOutP50Micros() {
+        return fanOutMicros.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getFanOutP99Micros() {
+        return fanOutMicros.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getFanOutMaxMicros() {
+        return fanOutMicros.getMax();
+    }
+
+    @Override
+    public long getDrawerWriteP50Micros() {
+        return drawerWriteMicros.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getDrawerWriteP99Micros() {
+        return drawerWriteMicros.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getDrawerWriteMaxMicros() {
+        return drawerWriteMicros.getMax();
+    }
+
+    @Override
+    public long getSnapshotShapesP50() {
+        return snapshotShapes.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getSnapshotShapesMax() {
+        return snapshotShapes.getMax();
+    }
+
+    @Override
+    public Map<String, Long> getRmiCalls() {
+        Map<String, Long> calls = new TreeMap<>();
+        rmiCalls.forEach((method, count) -> calls.put(method, count.sum()));
+        return calls;
+    }
+
+    @Override
+    public void resetHistograms() {
+        fanOutMicros.reset();
+        drawerWriteMicros.reset();
+        snapshotShapes.reset();
+    }
+}
@@ -0,0 +1,42 @@
+package server.metrics;
+
+import java.util.Map;
+
+/**
+ * The metrics of the server as JMX sees them (see ServerMetrics)
+ */
+public interface ServerMetricsMBean {
+
+    long getAdds();
+    long getEdits();
+    long getRemoveMines();
+    long getRemoveAlls();
+
+    long getAddsPerSecond();
+    long getEditsPerSecond();
+    long getRemovesPerSecond();
+
+    long getBanRejections();
+    long getAdmissionRejections();
+
+    long getQueuedBroadcasts();
+    long getConnections();
+
+    long getFanOutP50Micros();
+    long getFanOutP99Micros();
+    long getFanOutMaxMicros();
+
+    long getDrawerWriteP50Micros();
+    long getDrawerWriteP99Micros();
+    long getDrawerWriteMaxMicros();
+
+    long getSnapshotShapesP50();
+    long getSnapshotShapesMax();
+
+    Map<String, Long> getRmiCalls();
+
+    /**
+     * Forgets the values recorded so far, to look at a new period
+     */
+    void resetHistograms();
+}
@@ -0,0 +1,46 @@
+package server.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A client's snapshot being saved or loaded
+ */
+@Name("server.Snapshot")
+@Label("Snapshot")
+@Category({"Canvas Server", "Snapshots"})
+@Description("A client snapshot saved or loaded")
+@Enabled(false)
+@StackTrace(false)
+public final class SnapshotEvent extends Event {
+
+    public static final String SAVE = "SAVE";
+    public static final String LOAD = "LOAD";
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Client ID")
+    long clientID;
+
+    @Label("Shapes")
+    int shapes;
+
+    /**
+     * Ends the event and records it if it is enabled and lasted long enough
+     */
+    public void finish(String operation, long clientID, int shapes) {
+        end();
+        if (shouldCommit()) {
+            this.operation = operation;
+            this.clientID = clientID;
+            this.shapes = shapes;
+            commit();
+        }
+    }
+}
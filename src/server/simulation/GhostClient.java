@@ -1,5 +1,6 @@
 package server.simulation;
 
+import server.state.AdmissionRejectedException;
 import server.state.CanvasInterface;
 import server.state.GraphicalObject;
 
@@ -56,28 +57,37 @@ public class GhostClient implements Runnable {
             } else {
                 doAction = 3;
             }
-            switch (doAction) {
-                case 1:
-                    try {
-                        canvas.addShape(generateRandomShape());
-                    } catch (RemoteException e) {
-                        e.printStackTrace();
-                    }
-                    break;
-                case 2:
-                    try {
-                        canvas.removeAllWithID(id);
-                    } catch (RemoteException e) {
-                        e.printStackTrace();
-                    }
-                    break;
-                case 3:
-                    try {
-                        canvas.removeAll(id);
-                    } catch (RemoteException e) {
-                        e.printStackTrace();
-                    }
-                    break;
+            try {
+                switch (doAction) {
+                    case 1:
+                        try {
+                            canvas.addShape(generateRandomShape());
+                        } catch (RemoteException e) {
+                            e.printStackTrace();
+                        }
+                        break;
+                    case 2:
+                        try {
+                            canvas.removeAllWithID(id);
+                        } catch (RemoteException e) {
+                            e.printStackTrace();
+                        }
+                        break;
+                    case 3:
+                        try {
+                            canvas.removeAll(id);
+                        } catch (RemoteException e) {
+                            e.printStackTrace();
+                        }
+                        break;
+                }
+            } catch (AdmissionRejectedException e) {
+                // Changing the canvas too fast: wait as long as the server asks
+                try {
+                    Thread.sleep(e.getRetryAfterMillis());
+                } catch (InterruptedException ie) {
+                    ie.printStackTrace();
+                }
             }
         }
     }
@@ -0,0 +1,342 @@
+package server.simulation;
+
+import server.metrics.Histogram;
+import server.state.AdmissionRejectedException;
+import server.state.CanvasChange;
+import server.state.CanvasDelta;
+import server.state.CanvasInterface;
+import server.state.CanvasListener;
+import server.state.GraphicalObject;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static server.ServerLauncher.RMI_PORT;
+import static server.ServerLauncher.SOCKET_PORT;
+
+/**
+ * Puts load on a running server through its real protocols, unlike
+ * GhostClient, which calls the Canvas in the server's own process. It
+ * connects socket clients (speaking the text protocol of SocketBehavior)
+ * and RMI clients (with a pushed CanvasListener each), and has them add
+ * shapes in turn at a fixed rate. Each ADD is timed until every other
+ * client has been told about it.
+ *
+ * The load is open-loop: the n-th ADD is due at start + n / rate whether
+ * or not the server has kept up, and its latency is taken from when it
+ * was due rather than when it was sent. A server that stalls so makes
+ * every ADD due during the stall late, instead of holding back the ADDs
+ * that would have measured it (coordinated omission). Latencies from when
+ * each ADD was actually sent are reported too, to show the difference.
+ *
+ * Each client's shapes are different from every other shape added during
+ * the run, so an ADDED is matched with its ADD by client ID and shape.
+ */
+public class LoadGenerator {
+
+    // An ADD not yet seen by every other client
+    private static final class Pending {
+        final long dueNanos;
+        final boolean measured;
+        volatile long sentNanos;
+        final AtomicInteger waitingFor;
+
+        Pending(long dueNanos, boolean measured, int waitingFor) {
+            this.dueNanos = dueNanos;
+            this.measured = measured;
+            this.waitingFor = new AtomicInteger(waitingFor);
+        }
+    }
+
+    // A connected client
+    private interface Client {
+        long getID();
+        void add(GraphicalObject go) throws IOException;
+        void close();
+    }
+
+    private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+    private final Histogram fromDue = new Histogram();
+    private final Histogram fromSent = new Histogram();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private int receivers;
+
+    public static void main(String[] args) throws Exception {
+        // args (all optional):
+        //      --host=<host>           server to load (default localhost)
+        //      --socket-port=<#>       port of its Socket service (default 1100)
+        //      --rmi-port=<#>          port of its RMI registry (default 1099)
+        //      --sockets=<#>           socket clients to connect (default 10)
+        //      --rmi=<#>               RMI clients to connect (default 0)
+        //      --rate=<#>              ADDs per second, from all clients together (default 100)
+        //      --duration=<s>          seconds to measure for (default 30)
+        //      --warmup=<s>            seconds to run before measuring (default 5)
+        String host = flagValue(args, "--host", "localhost");
+        int sockets = Integer.parseInt(flagValue(args, "--sockets", "10"));
+        int rmi = Integer.parseInt(flagValue(args, "--rmi", "0"));
+        double rate = Double.parseDouble(flagValue(args, "--rate", "100"));
+        long durationSeconds = Long.parseLong(flagValue(args, "--duration", "30"));
+        long warmupSeconds = Long.parseLong(flagValue(args, "--warmup", "5"));
+        if (sockets + rmi < 2) {
+            throw new IllegalArgumentException("At least two clients are needed, one to add and one to be told");
+        }
+
+        LoadGenerator generator = new LoadGenerator();
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < sockets; i++) {
+            clients.add(generator.connectSocket(host,
+                    Integer.parseInt(flagValue(args, "--socket-port", String.valueOf(SOCKET_PORT)))));
+        }
+        if (rmi > 0) {
+            CanvasInterface canvas = (CanvasInterface) LocateRegistry.getRegistry(host,
+                    Integer.parseInt(flagValue(args, "--rmi-port", String.valueOf(RMI_PORT)))).lookup("Canvas");
+            for (int i = 0; i < rmi; i++) {
+                clients.add(generator.connectRMI(canvas));
+            }
+        }
+        generator.receivers = clients.size() - 1;
+        System.out.println("Connected " + sockets + " socket and " + rmi + " RMI clients");
+
+        generator.run(clients, rate, TimeUnit.SECONDS.toNanos(warmupSeconds), TimeUnit.SECONDS.toNanos(durationSeconds));
+        clients.forEach(Client::close);
+        System.exit(0);
+    }
+
+    /**
+     * Adds shapes from each client in turn, each ADD due 1 / rate after the
+     * last, then waits a little for the last ones to arrive and reports.
+     */
+    private void run(List<Client> clients, double rate, long warmupNanos, long durationNanos) throws InterruptedException {
+        // RMI calls wait for the server, so they are made on threads of their own to keep to the schedule
+        ExecutorService rmiCalls = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "Load-RMI-add");
+            t.setDaemon(true);
+            return t;
+        });
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+        long lastReport = start;
+        for (long n = 0; ; n++) {
+            long due = start + (long) (n * intervalNanos);
+            if (due >= end) {
+                break;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            Client client = clients.get((int) (n % clients.size()));
+            GraphicalObject go = shapeFor(client, n);
+            Pending p = new Pending(due, due >= measureFrom, receivers);
+            String key = keyOf(client.getID(), go);
+            pending.put(key, p);
+            Runnable send = () -> {
+                p.sentNanos = System.nanoTime();
+                try {
+                    client.add(go);
+                } catch (IOException e) {
+                    pending.remove(key);
+                    failed.incrementAndGet();
+                }
+            };
+            if (client instanceof RMIClient) {
+                rmiCalls.execute(send);
+            } else {
+                send.run();
+            }
+
+            long now = System.nanoTime();
+            if (now - lastReport >= TimeUnit.SECONDS.toNanos(5)) {
+                lastReport = now;
+                System.out.println((now >= measureFrom ? "Measuring: " : "Warming up: ") + n + " ADDs sent, " +
+                        pending.size() + " not yet seen by everyone");
+            }
+        }
+        // Give the last ADDs time to arrive
+        for (int i = 0; i < 50 && !pending.isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        report(rate, durationNanos);
+    }
+
+    private void report(double rate, long durationNanos) {
+        System.out.println();
+        System.out.printf("%d ADDs at %.0f/s over %d s, each timed until %d other clients had it%n",
+                fromDue.getCount(), rate, TimeUnit.NANOSECONDS.toSeconds(durationNanos), receivers);
+        System.out.printf("Not seen by everyone (rejected ones included): %d, rejected: %d, failed to send: %d%n",
+                pending.size(), rejected.get(), failed.get());
+        System.out.printf("%-24s %10s %10s %10s %10s %10s%n", "Latency (us)", "p50", "p90", "p99", "p99.9", "max");
+        printPercentiles("from due (corrected)", fromDue);
+        printPercentiles("from sent (uncorrected)", fromSent);
+    }
+
+    private static void printPercentiles(String name, Histogram histogram) {
+        System.out.printf("%-24s %10d %10d %10d %10d %10d%n", name,
+                histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMax());
+    }
+
+    /**
+     * Counts an ADDED one client was told about, and times the ADD once
+     * every other client has been told
+     */
+    private void told(long receiverID, long clientID, String shape) {
+        if (receiverID == clientID) {
+            return;
+        }
+        String key = clientID + ":" + shape;
+        Pending p = pending.get(key);
+        if (p == null || p.waitingFor.decrementAndGet() != 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        pending.remove(key);
+        if (p.measured) {
+            fromDue.record(TimeUnit.NANOSECONDS.toMicros(now - p.dueNanos));
+            fromSent.record(TimeUnit.NANOSECONDS.toMicros(now - p.sentNanos));
+        }
+    }
+
+    // A shape no other ADD of the run has: its size and place spell out n
+    private static GraphicalObject shapeFor(Client client, long n) {
+        return new GraphicalObject(client.getID(), GraphicalObject.ShapeType.Rectangle, Color.BLACK,
+                1 + (int) (n % 1000), 1 + (int) (n / 1000 % 1000), new Point((int) (n / 1_000_000), 0));
+    }
+
+    private static String keyOf(long clientID, GraphicalObject go) {
+        return clientID + ":" + go;
+    }
+
+    private Client connectSocket(String host, int port) throws IOException {
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        OutputStream out = socket.getOutputStream();
+        // WELCOME <ID>
+        long id = Long.parseLong(in.readLine().substring(8));
+
+        Thread reader = new Thread(() -> {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("ADDED ")) {
+                        // ADDED <S#>:<ID>:<GO>
+                        int first = line.indexOf(':');
+                        int second = line.indexOf(':', first + 1);
+                        told(id, Long.parseLong(line.substring(first + 1, second)), line.substring(second + 1));
+                    } else if (line.startsWith("REJECTED")) {
+                        rejected.incrementAndGet();
+                    }
+                }
+            } catch (IOException ignored) {
+                // Closed
+            }
+        }, "Load-socket-" + id);
+        reader.setDaemon(true);
+        reader.start();
+
+        return new Client() {
+            @Override
+            public long getID() {
+                return id;
+            }
+
+            @Override
+            public void add(GraphicalObject go) throws IOException {
+                out.write(("ADD " + go + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public void close() {
+                try {
+                    out.write("EXIT\n".getBytes(StandardCharsets.UTF_8));
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
+        };
+    }
+
+    private Client connectRMI(CanvasInterface canvas) throws RemoteException {
+        RMIClient client = new RMIClient(canvas, canvas.registerNewUser());
+        UnicastRemoteObject.exportObject(client, 0);
+        canvas.addListener(client, canvas.getChangesSince(0).getToVersion());
+        return client;
+    }
+
+    private final class RMIClient implements Client, CanvasListener {
+
+        private final CanvasInterface canvas;
+        private final long id;
+
+        RMIClient(CanvasInterface canvas, long id) {
+            this.canvas = canvas;
+            this.id = id;
+        }
+
+        @Override
+        public long getID() {
+            return id;
+        }
+
+        @Override
+        public void add(GraphicalObject go) throws IOException {
+            try {
+                canvas.addShape(go);
+            } catch (AdmissionRejectedException e) {
+                rejected.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void canvasChanged(CanvasDelta delta) {
+            if (delta.isFull()) {
+                return;
+            }
+            for (CanvasChange change : delta.getChanges()) {
+                if (change.getKind() == CanvasChange.Kind.ADDED) {
+                    told(id, change.getClientID(), change.getShape().toString());
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                canvas.removeListener(this);
+                UnicastRemoteObject.unexportObject(this, true);
+            } catch (RemoteException ignored) {}
+        }
+    }
+
+    /**
+     * @return the value of an optional --name=value flag, or the default
+     */
+    private static String flagValue(String[] args, String name, String defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith(name + "=")) return arg.substring(name.length() + 1);
+        }
+        return defaultValue;
+    }
+}
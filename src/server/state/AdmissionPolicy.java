@@ -0,0 +1,28 @@
+package server.state;
+
+/**
+ * Decides whether a client may change the canvas now. The Canvas asks
+ * before every add, edit and remove, after checking the client isn't
+ * banned, and turns the change away with an AdmissionRejectedException
+ * when the policy says no.
+ */
+public interface AdmissionPolicy {
+
+    /**
+     * Lets every change through (the default)
+     */
+    AdmissionPolicy UNLIMITED = clientID -> 0;
+
+    /**
+     * Asks to make one change. Called concurrently, for any client.
+     * @param clientID client making the change
+     * @return 0 if the change may be made, otherwise how many milliseconds
+     * the client should wait before trying again
+     */
+    long admit(long clientID);
+
+    /**
+     * Forgets what was kept about a client that went away
+     */
+    default void forget(long clientID) {}
+}
@@ -0,0 +1,28 @@
+package server.state;
+
+/**
+ * Thrown by the Canvas when the AdmissionPolicy turns a change away. It
+ * goes back to RMI clients as it is; Drawers answer it with REJECTED.
+ */
+public class AdmissionRejectedException extends RuntimeException {
+
+    private final long clientID;
+    private final long retryAfterMillis;
+
+    public AdmissionRejectedException(long clientID, long retryAfterMillis) {
+        super("Client " + clientID + " is changing the canvas too fast, retry in " + retryAfterMillis + " ms");
+        this.clientID = clientID;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getClientID() {
+        return clientID;
+    }
+
+    /**
+     * @return how long the client should wait before trying again
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -1,17 +1,31 @@
 package server.state;
 
+import server.Socket.BroadcastBatch;
 import server.Socket.Drawer;
+import server.Socket.Frame;
+import server.Socket.SocketMessage;
+import server.metrics.BroadcastEvent;
+import server.metrics.CanvasOperationEvent;
+import server.metrics.ServerMetrics;
+import server.metrics.SnapshotEvent;
 
+import java.awt.Color;
+import java.awt.Rectangle;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
 
 /**
  * The Canvas is the state of the server. It holds all the shapes
@@ -21,63 +35,190 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class Canvas implements CanvasInterface, Runnable {
 
+    // Default broadcast batching: gather for 5 ms, at most 512 messages per frame
+    public static final long DEFAULT_BATCH_WINDOW_MILLIS = 5;
+    public static final int DEFAULT_BATCH_MAX_MESSAGES = 512;
+
+    // Default journaling: group commit every 10 ms, checkpoint every 100000 records
+    public static final long DEFAULT_JOURNAL_COMMIT_MILLIS = 10;
+    public static final int DEFAULT_JOURNAL_CHECKPOINT_RECORDS = 100000;
+
+    // Default snapshot residency: at most 1024 in memory, each dropped after 5 minutes unused
+    public static final int DEFAULT_MAX_RESIDENT_SNAPSHOTS = SnapshotSaver.DEFAULT_MAX_RESIDENT;
+    public static final long DEFAULT_SNAPSHOT_IDLE_MILLIS = SnapshotSaver.DEFAULT_IDLE_MILLIS;
+
+    // Metrics of the server, shared by every canvas in it
+    private static final ServerMetrics METRICS = ServerMetrics.get();
+
     // AtomicLong to generate new user ID atomically
     private AtomicLong userIdGenerator;
 
-    // AtomicLong to update version number atomically
-    private AtomicLong versionNumber;
+    // Number of shards the shapes, versions and markers are split into
+    private final int shards;
+
+    // Version number of each shard, a cache line apart; the version of the
+    // canvas is their sum
+    private static final int VERSION_STRIDE = 8;
+    private final AtomicLongArray versions;
 
     // AtomicLong to give shapes an ID
     private AtomicLong shapeIDGenerator;
 
-    // List of all shapes on server
-    private ConcurrentHashMap<Long, GraphicalObject> shapeMap;
+    // All shapes on server
+    private ShapeStore shapeStore;
 
-    // Set of banned IDs
-    private HashSet<Long> bannedIDs;
-    private final Object bannedIDLock;
+    // Set of banned IDs, read without a lock on every change
+    private final CopyOnWriteLongSet bannedIDs;
 
-    // List of markers for last shape placed by client
-    private ConcurrentHashMap<Long, GraphicalObject> markerMap;
-    private Timer markerTimer;
+    // Which changes are let through, checked after the ban list
+    private volatile AdmissionPolicy admission;
 
-    // List of all in-use socket connections
-    private ArrayList<Drawer> socketConnections;
-    private final Object socketLock;
-    private final ConcurrentLinkedQueue<String> socketMessageQueue;
-    private Executor exec;
+    // How long a marker stays on the last shape a client placed or edited,
+    // and how often the wheel looks for markers that ran out
+    private static final long MARKER_MILLIS = 3000;
+    private static final long MARKER_TICK_MILLIS = 100;
+
+    // The marker of each client, and when it runs out, in one wheel per shard
+    private MarkerWheel[] markerWheels;
+
+    // List of all in-use socket connections (copied on write, so a broadcast never blocks connects)
+    private CopyOnWriteArrayList<Drawer> socketConnections;
+    private final ConcurrentLinkedQueue<SocketMessage> socketMessageQueue;
+    private int queuedMessages;
+    private ScheduledExecutorService exec;
+    private ScheduledFuture<?> pendingBatch;
     private volatile boolean isRunning;
 
+    // How long messages are gathered before a batch is sent, and the most sent in one batch
+    private volatile long batchWindowMillis;
+    private volatile int batchMaxMessages;
+
+    // Versioned log of changes, for RMI clients that sync incrementally,
+    // and the RMI clients that have it pushed to them
+    private ChangeLog changeLog;
+    private ListenerRegistry listeners;
+
     // Snapshot services
     private SnapshotSaver snapshotSaver;
 
+    // Write-ahead journal of every change, null unless turned on
+    private volatile Journal journal;
+
+    // Canvas this one follows (changes are made there and replicated here), null for a leader
+    private volatile CanvasInterface leader;
+
+    // Rooms of the server this canvas is in, null if it has none, and the
+    // canvas whose user IDs, bans and admission policy a room shares (null
+    // for that canvas itself)
+    private volatile CanvasRegistry rooms;
+    private final Canvas lobby;
+    private final boolean columnar;
+
+    // Threads to stop when a room is closed
+    private final ScheduledExecutorService markerTicker;
+    private final Thread connectionsHook;
+    private Thread journalHook;
+
     public Canvas() {
-        userIdGenerator = new AtomicLong(0);
-        versionNumber = new AtomicLong(0);
-        shapeIDGenerator = new AtomicLong(0);
+        this(false);
+    }
+
+    /**
+     * @param columnar true to keep shapes in primitive columns (ColumnarShapeStore),
+     *                 which takes a fraction of the memory but has no spatial index
+     */
+    public Canvas(boolean columnar) {
+        this(columnar, 1);
+    }
+
+    /**
+     * @param columnar true to keep shapes in primitive columns (ColumnarShapeStore),
+     *                 which takes a fraction of the memory but has no spatial index
+     * @param shards number of shards (a power of two, at most 32) the shapes are
+     *               split into by shape ID, each with its own store, version and
+     *               markers, so changes to different shapes don't wait for each other
+     */
+    public Canvas(boolean columnar, int shards) {
+        this(columnar, shards, null, new SnapshotSaver());
+    }
+
+    /**
+     * @param snapshots file the canvas keeps client snapshots in, which no
+     *                  other canvas may have open
+     */
+    public Canvas(Path snapshots) {
+        this(false, 1, snapshots);
+    }
+
+    /**
+     * @param columnar true to keep shapes in primitive columns (see Canvas(boolean, int))
+     * @param shards number of shards (see Canvas(boolean, int))
+     * @param snapshots file the canvas keeps client snapshots in, which no
+     *                  other canvas may have open
+     */
+    public Canvas(boolean columnar, int shards, Path snapshots) {
+        this(columnar, shards, null, new SnapshotSaver(snapshots));
+    }
+
+    /**
+     * Makes a room of the server whose main canvas is the lobby (see
+     * CanvasRegistry). It has its own shapes, version, markers and clients,
+     * but shares the lobby's user IDs, bans, admission policy and
+     * snapshots, and is set up like it.
+     * @param lobby main canvas of the server
+     */
+    Canvas(Canvas lobby) {
+        this(lobby.columnar, lobby.shards, lobby, lobby.snapshotSaver);
+        rooms = lobby.rooms;
+        batchWindowMillis = lobby.batchWindowMillis;
+        batchMaxMessages = lobby.batchMaxMessages;
+    }
 
-        shapeMap = new ConcurrentHashMap<>();
+    private Canvas(boolean columnar, int shards, Canvas lobby, SnapshotSaver snapshotSaver) {
+        this.shards = shards;
+        this.columnar = columnar;
+        this.lobby = lobby;
+        userIdGenerator = lobby != null ? lobby.userIdGenerator : new AtomicLong(0);
+        versions = new AtomicLongArray(shards * VERSION_STRIDE);
+        shapeIDGenerator = new AtomicLong(0);
 
-        bannedIDs = new HashSet<>();
-        bannedIDLock = new Object();
+        if (shards == 1) {
+            shapeStore = columnar ? new ColumnarShapeStore() : new MapShapeStore();
+        } else {
+            shapeStore = new ShardedShapeStore(shards, columnar ? ColumnarShapeStore::new : MapShapeStore::new);
+        }
 
-        markerMap = new ConcurrentHashMap<>();
+        bannedIDs = lobby != null ? lobby.bannedIDs : new CopyOnWriteLongSet();
+        admission = lobby != null ? lobby.admission : AdmissionPolicy.UNLIMITED;
 
-        socketConnections = new ArrayList<>();
-        socketLock = new Object();
+        socketConnections = new CopyOnWriteArrayList<>();
 
         socketMessageQueue = new ConcurrentLinkedQueue<>();
-        exec = Executors.newFixedThreadPool(10);
+        exec = Executors.newSingleThreadScheduledExecutor();
+        batchWindowMillis = DEFAULT_BATCH_WINDOW_MILLIS;
+        batchMaxMessages = DEFAULT_BATCH_MAX_MESSAGES;
 
-        markerTimer = new Timer();
+        markerTicker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Marker-wheel");
+            t.setDaemon(true);
+            return t;
+        });
+        markerWheels = new MarkerWheel[shards];
+        for (int i = 0; i < shards; i++) {
+            markerWheels[i] = new MarkerWheel(MARKER_MILLIS, MARKER_TICK_MILLIS, markerTicker, this::markerRanOut);
+        }
 
-        // Load snapshots
-        snapshotSaver = new SnapshotSaver();
+        changeLog = new ChangeLog(ChangeLog.DEFAULT_CAPACITY);
+        listeners = new ListenerRegistry(this);
+
+        // Snapshots, read in by the saver (the lobby's, for a room)
+        this.snapshotSaver = snapshotSaver;
         // Remove all (if any) socket connections on shutdown
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        connectionsHook = new Thread(() -> {
             System.out.println("Removing all connections");
             socketConnections.forEach(this::removeSocketConnection);
-        }));
+        });
+        Runtime.getRuntime().addShutdownHook(connectionsHook);
     }
 
     /**
@@ -86,7 +227,21 @@ public class Canvas implements CanvasInterface, Runnable {
      */
     @Override
     public long registerNewUser() {
-        return userIdGenerator.incrementAndGet();
+        CanvasInterface l = leader;
+        if (l != null) {
+            // IDs are handed out by the leader, so they are unique across followers
+            try {
+                return l.registerNewUser();
+            } catch (RemoteException e) {
+                throw new IllegalStateException("Cannot reach leader", e);
+            }
+        }
+        long ID = userIdGenerator.incrementAndGet();
+        Journal j = journal;
+        if (j != null) {
+            j.userRegistered(ID);
+        }
+        return ID;
     }
 
     /**
@@ -94,7 +249,19 @@ public class Canvas implements CanvasInterface, Runnable {
      */
     @Override
     public long getVersionNumber() {
-        return versionNumber.get();
+        CanvasInterface l = leader;
+        if (l != null) {
+            try {
+                return l.getVersionNumber();
+            } catch (RemoteException e) {
+                // The last version replicated is as close as it gets
+            }
+        }
+        long version = 0;
+        for (int i = 0; i < shards; i++) {
+            version += versions.get(i * VERSION_STRIDE);
+        }
+        return version;
     }
 
     /**
@@ -106,9 +273,23 @@ public class Canvas implements CanvasInterface, Runnable {
     public Drawer newSocketConnection(Socket socket) {
         long idValue = registerNewUser();
         Drawer newDrawer = new Drawer(socket, idValue, this);
-        synchronized (socketLock) {
-            socketConnections.add(newDrawer);
-        }
+        socketConnections.add(newDrawer);
+        METRICS.connections.increment();
+        System.out.println("New socket connection: " + newDrawer);
+        return newDrawer;
+    }
+
+    /**
+     * Generates and adds a new non-blocking Socket connection to the list of drawers.
+     * @param channel socket channel, already in non-blocking mode
+     * @return a Drawer for the channel
+     */
+    @Override
+    public Drawer newSocketConnection(SocketChannel channel) {
+        long idValue = registerNewUser();
+        Drawer newDrawer = new Drawer(channel, idValue, this);
+        socketConnections.add(newDrawer);
+        METRICS.connections.increment();
         System.out.println("New socket connection: " + newDrawer);
         return newDrawer;
     }
@@ -120,9 +301,10 @@ public class Canvas implements CanvasInterface, Runnable {
     @Override
     public void removeSocketConnection(Drawer drawer) {
         System.out.println("Disconnecting socket: " + drawer);
-        synchronized (socketLock) {
-            socketConnections.remove(drawer);
+        if (socketConnections.remove(drawer)) {
+            METRICS.connections.decrement();
         }
+        admission.forget(drawer.getID());
     }
 
     /**
@@ -131,82 +313,162 @@ public class Canvas implements CanvasInterface, Runnable {
      */
     @Override
     public void addShape(GraphicalObject go) {
-        boolean canAddShape;
-        synchronized (bannedIDLock) {
-            canAddShape = !bannedIDs.contains(go.getClientID());
-        }
-        if (canAddShape) {
-            GraphicalObject oldGO = markerMap.get(go.getClientID());
-            if (oldGO != null) {
-                oldGO.setMarked(false);
-                tellAllDrawers("UNMARK " + oldGO.getShapeID() + ":" + oldGO.getClientID());
-            }
-            markerMap.put(go.getClientID(), go);
-
+        if (forwarded(l -> l.addShape(go))) {
+            return;
+        }
+        CanvasOperationEvent event = new CanvasOperationEvent();
+        event.begin();
+        if (mayChange(go.getClientID())) {
+            long clientID = go.getClientID();
             long shapeID = shapeIDGenerator.incrementAndGet();
+
             go.setShapeID(shapeID);
-            shapeMap.put(shapeID, go);
-            go.setMarked(true);
-            markerTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    go.run();
-                    tellAllDrawers("UNMARK " + shapeID + ":" + go.getClientID());
-                    versionNumber.incrementAndGet();
-                }
-            }, 3000);
-            tellAllDrawers("ADDED " + shapeID + ":" + go.getClientID() + ":" + go.toString());
-            tellAllDrawers("MARK " + shapeID + ":" + go.getClientID());
-            versionNumber.incrementAndGet();
+            // Shapes from RMI clients haven't been through a parser
+            go.clampSize();
+            CanvasChange added = CanvasChange.added(shapeID, go);
+            shapeStore.put(shapeID, go);
+            publish(added);
+            mark(shapeID, clientID);
+            changed(shapeID);
+            METRICS.adds.increment();
+            event.finish(CanvasOperationEvent.ADD, shapeID, clientID, queueDepth());
         }
     }
 
     @Override
     public void editShape(long shapeID, long newClientID, GraphicalObject.ShapeType type, String color, int width, int height) {
-        boolean canEditShape;
-        synchronized (bannedIDLock) {
-            canEditShape = !bannedIDs.contains(newClientID);
-        }
-        if (canEditShape) {
-            GraphicalObject go = shapeMap.get(shapeID);
-            assert go != null;
-            go.edit(newClientID, type, color, width, height);
-
-            GraphicalObject oldGO = markerMap.get(go.getClientID());
-            if (oldGO != null) {
-                oldGO.setMarked(false);
-                tellAllDrawers("UNMARK " + oldGO.getShapeID() + ":" + oldGO.getClientID());
+        editShape(shapeID, newClientID, type, GraphicalObject.colorForName(color), width, height);
+    }
+
+    /**
+     * Edits a shape, taking the color as a Color rather than a name
+     * (the binary socket protocol sends any RGB value)
+     */
+    public void editShape(long shapeID, long newClientID, GraphicalObject.ShapeType type, Color color, int width, int height) {
+        // The leader only takes named colors
+        if (forwarded(l -> l.editShape(shapeID, newClientID, type, ShapeState.colorName(color), width, height))) {
+            return;
+        }
+        CanvasOperationEvent event = new CanvasOperationEvent();
+        event.begin();
+        if (mayChange(newClientID)) {
+            // Edit and publish together, so concurrent edits are logged in the order they were made
+            GraphicalObject go = shapeStore.edit(shapeID, newClientID, type, color,
+                    ShapeState.clampSize(width), ShapeState.clampSize(height),
+                    edited -> publish(CanvasChange.edited(shapeID, edited)));
+            if (go == null) {
+                // Removed before the edit got here
+                return;
             }
-            markerMap.put(go.getClientID(), go);
 
-            go.setMarked(true);
-            markerTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    go.run();
-                    tellAllDrawers("UNMARK " + shapeID + ":" + go.getClientID());
-                    versionNumber.incrementAndGet();
-                }
-            }, 3000);
-            tellAllDrawers("EDITED " + shapeID + ":" + go.getClientID() + ":" + go.toString());
-            tellAllDrawers("MARK " + shapeID + ":" + go.getClientID());
-            versionNumber.incrementAndGet();
+            mark(shapeID, newClientID);
+            changed(shapeID);
+            METRICS.edits.increment();
+            event.finish(CanvasOperationEvent.EDIT, shapeID, newClientID, queueDepth());
         }
     }
 
+    // A change made on the leader, by forwarded()
+    private interface LeaderCall {
+        void call(CanvasInterface leader) throws RemoteException;
+    }
+
+    /**
+     * Makes a change on the leader instead, when this canvas follows one.
+     * Bans and admission are the leader's to check. A change the leader
+     * can't be reached for is dropped.
+     * @return false if this canvas is the leader
+     */
+    private boolean forwarded(LeaderCall call) {
+        CanvasInterface l = leader;
+        if (l == null) {
+            return false;
+        }
+        try {
+            call.call(l);
+        } catch (RemoteException e) {
+            System.out.println("Cannot forward change to leader: " + e);
+        }
+        return true;
+    }
+
+    /**
+     * Checks a client may change the canvas: banned clients are ignored,
+     * and clients the admission policy turns away are told to retry later
+     * @return false if the client is banned
+     * @throws AdmissionRejectedException if the admission policy turns the change away
+     */
+    private boolean mayChange(long clientID) {
+        if (bannedIDs.contains(clientID)) {
+            METRICS.banRejections.increment();
+            return false;
+        }
+        long retryAfterMillis = admission.admit(clientID);
+        if (retryAfterMillis > 0) {
+            METRICS.admissionRejections.increment();
+            throw new AdmissionRejectedException(clientID, retryAfterMillis);
+        }
+        return true;
+    }
+
+    /**
+     * Marks a shape with the ID of the client that placed or edited it, for 3 seconds,
+     * and takes the marker off the last shape the client placed or edited.
+     * Both are made and published under the wheel's lock, in step with the
+     * client's other markers and the marker running out.
+     */
+    private void mark(long shapeID, long clientID) {
+        markerWheels[PersistentShapeMap.shardOf(clientID, shards)].mark(clientID, shapeID, oldShapeID -> {
+            if (oldShapeID != MarkerWheel.NONE && oldShapeID != shapeID) {
+                shapeStore.setMarked(oldShapeID, false);
+                publish(CanvasChange.unmark(oldShapeID, clientID));
+            }
+            shapeStore.setMarked(shapeID, true);
+            publish(CanvasChange.mark(shapeID, clientID));
+        });
+    }
+
+    // Called by the marker wheel when a client's marker has been on for 3 seconds
+    private void markerRanOut(long clientID, long shapeID) {
+        shapeStore.setMarked(shapeID, false);
+        publish(CanvasChange.unmark(shapeID, clientID));
+        changed(shapeID);
+    }
+
+    // Counts a change to a shape in the version of its shard
+    private void changed(long shapeID) {
+        versions.incrementAndGet(PersistentShapeMap.shardOf(shapeID, shards) * VERSION_STRIDE);
+    }
+
+    // Counts a change made by a client to every shard once, in the client's shard
+    private void changedBy(long clientID) {
+        changed(clientID);
+    }
+
+    // Sets the version of the canvas, putting it all in the first shard
+    private void setVersion(long version) {
+        for (int i = 1; i < shards; i++) {
+            versions.set(i * VERSION_STRIDE, 0);
+        }
+        versions.set(0, version);
+    }
+
     /**
      * Removes all shapes from the shape list
      */
     @Override
     public void removeAll(long ID) {
-        boolean canRemoveAll;
-        synchronized (bannedIDLock) {
-            canRemoveAll = !bannedIDs.contains(ID);
+        if (forwarded(l -> l.removeAll(ID))) {
+            return;
         }
-        if (canRemoveAll) {
-            shapeMap.clear();
-            tellAllDrawers("REMOVED_ALL");
-            versionNumber.set(0);
+        CanvasOperationEvent event = new CanvasOperationEvent();
+        event.begin();
+        if (mayChange(ID)) {
+            shapeStore.clear();
+            publish(CanvasChange.removedAll());
+            setVersion(0);
+            METRICS.removeAlls.increment();
+            event.finish(CanvasOperationEvent.REMOVE_ALL, 0, ID, queueDepth());
         }
     }
 
@@ -216,32 +478,175 @@ public class Canvas implements CanvasInterface, Runnable {
      */
     @Override
     public void removeAllWithID(long ID) {
-        boolean canRemoveWithID;
-        synchronized (bannedIDLock) {
-            canRemoveWithID = !bannedIDs.contains(ID);
+        if (forwarded(l -> l.removeAllWithID(ID))) {
+            return;
         }
-        if (canRemoveWithID) {
-            shapeMap.entrySet().removeIf(e -> e.getValue().getClientID() == ID);
-            tellAllDrawers("REMOVED_FROM " + ID);
-            versionNumber.incrementAndGet();
+        CanvasOperationEvent event = new CanvasOperationEvent();
+        event.begin();
+        if (mayChange(ID)) {
+            shapeStore.removeShapesOf(ID);
+            publish(CanvasChange.removedFrom(ID));
+            changedBy(ID);
+            METRICS.removeMines.increment();
+            event.finish(CanvasOperationEvent.REMOVE_MINE, 0, ID, queueDepth());
         }
     }
 
     /**
-     * @return The list of shapes drawn by all clients
+     * @return The list of shapes drawn by all clients (a copy, when they are kept in columns)
      */
     @Override
     public ConcurrentHashMap<Long, GraphicalObject> getShapeMap() {
-        return shapeMap;
+        return shapeStore.asMap();
+    }
+
+    /**
+     * @return number of shapes on the canvas
+     */
+    public int getShapeCount() {
+        return shapeStore.size();
+    }
+
+    /**
+     * Goes through the shapes without copying them all into a map first
+     */
+    void forEachShape(BiConsumer<Long, GraphicalObject> action) {
+        shapeStore.forEach(action);
+    }
+
+    /**
+     * Finds the shapes that are at least partly inside a region of the canvas
+     * @param x left edge of the region
+     * @param y top edge of the region
+     * @param width width of the region
+     * @param height height of the region
+     * @return the shapes in the region
+     */
+    @Override
+    public ConcurrentHashMap<Long, GraphicalObject> getShapesInRegion(int x, int y, int width, int height) {
+        return getShapesInRegion(new Rectangle(x, y, width, height));
+    }
+
+    /**
+     * @param region area of the canvas, null for all of it
+     * @return the shapes at least partly inside the region
+     */
+    public ConcurrentHashMap<Long, GraphicalObject> getShapesInRegion(Rectangle region) {
+        return shapeStore.inRegion(region);
+    }
+
+    /**
+     * Finds the shape a user clicked on
+     * @param x x coordinate of the point
+     * @param y y coordinate of the point
+     * @return the topmost shape at the point, null if there is none
+     */
+    @Override
+    public GraphicalObject getShapeAt(int x, int y) {
+        return shapeStore.topmostAt(x, y);
+    }
+
+    /**
+     * Gets what changed since a version of the change log. When those
+     * changes are no longer in the log, the whole shape map is returned.
+     * @param version change log version the client has (0 if it has nothing)
+     * @return the changes since that version, or a full snapshot
+     */
+    @Override
+    public CanvasDelta getChangesSince(long version) {
+        return getChangesSince(version, null);
+    }
+
+    /**
+     * Gets what changed since a version of the change log in one region of
+     * the canvas. Shapes added outside the region are left out. Edits are
+     * always included, since an edit can shrink a shape out of the region.
+     * @param version change log version the client has (0 if it has nothing)
+     * @param viewport region the client looks at, null for all of it
+     * @return the changes since that version, or a full snapshot of the region
+     */
+    @Override
+    public CanvasDelta getChangesSince(long version, Rectangle viewport) {
+        List<CanvasChange> changes = changeLog.since(version);
+        if (changes != null) {
+            long toVersion = version + changes.size();
+            if (viewport != null) {
+                changes.removeIf(change -> change.getKind() == CanvasChange.Kind.ADDED &&
+                        !change.getShape().intersects(viewport));
+            }
+            return new CanvasDelta(toVersion, changes, null);
+        }
+        // Anything changed after this version is also applied on top of the copy, which is harmless
+        long toVersion = changeLog.getVersion();
+        Map<Long, GraphicalObject> region = getShapesInRegion(viewport);
+        HashMap<Long, GraphicalObject> shapes = new HashMap<>(region.size());
+        region.forEach((shapeID, go) -> {
+            GraphicalObject copy = go.clone();
+            copy.setMarked(go.isMarked());
+            shapes.put(shapeID, copy);
+        });
+        return new CanvasDelta(toVersion, null, shapes);
+    }
+
+    /**
+     * @return latest version of the change log
+     */
+    long getChangeLogVersion() {
+        return changeLog.getVersion();
+    }
+
+    /**
+     * Registers an RMI callback that is pushed the changes made from now on.
+     * Registering the same listener again does nothing.
+     * @param listener exported client callback
+     * @param version change log version the client has
+     */
+    @Override
+    public void addListener(CanvasListener listener, long version) {
+        listeners.add(listener, version, null);
+    }
+
+    /**
+     * Registers an RMI callback that is only pushed the changes in one
+     * region of the canvas (see getChangesSince). Registering the same
+     * listener again does nothing, so to look at another region a client
+     * removes its listener and registers it again.
+     * @param listener exported client callback
+     * @param version change log version the client has
+     * @param viewport region the client looks at, null for all of it
+     */
+    @Override
+    public void addListener(CanvasListener listener, long version, Rectangle viewport) {
+        listeners.add(listener, version, viewport);
     }
 
     /**
-     * Calls the SnapshotSaver saveSnapshot method
+     * Stops pushing changes to a listener.
+     * @param listener listener to remove
+     */
+    @Override
+    public void removeListener(CanvasListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Calls the SnapshotSaver saveSnapshot method. The snapshot shares the
+     * canvas' persistent shape map, so no shape is copied (unless the
+     * shapes are kept in columns).
      * @param ID ID of user saving the snapshot
      */
     @Override
     public void saveSnapshot(long ID) {
-        snapshotSaver.saveSnapshot(ID, shapeMap);
+        // Snapshots are kept by the leader
+        if (forwarded(l -> l.saveSnapshot(ID))) {
+            return;
+        }
+        SnapshotEvent event = new SnapshotEvent();
+        event.begin();
+        PersistentShapeMap shapes = shapeStore.snapshot();
+        METRICS.snapshotShapes.record(shapes.size());
+        snapshotSaver.saveSnapshot(ID, shapes);
+        event.finish(SnapshotEvent.SAVE, ID, shapes.size());
     }
 
     /**
@@ -251,34 +656,195 @@ public class Canvas implements CanvasInterface, Runnable {
      */
     @Override
     public ConcurrentHashMap<Long, GraphicalObject> getSnapshot(long ID) {
-        return snapshotSaver.retrieveSnapshot(ID);
+        CanvasInterface l = leader;
+        if (l != null) {
+            try {
+                return l.getSnapshot(ID);
+            } catch (RemoteException e) {
+                System.out.println("Cannot get snapshot from leader: " + e);
+                return new ConcurrentHashMap<>();
+            }
+        }
+        SnapshotEvent event = new SnapshotEvent();
+        event.begin();
+        ConcurrentHashMap<Long, GraphicalObject> snapshot = snapshotSaver.retrieveSnapshot(ID);
+        event.finish(SnapshotEvent.LOAD, ID, snapshot.size());
+        return snapshot;
+    }
+
+    /**
+     * @return messages waiting to be broadcast. Read without the queue's
+     * lock, so it may be a little out of date; it is only for events.
+     */
+    private int queueDepth() {
+        return queuedMessages;
+    }
+
+    /**
+     * Records a change in the change log and tells the socket connections about it.
+     * @param change the change that was made
+     */
+    private void publish(CanvasChange change) {
+        Journal j = journal;
+        if (j != null) {
+            j.append(change);
+        }
+        changeLog.append(change);
+        tellAllDrawers(SocketMessage.of(change));
     }
 
     /**
      * Sends a message out to all socket connections to inform them of
-     * changes made on the server.
+     * changes made on the server. Messages are gathered for the batch
+     * window and sent together, unless the batch fills up first.
      * @param message message to send to all socket connections
      */
-    private void tellAllDrawers(String message) {
+    private void tellAllDrawers(SocketMessage message) {
         synchronized (socketMessageQueue) {
             socketMessageQueue.add(message);
+            queuedMessages++;
+            METRICS.queuedBroadcasts.increment();
             if (!isRunning) {
                 isRunning = true;
+                pendingBatch = exec.schedule(this, batchWindowMillis, TimeUnit.MILLISECONDS);
+            } else if (queuedMessages >= batchMaxMessages && pendingBatch != null && pendingBatch.cancel(false)) {
+                // Batch is full, don't wait for the rest of the window
+                pendingBatch = null;
                 exec.execute(this);
             }
         }
     }
 
+    /**
+     * @return true if this canvas follows a leader, and makes its changes there
+     */
+    public boolean isFollower() {
+        return leader != null;
+    }
+
+    /**
+     * Makes this canvas a follower of another one (normally in another
+     * process, found through RMI). It copies the leader's shapes, then has
+     * the leader push it every change, which it makes here and tells its
+     * own socket and RMI clients about. Changes made here, and new user
+     * IDs and snapshots, are forwarded to the leader.
+     * @param leader canvas to follow
+     * @throws RemoteException if the leader can't be reached
+     */
+    public void follow(CanvasInterface leader) throws RemoteException {
+        Follower follower = new Follower(this, leader);
+        // A leader in this process calls the follower directly
+        follower.start(!(leader instanceof Canvas));
+        this.leader = leader;
+        System.out.println("Following leader");
+    }
+
+    /**
+     * Moves a socket client to another room, which is made (or brought back
+     * from disk) if it isn't in memory. The client stops hearing about this
+     * canvas; it is up to the Drawer to send it the room's shapes.
+     * @param drawer client to move
+     * @param room name of the room (see CanvasRegistry)
+     * @return the canvas the client is in now, this one if the server has no rooms
+     * @throws IllegalArgumentException if the name isn't a valid room name
+     * @throws java.io.UncheckedIOException if the room can't be read from disk
+     */
+    public Canvas joinRoom(Drawer drawer, String room) {
+        CanvasRegistry r = rooms;
+        return r == null ? this : r.move(drawer, this, room);
+    }
+
+    void setRooms(CanvasRegistry rooms) {
+        this.rooms = rooms;
+    }
+
+    void attach(Drawer drawer) {
+        socketConnections.add(drawer);
+    }
+
+    void detach(Drawer drawer) {
+        socketConnections.remove(drawer);
+    }
+
+    /**
+     * @return whether no socket or RMI client is listening to the canvas
+     */
+    boolean isIdle() {
+        return socketConnections.isEmpty() && listeners.size() == 0;
+    }
+
+    /**
+     * @return number of socket clients connected to the canvas
+     */
+    int getConnectionCount() {
+        return socketConnections.size();
+    }
+
+    /**
+     * Closes the journal and stops the threads of a canvas that is done
+     * with, such as a room evicted from memory. Its clients must have left
+     * already. A canvas that isn't a room closes its snapshot file too.
+     */
+    public void close() {
+        Journal j = journal;
+        journal = null;
+        if (j != null) {
+            j.close();
+            removeShutdownHook(journalHook);
+        }
+        for (MarkerWheel wheel : markerWheels) {
+            wheel.stop();
+        }
+        markerTicker.shutdownNow();
+        exec.shutdown();
+        removeShutdownHook(connectionsHook);
+        // Rooms share the lobby's snapshots
+        if (lobby == null) {
+            snapshotSaver.close();
+        }
+    }
+
+    private static void removeShutdownHook(Thread hook) {
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException ignored) {
+            // Shutting down already
+        }
+    }
+
+    /**
+     * Sets how socket broadcasts are batched.
+     * @param windowMillis how long to gather messages before sending them (0 to send right away)
+     * @param maxMessages most messages sent in one frame
+     */
+    public void setBatching(long windowMillis, int maxMessages) {
+        batchWindowMillis = windowMillis;
+        batchMaxMessages = maxMessages;
+    }
+
+    /**
+     * Sets which changes are let through, e.g. a TokenBucketAdmission to
+     * rate limit each client
+     * @param policy the policy, AdmissionPolicy.UNLIMITED to let everything through
+     */
+    public void setAdmissionPolicy(AdmissionPolicy policy) {
+        admission = policy;
+    }
+
     public void ban(long id) {
-        synchronized (bannedIDLock) {
-            bannedIDs.add(id);
+        bannedIDs.add(id);
+        Journal j = journal;
+        if (j != null) {
+            j.banned(id, true);
         }
         System.out.println("Banning user " + id);
     }
 
     public void unban(long id) {
-        synchronized (bannedIDLock) {
-            bannedIDs.remove(id);
+        bannedIDs.remove(id);
+        Journal j = journal;
+        if (j != null) {
+            j.banned(id, false);
         }
         System.out.println("Unbanning user " + id);
     }
@@ -291,16 +857,14 @@ public class Canvas implements CanvasInterface, Runnable {
 
             // Write all shapes to file
             writer.println("Shapes:");
-            shapeMap.forEach((shapeID, shape) -> writer.println(shapeID + ":" + shape.getClientID() + ":" + shape));
+            shapeStore.forEach((shapeID, shape) -> writer.println(shapeID + ":" + shape.getClientID() + ":" + shape));
 
             // Write all banned users to file
             writer.println("Banned Users:");
-            synchronized (bannedIDLock) {
-                bannedIDs.forEach((id) -> writer.println("ID: " + id));
-            }
+            bannedIDs.toList().forEach((id) -> writer.println("ID: " + id));
 
             writer.println("Snapshots:");
-            snapshotSaver.getMap().forEach((clientID, snapshot) -> {
+            snapshotSaver.forEach((clientID, snapshot) -> {
                writer.println("ID " + clientID);
                snapshot.forEach((shapeID, shape) -> writer.println(shapeID + ":" + shape.getClientID() + ":" + shape));
             });
@@ -312,22 +876,225 @@ public class Canvas implements CanvasInterface, Runnable {
         System.out.println("Done dumping to file!");
     }
 
+    /**
+     * Prints the outbound queue depth and drop counts of every socket connection.
+     */
+    public void printOutboundStats() {
+        long totalDepth = 0, totalDropped = 0, totalResyncs = 0;
+        for (Drawer drawer : socketConnections) {
+            System.out.println(drawer + " queued: " + drawer.getQueueDepth() +
+                    " dropped: " + drawer.getDroppedFrames() + " resyncs: " + drawer.getResyncs());
+            totalDepth += drawer.getQueueDepth();
+            totalDropped += drawer.getDroppedFrames();
+            totalResyncs += drawer.getResyncs();
+        }
+        System.out.println("Connections: " + socketConnections.size() + " queued: " + totalDepth +
+                " dropped: " + totalDropped + " resyncs: " + totalResyncs);
+    }
+
     public void eraseSnapshots() {
         snapshotSaver.eraseSnapshots();
     }
 
+    /**
+     * Sets how many client snapshots stay in memory; the rest are read back
+     * from the snapshot file when retrieved
+     * @param maxResident most snapshots kept in memory
+     * @param idleMillis how long a snapshot nobody saves or retrieves stays in memory
+     */
+    public void setSnapshotResidency(int maxResident, long idleMillis) {
+        snapshotSaver.setResidency(maxResident, idleMillis);
+    }
+
+    /**
+     * Prints how much memory each snapshot takes, and how much of it is
+     * shared with the canvas and the other snapshots.
+     */
+    public void printSnapshotMemory() {
+        snapshotSaver.printMemory(shapeStore.snapshot());
+    }
+
+    /**
+     * Waits until every snapshot taken so far is written to the snapshot file.
+     */
+    public void syncSnapshots() {
+        snapshotSaver.sync();
+    }
+
+    /**
+     * @return number of client snapshots in memory
+     */
+    public int getResidentSnapshotCount() {
+        return snapshotSaver.residentCount();
+    }
+
+    /**
+     * Rebuilds the canvas from a journal and journals every change from
+     * now on. Must be called before any clients connect.
+     * @param dir directory of the journal
+     * @param commitMillis time between group commits (how much can be lost in a crash)
+     * @param checkpointRecords records written before the journal is checkpointed
+     * @throws IOException if the journal can't be read or written
+     */
+    public void openJournal(Path dir, long commitMillis, int checkpointRecords) throws IOException {
+        Journal j = Journal.open(dir, this, commitMillis, checkpointRecords);
+        journal = j;
+        journalHook = new Thread(j::close);
+        Runtime.getRuntime().addShutdownHook(journalHook);
+    }
+
+    /**
+     * Writes a journal checkpoint, if journaling is on.
+     */
+    public void checkpoint() {
+        Journal j = journal;
+        if (j != null) {
+            j.requestCheckpoint();
+        } else {
+            System.out.println("Journaling is off");
+        }
+    }
+
+    long getLastUserID() {
+        return userIdGenerator.get();
+    }
+
+    long getLastShapeID() {
+        return shapeIDGenerator.get();
+    }
+
+    List<Long> getBannedIDs() {
+        // A room's bans are the lobby's, journaled by the lobby
+        return lobby != null ? List.of() : bannedIDs.toList();
+    }
+
+    // Journal replay. These change the state directly, without publishing
+    // anything, and replaying one twice has the same result as once.
+
+    /**
+     * Makes sure no user or shape ID up to these is handed out again
+     */
+    void restoreGenerators(long lastUserID, long lastShapeID) {
+        userIdGenerator.accumulateAndGet(lastUserID, Math::max);
+        shapeIDGenerator.accumulateAndGet(lastShapeID, Math::max);
+    }
+
+    void restoreVersion(long version) {
+        setVersion(version);
+    }
+
+    void restoreBan(long id, boolean banned) {
+        if (lobby != null) {
+            return;
+        }
+        if (banned) {
+            bannedIDs.add(id);
+        } else {
+            bannedIDs.remove(id);
+        }
+    }
+
+    /**
+     * Puts a shape as it was after being added or edited
+     * @param replayed true for a journal record, which counts towards the version
+     *                 as the change and its marker running out did, false for a checkpoint
+     */
+    void restoreShape(long shapeID, GraphicalObject go, boolean replayed) {
+        go.setShapeID(shapeID);
+        shapeStore.put(shapeID, go);
+        restoreGenerators(go.getClientID(), shapeID);
+        if (replayed) {
+            versions.addAndGet(PersistentShapeMap.shardOf(shapeID, shards) * VERSION_STRIDE, 2);
+        }
+    }
+
+    void restoreRemoveAllWithID(long ID) {
+        shapeStore.removeShapesOf(ID);
+        changedBy(ID);
+    }
+
+    void restoreRemoveAll() {
+        shapeStore.clear();
+        setVersion(0);
+    }
+
+    // Replication from the leader (see Follower). These change the state
+    // directly, and tell this canvas' clients without journaling anything.
+
+    /**
+     * Makes a change the leader made
+     */
+    void applyReplicated(CanvasChange change) {
+        switch (change.getKind()) {
+            case ADDED:
+            case EDITED:
+                GraphicalObject copy = change.getShape().clone();
+                copy.setShapeID(change.getShapeID());
+                shapeStore.put(change.getShapeID(), copy);
+                break;
+            case REMOVED_FROM:
+                shapeStore.removeShapesOf(change.getClientID());
+                break;
+            case REMOVED_ALL:
+                shapeStore.clear();
+                break;
+            case MARK:
+            case UNMARK:
+                shapeStore.setMarked(change.getShapeID(), change.getKind() == CanvasChange.Kind.MARK);
+                break;
+        }
+        changeLog.append(change);
+        tellAllDrawers(SocketMessage.of(change));
+    }
+
+    /**
+     * Replaces every shape with the leader's, when the follower fell
+     * further behind than the leader's change log goes back
+     * @param shapes the leader's shapes, with their markers
+     */
+    void replaceReplicated(Map<Long, GraphicalObject> shapes) {
+        applyReplicated(CanvasChange.removedAll());
+        shapes.forEach((shapeID, go) -> {
+            applyReplicated(CanvasChange.added(shapeID, go));
+            if (go.isMarked()) {
+                applyReplicated(CanvasChange.mark(shapeID, go.getClientID()));
+            }
+        });
+    }
+
+    /**
+     * Sends one batch of queued messages to every socket connection. The
+     * batch is coalesced and written to each Drawer as a single frame.
+     */
     @Override
     public void run() {
-        int numToSend;
+        BroadcastEvent event = new BroadcastEvent();
+        event.begin();
+        List<SocketMessage> batch;
+        int left;
         synchronized (socketMessageQueue) {
-            numToSend = socketMessageQueue.size();
-        }
-        for (int i = 0; i < numToSend; i++) {
-            String messageToSend = socketMessageQueue.poll();
-            synchronized (socketLock) {
-                socketConnections.forEach(sc -> sc.tell(messageToSend));
+            pendingBatch = null;
+            int numToSend = Math.min(queuedMessages, batchMaxMessages);
+            batch = new ArrayList<>(numToSend);
+            for (int i = 0; i < numToSend; i++) {
+                batch.add(socketMessageQueue.poll());
             }
+            queuedMessages -= numToSend;
+            METRICS.queuedBroadcasts.add(-numToSend);
+            left = queuedMessages;
+        }
+        List<SocketMessage> coalesced = BroadcastBatch.coalesce(batch);
+        Frame frame = new Frame(coalesced);
+        if (!frame.isEmpty()) {
+            // tell only queues the frame, so a slow client can't hold up the others.
+            // The frame is encoded once per wire format, not once per Drawer.
+            long start = System.nanoTime();
+            socketConnections.forEach(sc -> sc.tell(frame));
+            METRICS.fanOutMicros.record((System.nanoTime() - start) / 1000);
         }
+        // RMI listeners get the same batch as one delta
+        listeners.changed();
+        event.finish(batch.size(), coalesced.size(), socketConnections.size(), left);
         synchronized (socketMessageQueue) {
             if (socketMessageQueue.isEmpty()) {
                 isRunning = false;
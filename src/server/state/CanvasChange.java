@@ -0,0 +1,110 @@
+package server.state;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * One change made to the Canvas, as recorded in its change log. Changes
+ * are sent to RMI clients in a CanvasDelta and to socket clients as
+ * SocketMessages.
+ */
+public final class CanvasChange implements Serializable {
+
+    public enum Kind { ADDED, EDITED, REMOVED_FROM, REMOVED_ALL, MARK, UNMARK }
+
+    private final Kind kind;
+    private final long shapeID;
+    private final long clientID;
+
+    // Copy of the shape after the change (ADDED and EDITED only)
+    private final GraphicalObject shape;
+
+    private CanvasChange(Kind kind, long shapeID, long clientID, GraphicalObject shape) {
+        this.kind = kind;
+        this.shapeID = shapeID;
+        this.clientID = clientID;
+        this.shape = shape;
+    }
+
+    static CanvasChange added(long shapeID, GraphicalObject go) {
+        GraphicalObject copy = go.clone();
+        copy.setShapeID(shapeID);
+        return new CanvasChange(Kind.ADDED, shapeID, copy.getClientID(), copy);
+    }
+
+    static CanvasChange edited(long shapeID, GraphicalObject go) {
+        GraphicalObject copy = go.clone();
+        copy.setShapeID(shapeID);
+        return new CanvasChange(Kind.EDITED, shapeID, copy.getClientID(), copy);
+    }
+
+    static CanvasChange removedFrom(long clientID) {
+        return new CanvasChange(Kind.REMOVED_FROM, 0, clientID, null);
+    }
+
+    static CanvasChange removedAll() {
+        return new CanvasChange(Kind.REMOVED_ALL, 0, 0, null);
+    }
+
+    static CanvasChange mark(long shapeID, long clientID) {
+        return new CanvasChange(Kind.MARK, shapeID, clientID, null);
+    }
+
+    static CanvasChange unmark(long shapeID, long clientID) {
+        return new CanvasChange(Kind.UNMARK, shapeID, clientID, null);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public long getShapeID() {
+        return shapeID;
+    }
+
+    public long getClientID() {
+        return clientID;
+    }
+
+    /**
+     * @return copy of the shape after the change, null unless ADDED or EDITED.
+     * Don't modify it, it is shared by everyone the change is sent to.
+     */
+    public GraphicalObject getShape() {
+        return shape;
+    }
+
+    /**
+     * Applies the change to a client's copy of the shape map. Applying a
+     * change twice has the same result as applying it once.
+     * @param shapes shapes to change
+     */
+    public void applyTo(Map<Long, GraphicalObject> shapes) {
+        switch (kind) {
+            case ADDED:
+            case EDITED:
+                GraphicalObject copy = shape.clone();
+                copy.setShapeID(shapeID);
+                shapes.put(shapeID, copy);
+                break;
+            case REMOVED_FROM:
+                shapes.entrySet().removeIf(e -> e.getValue().getClientID() == clientID);
+                break;
+            case REMOVED_ALL:
+                shapes.clear();
+                break;
+            case MARK:
+            case UNMARK:
+                GraphicalObject go = shapes.get(shapeID);
+                if (go != null) {
+                    go.setMarked(kind == Kind.MARK);
+                }
+                break;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + shapeID + ":" + clientID + (shape != null ? ":" + shape : "");
+    }
+}
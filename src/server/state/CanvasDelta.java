@@ -0,0 +1,71 @@
+package server.state;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What changed on the Canvas between two versions of its change log.
+ * If the changes a client asked for are no longer in the log, the delta
+ * holds the whole shape map instead.
+ */
+public final class CanvasDelta implements Serializable {
+
+    private final long toVersion;
+
+    // Changes in order, or null for a full snapshot
+    private final List<CanvasChange> changes;
+
+    // Every shape, or null for an incremental delta
+    private final Map<Long, GraphicalObject> shapes;
+
+    CanvasDelta(long toVersion, List<CanvasChange> changes, Map<Long, GraphicalObject> shapes) {
+        this.toVersion = toVersion;
+        this.changes = changes;
+        this.shapes = shapes;
+    }
+
+    /**
+     * @return change log version the client is at after applying this delta
+     */
+    public long getToVersion() {
+        return toVersion;
+    }
+
+    /**
+     * @return whether this is a full snapshot rather than a list of changes
+     */
+    public boolean isFull() {
+        return shapes != null;
+    }
+
+    /**
+     * @return whether applying the delta changes nothing
+     */
+    public boolean isEmpty() {
+        return shapes == null && changes.isEmpty();
+    }
+
+    /**
+     * @return the changes, in order (empty for a full snapshot)
+     */
+    public List<CanvasChange> getChanges() {
+        return changes == null ? List.of() : changes;
+    }
+
+    /**
+     * Brings a client's copy of the shape map up to date.
+     * @param target shapes to change
+     */
+    public void applyTo(Map<Long, GraphicalObject> target) {
+        if (shapes != null) {
+            target.clear();
+            shapes.forEach((shapeID, go) -> {
+                go.setShapeID(shapeID);
+                target.put(shapeID, go);
+            });
+        } else {
+            changes.forEach(c -> c.applyTo(target));
+        }
+    }
+}
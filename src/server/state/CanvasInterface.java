@@ -2,7 +2,9 @@ package server.state;
 
 import server.Socket.Drawer;
 
+import java.awt.Rectangle;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.concurrent.ConcurrentHashMap;
@@ -12,12 +14,20 @@ public interface CanvasInterface extends Remote {
     long registerNewUser() throws RemoteException;
     long getVersionNumber() throws RemoteException;
     Drawer newSocketConnection(Socket socket) throws RemoteException;
+    Drawer newSocketConnection(SocketChannel channel) throws RemoteException;
     void removeSocketConnection(Drawer drawer) throws RemoteException;
     void addShape(GraphicalObject go) throws RemoteException;
     void editShape(long shapeID, long newClientID, GraphicalObject.ShapeType type, String color, int width, int height) throws RemoteException;
     void removeAll(long ID) throws RemoteException;
     void removeAllWithID(long ID) throws RemoteException;
     ConcurrentHashMap<Long, GraphicalObject> getShapeMap() throws RemoteException;
+    ConcurrentHashMap<Long, GraphicalObject> getShapesInRegion(int x, int y, int width, int height) throws RemoteException;
+    GraphicalObject getShapeAt(int x, int y) throws RemoteException;
+    CanvasDelta getChangesSince(long version) throws RemoteException;
+    CanvasDelta getChangesSince(long version, Rectangle viewport) throws RemoteException;
+    void addListener(CanvasListener listener, long version) throws RemoteException;
+    void addListener(CanvasListener listener, long version, Rectangle viewport) throws RemoteException;
+    void removeListener(CanvasListener listener) throws RemoteException;
     void saveSnapshot(long ID) throws RemoteException;
     ConcurrentHashMap<Long, GraphicalObject> getSnapshot(long ID) throws RemoteException;
 
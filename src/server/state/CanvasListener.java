@@ -0,0 +1,20 @@
+package server.state;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Callback an RMI client exports and registers with the Canvas to have
+ * changes pushed to it instead of polling for them.
+ */
+public interface CanvasListener extends Remote {
+
+    /**
+     * Called by the server with the changes since the last delta it pushed
+     * (or since the version given when registering). Deltas to one listener
+     * are sent one at a time, in order.
+     * @param delta changes to apply
+     */
+    void canvasChanged(CanvasDelta delta) throws RemoteException;
+
+}
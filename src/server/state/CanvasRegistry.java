@@ -0,0 +1,248 @@
+package server.state;
+
+import server.Socket.Drawer;
+import server.metrics.MeteredRemote;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+import java.util.regex.Pattern;
+
+/**
+ * The named canvases (rooms) one server hosts next to its main canvas, the
+ * lobby, where every client starts. A room is made the first time someone
+ * joins it and journals to a directory of its own, so a room nobody has
+ * been in for a while is dropped from memory and read back from disk when
+ * someone joins it again. The lobby is never dropped.
+ *
+ * The number of rooms in memory can be bounded too: past the bound, the
+ * rooms that have been empty longest are dropped first, so memory follows
+ * the rooms in use. Rooms with someone in them are never dropped, even
+ * past the bound. An RMI client that polls doesn't listen to its room, so
+ * it counts as in the room until it has made no call for the idle time.
+ *
+ * Rooms share the lobby's user IDs, bans, admission policy and snapshots;
+ * each has its own shapes, version, markers and clients.
+ *
+ * Joining and dropping a room both happen inside the map's compute for its
+ * name, so a room can't be dropped while someone is joining it.
+ */
+public final class CanvasRegistry implements RoomsInterface {
+
+    public static final String LOBBY = "lobby";
+    public static final long DEFAULT_IDLE_MILLIS = 60_000;
+    public static final int DEFAULT_MAX_ROOMS = 256;
+
+    private static final Pattern ROOM_NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private final Canvas lobby;
+    private final Path dir;
+    private final long idleMillis;
+    private final int maxRooms;
+
+    private final ConcurrentHashMap<String, Canvas> rooms;
+    // When each room in memory was first seen with nobody in it
+    private final ConcurrentHashMap<String, Long> idleSince;
+
+    private final ScheduledExecutorService evicting;
+    // What is exported for RMI clients in place of each canvas, once RMI is running
+    private final ConcurrentHashMap<Canvas, CanvasInterface> remotes;
+    private volatile boolean exported;
+
+    /**
+     * @param lobby main canvas of the server
+     * @param dir directory the rooms journal to, one subdirectory each
+     * @param idleMillis how long a room stays in memory with nobody in it
+     * @param maxRooms most rooms kept in memory while nobody is in them
+     */
+    public CanvasRegistry(Canvas lobby, Path dir, long idleMillis, int maxRooms) {
+        this.lobby = lobby;
+        this.dir = dir;
+        this.idleMillis = idleMillis;
+        this.maxRooms = maxRooms;
+        rooms = new ConcurrentHashMap<>();
+        idleSince = new ConcurrentHashMap<>();
+        remotes = new ConcurrentHashMap<>();
+        lobby.setRooms(this);
+
+        evicting = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Room-eviction");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, idleMillis / 4);
+        evicting.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Has rooms exported for RMI clients as they are made, each behind a
+     * MeteredRemote
+     * @param lobbyRemote what is exported for the lobby
+     */
+    public void setExported(CanvasInterface lobbyRemote) {
+        remotes.put(lobby, lobbyRemote);
+        exported = true;
+    }
+
+    @Override
+    public CanvasInterface join(String room) {
+        if (room.equals(LOBBY)) {
+            return remotes.getOrDefault(lobby, lobby);
+        }
+        checkName(room);
+        Canvas joined = rooms.compute(room, (name, canvas) -> {
+            // Give the client the whole idle time to start listening
+            idleSince.remove(name);
+            return canvas != null ? canvas : open(name);
+        });
+        checkBound();
+        return remotes.getOrDefault(joined, joined);
+    }
+
+    /**
+     * Moves a socket client from one canvas of the server to a room
+     * @return the room's canvas
+     */
+    Canvas move(Drawer drawer, Canvas from, String room) {
+        Canvas to;
+        if (room.equals(LOBBY)) {
+            to = lobby;
+            if (to != from) {
+                to.attach(drawer);
+            }
+        } else {
+            checkName(room);
+            to = rooms.compute(room, (name, canvas) -> {
+                idleSince.remove(name);
+                if (canvas == null) {
+                    canvas = open(name);
+                }
+                if (canvas != from) {
+                    canvas.attach(drawer);
+                }
+                return canvas;
+            });
+            checkBound();
+        }
+        if (to != from) {
+            from.detach(drawer);
+        }
+        return to;
+    }
+
+    /**
+     * @return number of rooms in memory, not counting the lobby
+     */
+    public int size() {
+        return rooms.size();
+    }
+
+    /**
+     * Prints the rooms in memory and how many socket clients are in each
+     */
+    public void print() {
+        System.out.println(LOBBY + ": " + lobby.getConnectionCount() + " socket clients");
+        rooms.forEach((name, canvas) ->
+                System.out.println(name + ": " + canvas.getConnectionCount() + " socket clients"));
+    }
+
+    private void checkBound() {
+        if (rooms.size() > maxRooms) {
+            evicting.execute(this::evictIdle);
+        }
+    }
+
+    /**
+     * Drops the rooms that have had nobody in them for the idle time, then
+     * those empty longest while there are more rooms than the bound
+     */
+    void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (String room : rooms.keySet()) {
+            evictIf(room, since -> now - since >= idleMillis, now);
+        }
+        if (rooms.size() > maxRooms) {
+            List<Map.Entry<String, Long>> empty = new ArrayList<>(idleSince.entrySet());
+            empty.sort(Map.Entry.comparingByValue());
+            for (Map.Entry<String, Long> e : empty) {
+                if (rooms.size() <= maxRooms) {
+                    break;
+                }
+                evictIf(e.getKey(), since -> true, now);
+            }
+        }
+    }
+
+    // Drops a room if nobody is in it and it has been empty long enough
+    private void evictIf(String room, LongPredicate emptyLongEnough, long now) {
+        rooms.computeIfPresent(room, (name, canvas) -> {
+            if (!canvas.isIdle() || now - lastRemoteCall(canvas) < idleMillis) {
+                idleSince.remove(name);
+                return canvas;
+            }
+            if (!emptyLongEnough.test(idleSince.computeIfAbsent(name, n -> now))) {
+                return canvas;
+            }
+            idleSince.remove(name);
+            evict(name, canvas);
+            return null;
+        });
+    }
+
+    // When an RMI client last called a room, 0 if none has
+    private long lastRemoteCall(Canvas canvas) {
+        CanvasInterface remote = remotes.get(canvas);
+        return remote != null ? MeteredRemote.lastCallMillis(remote) : 0;
+    }
+
+    private Canvas open(String name) {
+        Canvas canvas = new Canvas(lobby);
+        try {
+            canvas.openJournal(dir.resolve(name), Canvas.DEFAULT_JOURNAL_COMMIT_MILLIS,
+                    Canvas.DEFAULT_JOURNAL_CHECKPOINT_RECORDS);
+        } catch (IOException e) {
+            canvas.close();
+            throw new UncheckedIOException("Cannot open room " + name, e);
+        }
+        if (exported) {
+            try {
+                CanvasInterface remote = MeteredRemote.wrap(canvas, CanvasInterface.class);
+                UnicastRemoteObject.exportObject(remote, 0);
+                remotes.put(canvas, remote);
+            } catch (RemoteException e) {
+                canvas.close();
+                throw new IllegalStateException("Cannot export room " + name, e);
+            }
+        }
+        System.out.println("Opened room " + name);
+        return canvas;
+    }
+
+    private void evict(String name, Canvas canvas) {
+        CanvasInterface remote = remotes.remove(canvas);
+        if (remote != null) {
+            try {
+                UnicastRemoteObject.unexportObject(remote, true);
+            } catch (NoSuchObjectException ignored) {}
+        }
+        canvas.close();
+        System.out.println("Evicted room " + name);
+    }
+
+    private static void checkName(String room) {
+        if (!ROOM_NAME.matcher(room).matches()) {
+            throw new IllegalArgumentException("Room names are 1 to 64 letters, digits, - or _: " + room);
+        }
+    }
+}
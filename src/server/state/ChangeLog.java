@@ -0,0 +1,105 @@
+package server.state;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, versioned log of the changes made to a Canvas. Writers append
+ * without taking a lock: each change gets the next sequence number and
+ * the published version only moves past a number once every change up
+ * to it is in the log, so readers never skip over a change that is
+ * still being appended. When the log grows past its capacity the oldest
+ * published changes are dropped.
+ */
+class ChangeLog {
+
+    // Default number of changes kept
+    static final int DEFAULT_CAPACITY = 10000;
+
+    private final int capacity;
+    private final AtomicLong sequence;
+    private final AtomicLong published;
+    private final ConcurrentSkipListMap<Long, CanvasChange> log;
+    private final AtomicInteger size;
+
+    ChangeLog(int capacity) {
+        this.capacity = capacity;
+        this.sequence = new AtomicLong(0);
+        this.published = new AtomicLong(0);
+        this.log = new ConcurrentSkipListMap<>();
+        this.size = new AtomicInteger(0);
+    }
+
+    /**
+     * Adds a change to the end of the log.
+     * @param change change to add
+     * @return version of the change
+     */
+    long append(CanvasChange change) {
+        long version = sequence.incrementAndGet();
+        log.put(version, change);
+        size.incrementAndGet();
+        publish();
+        trim();
+        return version;
+    }
+
+    /**
+     * @return the latest version whose changes, and every earlier one, are in the log
+     */
+    long getVersion() {
+        return published.get();
+    }
+
+    /**
+     * @param version version the client has
+     * @return the changes after it, in order, or null if some of them were already dropped
+     */
+    List<CanvasChange> since(long version) {
+        long to = published.get();
+        if (version == to) {
+            return new ArrayList<>(0);
+        }
+        if (version > to) {
+            // Client is ahead of this log (e.g. the server restarted)
+            return null;
+        }
+        Map.Entry<Long, CanvasChange> first = log.firstEntry();
+        if (first == null || first.getKey() > version + 1) {
+            return null;
+        }
+        List<CanvasChange> changes = new ArrayList<>((int) Math.min(to - version, capacity));
+        for (Map.Entry<Long, CanvasChange> e : log.subMap(version, false, to, true).entrySet()) {
+            changes.add(e.getValue());
+        }
+        // The oldest of them may have been dropped while copying
+        Map.Entry<Long, CanvasChange> stillFirst = log.firstEntry();
+        if (stillFirst == null || stillFirst.getKey() > version + 1) {
+            return null;
+        }
+        return changes;
+    }
+
+    private void publish() {
+        long p;
+        while (log.containsKey((p = published.get()) + 1)) {
+            published.compareAndSet(p, p + 1);
+        }
+    }
+
+    private void trim() {
+        while (size.get() > capacity) {
+            Map.Entry<Long, CanvasChange> first = log.firstEntry();
+            if (first == null || first.getKey() > published.get()) {
+                return;
+            }
+            if (log.remove(first.getKey()) != null) {
+                size.decrementAndGet();
+            }
+        }
+    }
+}
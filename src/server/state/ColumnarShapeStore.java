@@ -0,0 +1,418 @@
+package server.state;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Keeps shapes in primitive columns, one row per shape, for canvases with
+ * millions of shapes. A row takes 32 bytes:
+ *
+ *      <S#> (long)  <owner> <x> <y> <width> <height> <looks> (ints)
+ *
+ * where the owner is an index into a table of client IDs (there are far
+ * fewer clients than shapes) and looks holds the RGB color in the low 24
+ * bits, the type above it and the marker above that. Shape IDs are found
+ * through an open-addressing hash table of row numbers, which reads its
+ * keys from the S# column, so it adds 4 bytes per slot; it is grown by
+ * half when three quarters full. Columns are allocated in chunks, so
+ * growing them never copies a row.
+ *
+ * GraphicalObjects are only made at the edge, when a shape is asked for,
+ * and are copies: changing one doesn't change the store. There is no
+ * spatial index, so region queries and hit tests go through every row
+ * (which is a scan of a few int arrays), and a snapshot copies the rows.
+ *
+ * One lock guards everything; any number of threads can read at once.
+ */
+final class ColumnarShapeStore implements ShapeStore {
+
+    // Rows per chunk of a column
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // Layout of the looks column
+    private static final int RGB_MASK = 0xFFFFFF;
+    private static final int TYPE_SHIFT = 24;
+    private static final int TYPE_MASK = 3;
+    private static final int MARKED = 1 << 26;
+
+    private static final int MIN_TABLE_SIZE = 16;
+    private static final int MAX_LOAD_PERCENT = 75;
+
+    private static final GraphicalObject.ShapeType[] TYPES = GraphicalObject.ShapeType.values();
+
+    private final ReentrantReadWriteLock lock;
+
+    // Columns (shape ID 0 marks a free row)
+    private long[][] shapeIDs;
+    private int[][] owners, xs, ys, widths, heights, looks;
+    private int rows;
+    private int size;
+
+    // Rows freed by removes, used again before new ones
+    private int[] freeRows;
+    private int freeCount;
+
+    // Shape ID to row + 1 (0 is an empty slot)
+    private int[] table;
+
+    // Client IDs of the owner column, and the other way around
+    private long[] clients;
+    private final HashMap<Long, Integer> clientIndex;
+
+    ColumnarShapeStore() {
+        lock = new ReentrantReadWriteLock();
+        clientIndex = new HashMap<>();
+        clients = new long[16];
+        reset();
+    }
+
+    private void reset() {
+        shapeIDs = new long[0][];
+        owners = new int[0][];
+        xs = new int[0][];
+        ys = new int[0][];
+        widths = new int[0][];
+        heights = new int[0][];
+        looks = new int[0][];
+        rows = 0;
+        size = 0;
+        freeRows = new int[16];
+        freeCount = 0;
+        table = new int[MIN_TABLE_SIZE];
+    }
+
+    @Override
+    public void put(long shapeID, GraphicalObject go) {
+        ShapeState s = go.getState();
+        lock.writeLock().lock();
+        try {
+            int row = find(shapeID);
+            if (row < 0) {
+                if ((long) (size + 1) * 100 > (long) table.length * MAX_LOAD_PERCENT) {
+                    rehash(table.length + table.length / 2);
+                }
+                row = newRow();
+                shapeIDs[row >>> CHUNK_BITS][row & CHUNK_MASK] = shapeID;
+                insert(shapeID, row);
+                size++;
+            }
+            int c = row >>> CHUNK_BITS, r = row & CHUNK_MASK;
+            owners[c][r] = owner(s.getClientID());
+            xs[c][r] = s.getX();
+            ys[c][r] = s.getY();
+            widths[c][r] = s.getWidth();
+            heights[c][r] = s.getHeight();
+            looks[c][r] = looks(s) | (go.isMarked() ? MARKED : 0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public GraphicalObject get(long shapeID) {
+        lock.readLock().lock();
+        try {
+            int row = find(shapeID);
+            return row < 0 ? null : materialize(row);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public GraphicalObject edit(long shapeID, long clientID, GraphicalObject.ShapeType type, Color color,
+                                int width, int height, Consumer<GraphicalObject> whileEditing) {
+        lock.writeLock().lock();
+        try {
+            int row = find(shapeID);
+            if (row < 0) {
+                return null;
+            }
+            int c = row >>> CHUNK_BITS, r = row & CHUNK_MASK;
+            owners[c][r] = owner(clientID);
+            widths[c][r] = width;
+            heights[c][r] = height;
+            looks[c][r] = (color.getRGB() & RGB_MASK) | (type.ordinal() << TYPE_SHIFT) | (looks[c][r] & MARKED);
+            GraphicalObject go = materialize(row);
+            whileEditing.accept(go);
+            return go;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void setMarked(long shapeID, boolean marked) {
+        lock.writeLock().lock();
+        try {
+            int row = find(shapeID);
+            if (row >= 0) {
+                int c = row >>> CHUNK_BITS, r = row & CHUNK_MASK;
+                looks[c][r] = marked ? looks[c][r] | MARKED : looks[c][r] & ~MARKED;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeShapesOf(long clientID) {
+        lock.writeLock().lock();
+        try {
+            Integer owner = clientIndex.get(clientID);
+            if (owner == null) {
+                return;
+            }
+            for (int row = 0; row < rows; row++) {
+                int c = row >>> CHUNK_BITS, r = row & CHUNK_MASK;
+                if (shapeIDs[c][r] != 0 && owners[c][r] == owner) {
+                    removeRow(row);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            // Drops the columns, so the memory goes back too
+            reset();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<Long, GraphicalObject> action) {
+        lock.readLock().lock();
+        try {
+            for (int row = 0; row < rows; row++) {
+                long shapeID = shapeIDs[row >>> CHUNK_BITS][row & CHUNK_MASK];
+                if (shapeID != 0) {
+                    action.accept(shapeID, materialize(row));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ConcurrentHashMap<Long, GraphicalObject> asMap() {
+        ConcurrentHashMap<Long, GraphicalObject> shapes = new ConcurrentHashMap<>(size());
+        forEach(shapes::put);
+        return shapes;
+    }
+
+    @Override
+    public ConcurrentHashMap<Long, GraphicalObject> inRegion(Rectangle region) {
+        if (region == null) {
+            return asMap();
+        }
+        ConcurrentHashMap<Long, GraphicalObject> found = new ConcurrentHashMap<>();
+        lock.readLock().lock();
+        try {
+            for (int row = 0; row < rows; row++) {
+                int c = row >>> CHUNK_BITS, r = row & CHUNK_MASK;
+                int width = widths[c][r], height = heights[c][r];
+                long left = xs[c][r] - width / 2, top = ys[c][r] - height / 2;
+                // Same test as ShapeState.intersects
+                if (shapeIDs[c][r] != 0 && width > 0 && height > 0 && region.width > 0 && region.height > 0 &&
+                        left < (long) region.x + region.width && region.x < left + width &&
+                        top < (long) region.y + region.height && region.y < top + height) {
+                    found.put(shapeIDs[c][r], materialize(row));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return found;
+    }
+
+    @Override
+    public GraphicalObject topmostAt(int x, int y) {
+        lock.readLock().lock();
+        try {
+            // Shapes are drawn in ID order, so the topmost is the one with the highest ID
+            int best = -1;
+            long bestID = 0;
+            for (int row = 0; row < rows; row++) {
+                int c = row >>> CHUNK_BITS, r = row & CHUNK_MASK;
+                long shapeID = shapeIDs[c][r];
+                int width = widths[c][r], height = heights[c][r];
+                int left = xs[c][r] - width / 2, top = ys[c][r] - height / 2;
+                if (shapeID > bestID && x >= left && x < left + width && y >= top && y < top + height &&
+                        state(row).getOutline().contains(x, y)) {
+                    best = row;
+                    bestID = shapeID;
+                }
+            }
+            return best < 0 ? null : materialize(best);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public PersistentShapeMap snapshot() {
+        PersistentShapeMap[] snapshot = {PersistentShapeMap.EMPTY};
+        forEach((shapeID, go) -> snapshot[0] = snapshot[0].with(shapeID, go));
+        return snapshot[0];
+    }
+
+    private GraphicalObject materialize(int row) {
+        GraphicalObject go = new GraphicalObject(state(row));
+        go.setShapeID(shapeIDs[row >>> CHUNK_BITS][row & CHUNK_MASK]);
+        go.setMarked((looks[row >>> CHUNK_BITS][row & CHUNK_MASK] & MARKED) != 0);
+        return go;
+    }
+
+    private ShapeState state(int row) {
+        int c = row >>> CHUNK_BITS, r = row & CHUNK_MASK;
+        int l = looks[c][r];
+        return new ShapeState(clients[owners[c][r]], TYPES[(l >>> TYPE_SHIFT) & TYPE_MASK],
+                new Color(l & RGB_MASK), widths[c][r], heights[c][r], xs[c][r], ys[c][r]);
+    }
+
+    private static int looks(ShapeState s) {
+        return (s.getColor().getRGB() & RGB_MASK) | (s.getType().ordinal() << TYPE_SHIFT);
+    }
+
+    private int owner(long clientID) {
+        Integer owner = clientIndex.get(clientID);
+        if (owner == null) {
+            owner = clientIndex.size();
+            if (owner == clients.length) {
+                clients = Arrays.copyOf(clients, clients.length * 2);
+            }
+            clients[owner] = clientID;
+            clientIndex.put(clientID, owner);
+        }
+        return owner;
+    }
+
+    private int newRow() {
+        if (freeCount > 0) {
+            return freeRows[--freeCount];
+        }
+        int row = rows++;
+        int chunk = row >>> CHUNK_BITS;
+        if (chunk == shapeIDs.length) {
+            shapeIDs = Arrays.copyOf(shapeIDs, chunk + 1);
+            shapeIDs[chunk] = new long[CHUNK_SIZE];
+            owners = addChunk(owners);
+            xs = addChunk(xs);
+            ys = addChunk(ys);
+            widths = addChunk(widths);
+            heights = addChunk(heights);
+            looks = addChunk(looks);
+        }
+        return row;
+    }
+
+    private static int[][] addChunk(int[][] column) {
+        int[][] grown = Arrays.copyOf(column, column.length + 1);
+        grown[column.length] = new int[CHUNK_SIZE];
+        return grown;
+    }
+
+    private void removeRow(int row) {
+        delete(shapeIDs[row >>> CHUNK_BITS][row & CHUNK_MASK]);
+        shapeIDs[row >>> CHUNK_BITS][row & CHUNK_MASK] = 0;
+        if (freeCount == freeRows.length) {
+            freeRows = Arrays.copyOf(freeRows, freeRows.length * 2);
+        }
+        freeRows[freeCount++] = row;
+        size--;
+    }
+
+    // The hash table, with linear probing. Its size needn't be a power of
+    // two, since the hash is scaled to it rather than masked.
+
+    private int home(long shapeID) {
+        long hash = (shapeID * 0x9E3779B97F4A7C15L) >>> 32;
+        return (int) ((hash * table.length) >>> 32);
+    }
+
+    private int next(int slot) {
+        return slot + 1 == table.length ? 0 : slot + 1;
+    }
+
+    private long shapeIDAt(int slot) {
+        int row = table[slot] - 1;
+        return shapeIDs[row >>> CHUNK_BITS][row & CHUNK_MASK];
+    }
+
+    /**
+     * @return the row of the shape, -1 if there is none
+     */
+    private int find(long shapeID) {
+        for (int slot = home(shapeID); table[slot] != 0; slot = next(slot)) {
+            if (shapeIDAt(slot) == shapeID) {
+                return table[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(long shapeID, int row) {
+        int slot = home(shapeID);
+        while (table[slot] != 0) {
+            slot = next(slot);
+        }
+        table[slot] = row + 1;
+    }
+
+    private void delete(long shapeID) {
+        int slot = home(shapeID);
+        while (shapeIDAt(slot) != shapeID) {
+            slot = next(slot);
+        }
+        table[slot] = 0;
+        // Move back the entries after it that would no longer be found
+        for (int gap = slot, i = next(slot); table[i] != 0; i = next(i)) {
+            int home = home(shapeIDAt(i));
+            boolean reachable = gap <= i ? gap < home && home <= i : gap < home || home <= i;
+            if (!reachable) {
+                table[gap] = table[i];
+                table[i] = 0;
+                gap = i;
+            }
+        }
+    }
+
+    private void rehash(int newSize) {
+        table = new int[newSize];
+        for (int row = 0; row < rows; row++) {
+            long shapeID = shapeIDs[row >>> CHUNK_BITS][row & CHUNK_MASK];
+            if (shapeID != 0) {
+                int slot = home(shapeID);
+                while (table[slot] != 0) {
+                    slot = next(slot);
+                }
+                table[slot] = row + 1;
+            }
+        }
+    }
+}
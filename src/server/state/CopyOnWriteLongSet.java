@@ -0,0 +1,71 @@
+package server.state;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of longs kept as a sorted array that is replaced, never changed,
+ * when an ID is added or removed. Looking an ID up takes no lock and
+ * boxes nothing, so it suits sets read on every change and written
+ * rarely, like the banned client IDs.
+ */
+final class CopyOnWriteLongSet {
+
+    private volatile long[] ids = new long[0];
+
+    boolean contains(long id) {
+        long[] snapshot = ids;
+        return snapshot.length != 0 && Arrays.binarySearch(snapshot, id) >= 0;
+    }
+
+    /**
+     * @return true if the ID was not in the set
+     */
+    synchronized boolean add(long id) {
+        long[] old = ids;
+        int i = Arrays.binarySearch(old, id);
+        if (i >= 0) {
+            return false;
+        }
+        int at = -i - 1;
+        long[] added = new long[old.length + 1];
+        System.arraycopy(old, 0, added, 0, at);
+        added[at] = id;
+        System.arraycopy(old, at, added, at + 1, old.length - at);
+        ids = added;
+        return true;
+    }
+
+    /**
+     * @return true if the ID was in the set
+     */
+    synchronized boolean remove(long id) {
+        long[] old = ids;
+        int at = Arrays.binarySearch(old, id);
+        if (at < 0) {
+            return false;
+        }
+        long[] removed = new long[old.length - 1];
+        System.arraycopy(old, 0, removed, 0, at);
+        System.arraycopy(old, at + 1, removed, at, old.length - at - 1);
+        ids = removed;
+        return true;
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return the IDs, in ascending order
+     */
+    List<Long> toList() {
+        long[] snapshot = ids;
+        List<Long> list = new ArrayList<>(snapshot.length);
+        for (long id : snapshot) {
+            list.add(id);
+        }
+        return list;
+    }
+}
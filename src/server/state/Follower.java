@@ -0,0 +1,101 @@
+package server.state;
+
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a follower Canvas in step with its leader. The leader pushes its
+ * change log to the follower as it does to any RMI client (see
+ * ListenerRegistry): deltas in order, or the whole canvas when the
+ * follower fell further behind than the log goes back. The follower makes
+ * each change on its own canvas and tells its own clients about it, so
+ * reads and broadcasts are served by the followers and only writes go to
+ * the leader.
+ *
+ * The leader evicts listeners that fail or are slow, so the follower
+ * registers again every few seconds; registering a listener the leader
+ * still has does nothing.
+ */
+final class Follower implements CanvasListener {
+
+    // How often the follower makes sure the leader still pushes to it
+    static final long REGISTER_MILLIS = 2000;
+
+    private final Canvas canvas;
+    private final CanvasInterface leader;
+
+    // Change log version of the leader the follower is at
+    private long version;
+
+    private ScheduledExecutorService registering;
+    private volatile boolean leaderDown;
+
+    Follower(Canvas canvas, CanvasInterface leader) {
+        this.canvas = canvas;
+        this.leader = leader;
+    }
+
+    /**
+     * Copies the leader's canvas and has the leader push changes from then on
+     * @param export true when the leader is in another process, which calls
+     *               the follower back over RMI
+     * @throws RemoteException if the leader can't be reached
+     */
+    void start(boolean export) throws RemoteException {
+        if (export) {
+            UnicastRemoteObject.exportObject(this, 0);
+        }
+        canvasChanged(leader.getChangesSince(0));
+        long v;
+        synchronized (this) {
+            v = version;
+        }
+        leader.addListener(this, v);
+        registering = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Follower-register");
+            t.setDaemon(true);
+            return t;
+        });
+        registering.scheduleWithFixedDelay(this::register, REGISTER_MILLIS, REGISTER_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Makes the leader's changes on the follower's canvas. The leader sends
+     * deltas one at a time, so they are made in the leader's order.
+     */
+    @Override
+    public synchronized void canvasChanged(CanvasDelta delta) {
+        if (delta.isFull()) {
+            Map<Long, GraphicalObject> shapes = new HashMap<>();
+            delta.applyTo(shapes);
+            canvas.replaceReplicated(shapes);
+        } else {
+            delta.getChanges().forEach(canvas::applyReplicated);
+        }
+        version = delta.getToVersion();
+    }
+
+    private void register() {
+        long v;
+        synchronized (this) {
+            v = version;
+        }
+        try {
+            leader.addListener(this, v);
+            if (leaderDown) {
+                leaderDown = false;
+                System.out.println("Leader is back");
+            }
+        } catch (RemoteException e) {
+            if (!leaderDown) {
+                leaderDown = true;
+                System.out.println("Cannot reach leader: " + e);
+            }
+        }
+    }
+}
@@ -1,39 +1,38 @@
 package server.state;
 
+import server.Socket.BinaryProtocol;
+import server.Socket.TextParser;
+
 import java.awt.*;
 import java.io.Serializable;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
 
 /**
  * Holds the information on a shape added to the Canvas.
  * It is Serializable because the client sends these shapes
  * to the server using RMI, and vice versa.
+ *
+ * What the shape looks like is an immutable ShapeState, replaced as a
+ * whole when the shape is edited, so the getters take no lock. Whether the
+ * shape is marked is kept apart from it, since markers come and go
+ * without the shape changing.
  */
-public class GraphicalObject extends TimerTask implements Serializable {
+public class GraphicalObject implements Serializable {
 
     // clientID of the shape
-    private long shapeID;
-
-    // clientID of client origin
-    private long clientID;
+    private volatile long shapeID;
 
     // Type of shape to be drawn
     public enum ShapeType implements Serializable {Circle { public String toString() { return "Circle"; } },
                         Triangle { public String toString() { return "Triangle"; } },
                         Rectangle { public String toString() { return "Rectangle"; } } }
-    private ShapeType type;
-
-    // Values of width and height
-    private int width, height;
-
-    // Color of shape
-    private Color color;
+    private static final ShapeType[] SHAPE_TYPES = ShapeType.values();
 
-    // Location on canvas
-    private final Point p;
+    // Client of origin, type, color, size and location
+    private volatile ShapeState state;
 
     // Whether or not the GO is marked with client clientID
-    private boolean marked;
+    private volatile boolean marked;
 
     /**
      * Constructor specifying each attribute
@@ -45,13 +44,7 @@ public class GraphicalObject extends TimerTask implements Serializable {
      * @param p Where the shape is located
      */
     public GraphicalObject(long ID, ShapeType type, Color color, int width, int height, Point p) {
-        this.clientID = ID;
-        this.type = type;
-        this.color = color;
-        this.width = width;
-        this.height = height;
-        this.p = p;
-        this.marked = false;
+        this(new ShapeState(ID, type, color, width, height, p.x, p.y));
     }
 
     /**
@@ -61,10 +54,10 @@ public class GraphicalObject extends TimerTask implements Serializable {
      *              type, color, width, height, x, y
      */
     public GraphicalObject(long ID, String value) {
-        this.clientID = ID;
         String[] parts = value.split(" ");
 
         // ShapeType
+        ShapeType type;
         switch (parts[0]) {
             case "Circle":
                 type = ShapeType.Circle;
@@ -79,74 +72,145 @@ public class GraphicalObject extends TimerTask implements Serializable {
                 type = ShapeType.Circle;
         }
 
-        // Color
-        color = getNameColor(parts[1]);
+        // Color, Width/Height, Point
+        this.state = new ShapeState(ID, type, colorForName(parts[1]),
+                Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+                Integer.parseInt(parts[4]), Integer.parseInt(parts[5]));
+    }
+
+    /**
+     * Constructor for a shape in a given state
+     * @param state what the shape looks like
+     */
+    public GraphicalObject(ShapeState state) {
+        this.state = state;
+    }
+
+    /**
+     * Reads a shape in the binary socket format (see BinaryProtocol)
+     * @param ID clientID of client that created the shape
+     * @param buf buffer positioned at the shape
+     * @return the decoded shape
+     * @throws java.nio.BufferUnderflowException if the buffer holds only part of the shape
+     */
+    public static GraphicalObject readBinary(long ID, ByteBuffer buf) {
+        ShapeType type = SHAPE_TYPES[buf.get()];
+        Color color = new Color(BinaryProtocol.getRGB(buf));
+        int width = ShapeState.clampSize(BinaryProtocol.getVarInt(buf));
+        int height = ShapeState.clampSize(BinaryProtocol.getVarInt(buf));
+        int x = BinaryProtocol.getZigZag(buf);
+        int y = BinaryProtocol.getZigZag(buf);
+        return new GraphicalObject(new ShapeState(ID, type, color, width, height, x, y));
+    }
+
+    /**
+     * Reads a shape in the text socket format, as the constructor taking a
+     * String does, but straight from the parser's buffer
+     * @param ID clientID of client that created the shape
+     * @param parser parser positioned at the shape
+     * @return the decoded shape, its size clamped to ShapeState.MAX_SIZE
+     * @throws NumberFormatException if a size or coordinate is missing or not a number
+     */
+    public static GraphicalObject readText(long ID, TextParser parser) {
+        ShapeType type = parser.nextShapeType();
+        Color color = parser.nextColor();
+        int width = ShapeState.clampSize(parser.nextInt());
+        int height = ShapeState.clampSize(parser.nextInt());
+        int x = parser.nextInt();
+        int y = parser.nextInt();
+        return new GraphicalObject(new ShapeState(ID, type, color, width, height, x, y));
+    }
+
+    /**
+     * Writes the shape in the binary socket format, at most
+     * BinaryProtocol.MAX_SHAPE_SIZE bytes
+     * @param buf buffer to write to
+     */
+    public void writeBinary(ByteBuffer buf) {
+        state.writeBinary(buf);
+    }
+
+    /**
+     * Clamps the shape's size to ShapeState.MAX_SIZE. Shapes from RMI
+     * clients come whole, without going through a parser that clamps it.
+     */
+    void clampSize() {
+        ShapeState s = state;
+        if (!s.hasValidSize()) {
+            state = s.edited(s.getClientID(), s.getType(), s.getColor(),
+                    ShapeState.clampSize(s.getWidth()), ShapeState.clampSize(s.getHeight()));
+        }
+    }
 
-        // Width/Height
-        width = Integer.parseInt(parts[2]);
-        height = Integer.parseInt(parts[3]);
+    // Edits replace the state, and the Canvas holds the shape's lock while
+    // editing, so two edits never read the same old state
 
-        // Point
-        p = new Point(Integer.parseInt(parts[4]), Integer.parseInt(parts[5]));
+    void edit(long clientID, ShapeType type, String color, int width, int height) {
+        edit(clientID, type, colorForName(color), width, height);
     }
 
-    synchronized void edit(long clientID, ShapeType type, String color, int width, int height) {
-        this.clientID = clientID;
-        this.type = type;
-        this.color = getNameColor(color);
-        this.width = width;
-        this.height = height;
+    void edit(long clientID, ShapeType type, Color color, int width, int height) {
+        state = state.edited(clientID, type, color, width, height);
     }
 
     /**
-     * Clones the object
+     * Clones the object. The clone shares the (immutable) state, but not
+     * the shape ID or marker.
      * @return clone of the GraphicalObject
      */
     @SuppressWarnings("MethodDoesntCallSuperMethod")
     @Override
-    public synchronized GraphicalObject clone() {
-        return new GraphicalObject(getClientID(), getType(), getColor(), getWidth(), getHeight(), getPoint());
+    public GraphicalObject clone() {
+        return new GraphicalObject(state);
     }
 
-    public synchronized void setShapeID(long id) {
+    /**
+     * @return what the shape looks like now; read it once to get several
+     * attributes that belong together
+     */
+    public ShapeState getState() {
+        return state;
+    }
+
+    public void setShapeID(long id) {
         this.shapeID = id;
     }
-    public synchronized long getShapeID() {
+    public long getShapeID() {
         return shapeID;
     }
 
-    public synchronized long getClientID() {
-        return clientID;
+    public long getClientID() {
+        return state.getClientID();
     }
 
-    public synchronized ShapeType getType() {
-        return type;
+    public ShapeType getType() {
+        return state.getType();
     }
 
-    public synchronized int getWidth() {
-        return width;
+    public int getWidth() {
+        return state.getWidth();
     }
 
-    public synchronized int getHeight() {
-        return height;
+    public int getHeight() {
+        return state.getHeight();
     }
 
-    public synchronized Color getColor() {
-        return color;
+    public Color getColor() {
+        return state.getColor();
     }
 
     /**
      * @return The name of the color, used for readability
      */
-    public synchronized String getColorName() {
-        if (color.equals(new Color(0, 0, 0))) return "Black";
-        if (color.equals(new Color(255, 0, 0))) return "Red";
-        if (color.equals(new Color(0, 255, 0))) return "Green";
-        if (color.equals(new Color(0, 0, 255))) return "Blue";
-        return "BLACK";
+    public String getColorName() {
+        return state.getColorName();
     }
 
-    private Color getNameColor(String s) {
+    /**
+     * @param s name of the color, as returned by getColorName
+     * @return the color, black if the name is unknown
+     */
+    public static Color colorForName(String s) {
         switch (s) {
             case "Black":
                 return Color.BLACK;
@@ -161,21 +225,49 @@ public class GraphicalObject extends TimerTask implements Serializable {
         }
     }
 
+    /**
+     * @return where the shape is located (a new Point each time)
+     */
     public Point getPoint() {
-        return p;
+        ShapeState s = state;
+        return new Point(s.getX(), s.getY());
     }
 
-    public synchronized void setMarked(boolean mark) {
-        this.marked = mark;
+    /**
+     * @return the box the shape is drawn in (the point is its center)
+     */
+    public Rectangle getBounds() {
+        return state.getBounds();
     }
 
-    public synchronized boolean isMarked() {
-        return marked;
+    /**
+     * @return the outline of the shape as the client draws it
+     */
+    public Shape getOutline() {
+        return state.getOutline();
     }
 
-    @Override
-    public void run() {
-        setMarked(false);
+    /**
+     * @return whether the point is inside the shape (not just its box)
+     */
+    public boolean contains(int x, int y) {
+        return getOutline().contains(x, y);
+    }
+
+    /**
+     * @param region area of the canvas
+     * @return whether any part of the shape's box is in the region
+     */
+    public boolean intersects(Rectangle region) {
+        return state.intersects(region);
+    }
+
+    public void setMarked(boolean mark) {
+        this.marked = mark;
+    }
+
+    public boolean isMarked() {
+        return marked;
     }
 
     /**
@@ -183,6 +275,6 @@ public class GraphicalObject extends TimerTask implements Serializable {
      */
     @Override
     public String toString() {
-        return type.toString() + " " + getColorName() + " " + width + " " + height + " " + p.x + " " + p.y;
+        return state.toString();
     }
 }
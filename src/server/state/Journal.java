@@ -0,0 +1,449 @@
+package server.state;
+
+import server.Socket.BinaryProtocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of every change made to the Canvas, so the canvas
+ * survives a crash. Records are kept in memory by the thread that made
+ * the change and written by a single committer thread, which writes and
+ * fsyncs everything gathered since its last run at once (group commit).
+ * A change can be lost if the server dies within one commit interval of
+ * it, but no request ever waits for the disk.
+ *
+ * The log is split into segments, journal-<#>.log. A checkpoint holds the
+ * whole canvas as of the start of a segment; once it is written, the
+ * segments before it are deleted. On startup the checkpoint is loaded and
+ * the segments after it are replayed, up to the first record that is
+ * torn or corrupt.
+ *
+ * Every record is framed as <length> <crc32> <payload>, with the payload
+ * in the BinaryProtocol encoding:
+ *
+ *      ADDED, EDITED   <S#> <ID> <shape>
+ *      REMOVED_FROM    <ID>
+ *      REMOVED_ALL
+ *      USER, BAN, UNBAN    <ID>
+ *
+ * Replaying a record twice has the same result as replaying it once, so
+ * a change that is both in a checkpoint and in the segment after it is
+ * harmless.
+ */
+class Journal implements Closeable {
+
+    // Record types
+    private static final byte ADDED = 1;
+    private static final byte EDITED = 2;
+    private static final byte REMOVED_FROM = 3;
+    private static final byte REMOVED_ALL = 4;
+    private static final byte USER = 5;
+    private static final byte BAN = 6;
+    private static final byte UNBAN = 7;
+
+    // Length and crc in front of every record, and the largest payload
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 1 + 2 * BinaryProtocol.MAX_VARINT_SIZE + BinaryProtocol.MAX_SHAPE_SIZE;
+
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int CHECKPOINT_MAGIC = 0x43564350;
+
+    private final Path dir;
+    private final Canvas canvas;
+    private final int checkpointRecords;
+    private final ScheduledExecutorService committer;
+
+    // Records not yet written, and the buffer the committer writes from (guarded by this)
+    private ByteBuffer pending;
+    private ByteBuffer writing;
+    private int recordStart;
+    private int recordsSinceCheckpoint;
+    private boolean checkpointRequested;
+
+    // Only used by the committer thread (and by open, before it starts)
+    private FileChannel segment;
+    private long segmentNumber;
+
+    private Journal(Path dir, Canvas canvas, int checkpointRecords) {
+        this.dir = dir;
+        this.canvas = canvas;
+        this.checkpointRecords = checkpointRecords;
+        this.pending = ByteBuffer.allocate(64 * 1024);
+        this.writing = ByteBuffer.allocate(64 * 1024);
+        this.committer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Journal-committer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Rebuilds the canvas from the journal in a directory, checkpoints it,
+     * and starts journaling its changes.
+     * @param dir directory of the journal, created if it doesn't exist
+     * @param canvas empty canvas to rebuild
+     * @param commitMillis time between group commits
+     * @param checkpointRecords records written before the next checkpoint
+     * @return the open journal
+     * @throws IOException if the journal can't be read or written
+     */
+    static Journal open(Path dir, Canvas canvas, long commitMillis, int checkpointRecords) throws IOException {
+        Files.createDirectories(dir);
+        Journal journal = new Journal(dir, canvas, checkpointRecords);
+        long next = journal.replay();
+        // Start from a clean checkpoint, so a torn tail is never replayed on top of newer records
+        journal.segmentNumber = next;
+        journal.checkpoint();
+        journal.committer.scheduleWithFixedDelay(journal::commit, commitMillis, commitMillis, TimeUnit.MILLISECONDS);
+        return journal;
+    }
+
+    void append(CanvasChange change) {
+        switch (change.getKind()) {
+            case ADDED:
+            case EDITED:
+                synchronized (this) {
+                    ByteBuffer buf = startRecord();
+                    buf.put(change.getKind() == CanvasChange.Kind.ADDED ? ADDED : EDITED);
+                    BinaryProtocol.putVarLong(buf, change.getShapeID());
+                    BinaryProtocol.putVarLong(buf, change.getClientID());
+                    change.getShape().writeBinary(buf);
+                    endRecord(buf);
+                }
+                break;
+            case REMOVED_FROM:
+                appendID(REMOVED_FROM, change.getClientID());
+                break;
+            case REMOVED_ALL:
+                synchronized (this) {
+                    ByteBuffer buf = startRecord();
+                    buf.put(REMOVED_ALL);
+                    endRecord(buf);
+                }
+                break;
+            case MARK:
+            case UNMARK:
+                // Markers don't survive a restart
+                break;
+        }
+    }
+
+    void userRegistered(long clientID) {
+        appendID(USER, clientID);
+    }
+
+    void banned(long clientID, boolean banned) {
+        appendID(banned ? BAN : UNBAN, clientID);
+    }
+
+    /**
+     * Has the committer write a checkpoint on its next run.
+     */
+    synchronized void requestCheckpoint() {
+        checkpointRequested = true;
+    }
+
+    private synchronized void appendID(byte type, long clientID) {
+        ByteBuffer buf = startRecord();
+        buf.put(type);
+        BinaryProtocol.putVarLong(buf, clientID);
+        endRecord(buf);
+    }
+
+    /**
+     * Reserves room for a record's header and returns the pending buffer
+     * positioned at its payload. Called holding the lock.
+     */
+    private ByteBuffer startRecord() {
+        if (pending.remaining() < HEADER_SIZE + MAX_RECORD_SIZE) {
+            ByteBuffer bigger = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        recordStart = pending.position();
+        pending.position(recordStart + HEADER_SIZE);
+        return pending;
+    }
+
+    /**
+     * Fills in the header of the record started last. Called holding the lock.
+     */
+    private void endRecord(ByteBuffer buf) {
+        int length = buf.position() - recordStart - HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), recordStart + HEADER_SIZE, length);
+        buf.putInt(recordStart, length);
+        buf.putInt(recordStart + 4, (int) crc.getValue());
+        recordsSinceCheckpoint++;
+    }
+
+    /**
+     * Group commit: writes and fsyncs every record gathered since the last
+     * run, and checkpoints when enough records were written.
+     */
+    private void commit() {
+        try {
+            boolean checkpointDue;
+            synchronized (this) {
+                ByteBuffer full = pending;
+                pending = writing;
+                writing = full;
+                pending.clear();
+                checkpointDue = checkpointRequested || recordsSinceCheckpoint >= checkpointRecords;
+            }
+            writing.flip();
+            if (writing.hasRemaining()) {
+                while (writing.hasRemaining()) {
+                    segment.write(writing);
+                }
+                segment.force(false);
+            }
+            if (checkpointDue) {
+                checkpoint();
+            }
+        } catch (IOException e) {
+            System.out.println("Journal: cannot write to " + dir + ": " + e);
+        }
+    }
+
+    /**
+     * Starts a new segment, writes the whole canvas to the checkpoint file
+     * and deletes the segments before the new one. Changes made while the
+     * canvas is copied are in the new segment, and may be in the
+     * checkpoint too, which replay doesn't mind.
+     * @throws IOException if the checkpoint can't be written
+     */
+    private void checkpoint() throws IOException {
+        if (segment != null) {
+            segment.close();
+        }
+        long number = segmentNumber++;
+        synchronized (this) {
+            // Records appended from now on go into the new segment
+            segment = FileChannel.open(segmentPath(segmentNumber),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            recordsSinceCheckpoint = 0;
+            checkpointRequested = false;
+        }
+
+        List<Long> banned = canvas.getBannedIDs();
+        ByteBuffer buf = ByteBuffer.allocate(64 + 8 * banned.size() +
+                canvas.getShapeCount() * (2 * BinaryProtocol.MAX_VARINT_SIZE + BinaryProtocol.MAX_SHAPE_SIZE));
+        buf.putInt(CHECKPOINT_MAGIC);
+        buf.putLong(segmentNumber);
+        buf.putLong(canvas.getLastUserID());
+        buf.putLong(canvas.getLastShapeID());
+        buf.putLong(canvas.getVersionNumber());
+        buf.putInt(banned.size());
+        banned.forEach(buf::putLong);
+        // The count is filled in after, since shapes can come and go while copying
+        int countAt = buf.position();
+        buf.putInt(0);
+        ByteBuffer[] growing = {buf};
+        int[] count = {0};
+        canvas.forEachShape((shapeID, go) -> {
+            ByteBuffer b = growing[0];
+            if (b.remaining() < 2 * BinaryProtocol.MAX_VARINT_SIZE + BinaryProtocol.MAX_SHAPE_SIZE + 4) {
+                ByteBuffer bigger = ByteBuffer.allocate(b.capacity() * 2);
+                b.flip();
+                bigger.put(b);
+                growing[0] = b = bigger;
+            }
+            BinaryProtocol.putVarLong(b, shapeID);
+            BinaryProtocol.putVarLong(b, go.getClientID());
+            go.writeBinary(b);
+            count[0]++;
+        });
+        buf = growing[0];
+        buf.putInt(countAt, count[0]);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int) crc.getValue());
+        buf.flip();
+
+        Path tmp = dir.resolve(CHECKPOINT + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            out.force(true);
+        }
+        Files.move(tmp, dir.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (long n : segmentNumbers()) {
+            if (n <= number) {
+                Files.deleteIfExists(segmentPath(n));
+            }
+        }
+        System.out.println("Journal: checkpointed " + count[0] + " shapes, now writing " + segmentPath(segmentNumber).getFileName());
+    }
+
+    /**
+     * Loads the checkpoint and replays the segments after it into the canvas.
+     * @return number of the segment after the last one replayed
+     * @throws IOException if a file can't be read
+     */
+    private long replay() throws IOException {
+        long first = 0;
+        Path checkpointPath = dir.resolve(CHECKPOINT);
+        if (Files.exists(checkpointPath)) {
+            first = loadCheckpoint(ByteBuffer.wrap(Files.readAllBytes(checkpointPath)));
+        }
+        long next = first;
+        int records = 0;
+        for (long n : segmentNumbers()) {
+            if (n < first) {
+                continue;
+            }
+            records += replaySegment(ByteBuffer.wrap(Files.readAllBytes(segmentPath(n))));
+            next = n + 1;
+        }
+        if (records > 0 || first > 0) {
+            System.out.println("Journal: restored " + canvas.getShapeCount() + " shapes (" +
+                    records + " records replayed)");
+        }
+        return next;
+    }
+
+    private long loadCheckpoint(ByteBuffer buf) throws IOException {
+        // Too short to even hold its CRC
+        if (buf.limit() < 4) {
+            throw new IOException("Corrupt checkpoint in " + dir);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.limit() - 4);
+        if (buf.getInt(buf.limit() - 4) != (int) crc.getValue() || buf.getInt() != CHECKPOINT_MAGIC) {
+            throw new IOException("Corrupt checkpoint in " + dir);
+        }
+        long first = buf.getLong();
+        canvas.restoreGenerators(buf.getLong(), buf.getLong());
+        canvas.restoreVersion(buf.getLong());
+        int banned = buf.getInt();
+        for (int i = 0; i < banned; i++) {
+            canvas.restoreBan(buf.getLong(), true);
+        }
+        int count = buf.getInt();
+        for (int i = 0; i < count; i++) {
+            long shapeID = BinaryProtocol.getVarLong(buf);
+            long clientID = BinaryProtocol.getVarLong(buf);
+            canvas.restoreShape(shapeID, GraphicalObject.readBinary(clientID, buf), false);
+        }
+        return first;
+    }
+
+    /**
+     * Replays the whole records of a segment.
+     * @return number of records replayed
+     */
+    private int replaySegment(ByteBuffer buf) {
+        int records = 0;
+        CRC32 crc = new CRC32();
+        while (buf.remaining() >= HEADER_SIZE) {
+            int length = buf.getInt();
+            int expected = buf.getInt();
+            if (length <= 0 || length > buf.remaining()) {
+                break;
+            }
+            crc.reset();
+            crc.update(buf.array(), buf.position(), length);
+            if ((int) crc.getValue() != expected) {
+                break;
+            }
+            ByteBuffer record = buf.slice();
+            record.limit(length);
+            buf.position(buf.position() + length);
+            try {
+                replayRecord(record);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                break;
+            }
+            records++;
+        }
+        return records;
+    }
+
+    private void replayRecord(ByteBuffer buf) {
+        byte type = buf.get();
+        switch (type) {
+            case ADDED:
+            case EDITED:
+                long shapeID = BinaryProtocol.getVarLong(buf);
+                long clientID = BinaryProtocol.getVarLong(buf);
+                canvas.restoreShape(shapeID, GraphicalObject.readBinary(clientID, buf), true);
+                break;
+            case REMOVED_FROM:
+                canvas.restoreRemoveAllWithID(BinaryProtocol.getVarLong(buf));
+                break;
+            case REMOVED_ALL:
+                canvas.restoreRemoveAll();
+                break;
+            case USER:
+                canvas.restoreGenerators(BinaryProtocol.getVarLong(buf), 0);
+                break;
+            case BAN:
+            case UNBAN:
+                canvas.restoreBan(BinaryProtocol.getVarLong(buf), type == BAN);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown journal record " + type);
+        }
+    }
+
+    private Path segmentPath(long number) {
+        return dir.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * @return numbers of the segments in the directory, in order
+     */
+    private List<Long> segmentNumbers() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * Commits what is pending and stops the committer.
+     */
+    @Override
+    public void close() {
+        committer.shutdown();
+        try {
+            committer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commit();
+        try {
+            segment.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,141 @@
+package server.state;
+
+import java.awt.Rectangle;
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the CanvasListeners registered by RMI clients and pushes them
+ * deltas. Each listener has at most one push in flight; changes that
+ * arrive meanwhile are sent together in the next delta. Listeners that
+ * throw are evicted, and so are listeners whose pushes keep being slow
+ * or never return.
+ */
+class ListenerRegistry {
+
+    // A push slower than this is a strike, and this many strikes in a row evicts the listener
+    static final long SLOW_PUSH_MILLIS = 1000;
+    static final int MAX_STRIKES = 3;
+
+    // A push still in flight after this long evicts the listener
+    static final long STUCK_PUSH_MILLIS = 10000;
+
+    private final Canvas canvas;
+    private final ConcurrentHashMap<CanvasListener, Subscription> subscriptions;
+    private final ExecutorService pushers;
+
+    ListenerRegistry(Canvas canvas) {
+        this.canvas = canvas;
+        this.subscriptions = new ConcurrentHashMap<>();
+        this.pushers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "Canvas-listener-push");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Registers a listener. Registering one that is already there does nothing.
+     * @param listener client callback
+     * @param version change log version the client has
+     * @param viewport region of the canvas the client looks at, null for all of it
+     */
+    void add(CanvasListener listener, long version, Rectangle viewport) {
+        Subscription sub = subscriptions.computeIfAbsent(listener, l -> {
+            System.out.println("New canvas listener: " + l);
+            return new Subscription(l, version, viewport);
+        });
+        sub.schedule();
+    }
+
+    void remove(CanvasListener listener) {
+        subscriptions.remove(listener);
+    }
+
+    /**
+     * @return number of registered listeners
+     */
+    int size() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Lets every listener know the canvas changed.
+     */
+    void changed() {
+        long now = System.currentTimeMillis();
+        subscriptions.values().forEach(sub -> {
+            long since = sub.inFlightSince;
+            if (since != 0 && now - since > STUCK_PUSH_MILLIS) {
+                evict(sub, "push did not return in " + STUCK_PUSH_MILLIS + " ms");
+            } else {
+                sub.schedule();
+            }
+        });
+    }
+
+    private void evict(Subscription sub, String reason) {
+        if (subscriptions.remove(sub.listener, sub)) {
+            System.out.println("Evicting canvas listener " + sub.listener + ": " + reason);
+        }
+    }
+
+    private class Subscription {
+
+        private final CanvasListener listener;
+        private final Rectangle viewport;
+        private final AtomicBoolean scheduled;
+        private long version;
+        private int strikes;
+
+        // When the push in flight started, 0 if there is none
+        private volatile long inFlightSince;
+
+        Subscription(CanvasListener listener, long version, Rectangle viewport) {
+            this.listener = listener;
+            this.viewport = viewport;
+            this.version = version;
+            this.scheduled = new AtomicBoolean(false);
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                pushers.execute(this::push);
+            }
+        }
+
+        /**
+         * Pushes deltas until the listener is up to date.
+         */
+        private void push() {
+            do {
+                while (subscriptions.get(listener) == this) {
+                    CanvasDelta delta = canvas.getChangesSince(version, viewport);
+                    if (delta.isEmpty()) {
+                        break;
+                    }
+                    long start = System.currentTimeMillis();
+                    inFlightSince = start;
+                    try {
+                        listener.canvasChanged(delta);
+                    } catch (RemoteException | RuntimeException e) {
+                        evict(this, e.toString());
+                        return;
+                    } finally {
+                        inFlightSince = 0;
+                    }
+                    version = delta.getToVersion();
+                    strikes = System.currentTimeMillis() - start > SLOW_PUSH_MILLIS ? strikes + 1 : 0;
+                    if (strikes >= MAX_STRIKES) {
+                        evict(this, MAX_STRIKES + " slow pushes in a row");
+                        return;
+                    }
+                }
+                scheduled.set(false);
+            } while (version != canvas.getChangeLogVersion() && scheduled.compareAndSet(false, true));
+        }
+    }
+}
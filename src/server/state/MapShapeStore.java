@@ -0,0 +1,167 @@
+package server.state;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Keeps each shape as a GraphicalObject in a map, indexed by a
+ * SpatialIndex, and again in a PersistentShapeMap of copies so that
+ * snapshots are free. Shapes handed out are the live objects.
+ *
+ * Adds and edits take the shape's own lock, and share a read lock with
+ * each other; removes take the write lock, so a shape is never indexed or
+ * copied after it has been removed. The persistent map is swapped in by
+ * compare and set, so changes to different shapes don't wait on each other.
+ */
+class MapShapeStore implements ShapeStore {
+
+    // List of all shapes on server
+    private final ConcurrentHashMap<Long, GraphicalObject> shapeMap;
+
+    // Grid over the shapes, to find the ones in a region of the canvas
+    private final SpatialIndex spatialIndex;
+
+    // The shapes again, as a persistent map of copies that snapshots share
+    private final AtomicReference<PersistentShapeMap> shapes;
+
+    // Read locked by adds and edits, write locked by removes
+    private final ReentrantReadWriteLock lock;
+
+    MapShapeStore() {
+        shapeMap = new ConcurrentHashMap<>();
+        spatialIndex = new SpatialIndex();
+        shapes = new AtomicReference<>(PersistentShapeMap.EMPTY);
+        lock = new ReentrantReadWriteLock();
+    }
+
+    @Override
+    public void put(long shapeID, GraphicalObject go) {
+        lock.readLock().lock();
+        try {
+            // Under the shape's lock, so an edit can't index or copy it first
+            synchronized (go) {
+                shapeMap.put(shapeID, go);
+                spatialIndex.put(shapeID, go.getBounds());
+                copy(shapeID, go);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public GraphicalObject get(long shapeID) {
+        return shapeMap.get(shapeID);
+    }
+
+    @Override
+    public GraphicalObject edit(long shapeID, long clientID, GraphicalObject.ShapeType type, Color color,
+                                int width, int height, Consumer<GraphicalObject> whileEditing) {
+        lock.readLock().lock();
+        try {
+            GraphicalObject go = shapeMap.get(shapeID);
+            if (go == null) {
+                return null;
+            }
+            synchronized (go) {
+                go.edit(clientID, type, color, width, height);
+                spatialIndex.put(shapeID, go.getBounds());
+                copy(shapeID, go);
+                whileEditing.accept(go);
+            }
+            return go;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Puts a copy of the shape in the persistent map (with the shape's lock held)
+    private void copy(long shapeID, GraphicalObject go) {
+        GraphicalObject copy = go.clone();
+        copy.setShapeID(shapeID);
+        shapes.updateAndGet(map -> map.with(shapeID, copy));
+    }
+
+    @Override
+    public void setMarked(long shapeID, boolean marked) {
+        GraphicalObject go = shapeMap.get(shapeID);
+        if (go != null) {
+            go.setMarked(marked);
+        }
+    }
+
+    @Override
+    public void removeShapesOf(long clientID) {
+        lock.writeLock().lock();
+        try {
+            shapeMap.entrySet().removeIf(e -> {
+                if (e.getValue().getClientID() != clientID) {
+                    return false;
+                }
+                spatialIndex.remove(e.getKey());
+                return true;
+            });
+            shapes.set(shapes.get().withoutShapesOf(clientID));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            shapeMap.clear();
+            spatialIndex.clear();
+            shapes.set(PersistentShapeMap.EMPTY);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return shapeMap.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<Long, GraphicalObject> action) {
+        shapeMap.forEach(action);
+    }
+
+    @Override
+    public ConcurrentHashMap<Long, GraphicalObject> asMap() {
+        return shapeMap;
+    }
+
+    @Override
+    public ConcurrentHashMap<Long, GraphicalObject> inRegion(Rectangle region) {
+        if (region == null) {
+            return shapeMap;
+        }
+        ConcurrentHashMap<Long, GraphicalObject> found = new ConcurrentHashMap<>();
+        for (long shapeID : spatialIndex.query(region)) {
+            // The index can be behind the shape map, so check what it found
+            GraphicalObject go = shapeMap.get(shapeID);
+            if (go != null && go.intersects(region)) {
+                found.put(shapeID, go);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public GraphicalObject topmostAt(int x, int y) {
+        return spatialIndex.topmostAt(shapeMap, x, y);
+    }
+
+    @Override
+    public PersistentShapeMap snapshot() {
+        return shapes.get();
+    }
+}
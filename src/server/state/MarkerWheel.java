@@ -0,0 +1,188 @@
+package server.state;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * Takes markers off shapes when they run out. Each client has at most one
+ * marker, on the last shape it placed or edited, so the wheel holds one
+ * entry per client: marking another shape moves the client's entry to its
+ * new deadline, and the deadline of the old marker is simply forgotten
+ * rather than left to fire.
+ *
+ * The entries hang in a hashed timing wheel, a ring of slots one tick
+ * apart; an entry goes in the slot its deadline falls in. Every tick one
+ * slot is looked at, so marking and running out are O(1) whatever the
+ * number of markers, and a marker runs out within a tick of its lifetime.
+ */
+public final class MarkerWheel {
+
+    // Returned by mark() when the client had no marker
+    public static final long NONE = 0;
+
+    /**
+     * Told about each marker that runs out, under the wheel's lock, so a
+     * client can't mark its shape again until it has been unmarked
+     */
+    public interface Expiry {
+        void expired(long clientID, long shapeID);
+    }
+
+    private static final class Entry {
+        final long clientID;
+        long shapeID;
+        long deadline;
+        Entry prev;
+        Entry next;
+
+        Entry(long clientID) {
+            this.clientID = clientID;
+        }
+    }
+
+    private final Expiry expiry;
+    private final long tickNanos;
+    private final long lifetimeTicks;
+    private final long start;
+
+    // Slots of the wheel, each the head of a list of entries; the slot of a
+    // deadline is deadline & mask
+    private final Entry[] slots;
+    private final int mask;
+
+    // The entry of each client with a marker, and the last tick looked at
+    private final HashMap<Long, Entry> entries;
+    private long tick;
+
+    private final ScheduledFuture<?> ticking;
+
+    /**
+     * @param lifetimeMillis how long a marker stays on
+     * @param tickMillis how often the wheel looks for markers that ran out
+     * @param ticker runs the ticks; several wheels can share one
+     * @param expiry told about each marker that runs out
+     * @throws IllegalArgumentException unless lifetimeMillis >= tickMillis > 0
+     */
+    public MarkerWheel(long lifetimeMillis, long tickMillis, ScheduledExecutorService ticker, Expiry expiry) {
+        if (tickMillis <= 0 || lifetimeMillis < tickMillis) {
+            throw new IllegalArgumentException("Marker lifetime must be at least one tick, and a tick more than 0 ms: "
+                    + lifetimeMillis + ", " + tickMillis);
+        }
+        this.expiry = expiry;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        lifetimeTicks = (lifetimeMillis + tickMillis - 1) / tickMillis;
+        start = System.nanoTime();
+
+        // One lap of the wheel is longer than a marker lasts, so every entry
+        // runs out the first time its slot comes round
+        int size = Integer.highestOneBit((int) lifetimeTicks) << 1;
+        slots = new Entry[size];
+        mask = size - 1;
+
+        entries = new HashMap<>();
+
+        ticking = ticker.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Puts a client's marker on a shape, taking it off the client's last one
+     * @param whileMarking told the shape the client's marker was on (NONE if
+     *                     it had none) under the wheel's lock, so a client's
+     *                     markers are put on and run out one at a time
+     * @return the shape the client's marker was on, NONE if it had none
+     */
+    public synchronized long mark(long clientID, long shapeID, LongConsumer whileMarking) {
+        Entry e = entries.get(clientID);
+        long oldShapeID = NONE;
+        if (e == null) {
+            e = new Entry(clientID);
+            entries.put(clientID, e);
+        } else {
+            oldShapeID = e.shapeID;
+            unlink(e);
+        }
+        e.shapeID = shapeID;
+        e.deadline = currentTick() + lifetimeTicks;
+        link(e);
+        whileMarking.accept(oldShapeID);
+        return oldShapeID;
+    }
+
+    /**
+     * @return number of markers on
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Stops the ticking; markers still on stay on
+     */
+    public void stop() {
+        ticking.cancel(false);
+    }
+
+    // Looks at every slot up to now, usually just one, and runs out the
+    // entries whose deadline has come
+    private synchronized void advance() {
+        long now = currentTick();
+        List<Entry> expired = null;
+        while (tick < now) {
+            tick++;
+            for (Entry e = slots[(int) (tick & mask)]; e != null; ) {
+                Entry next = e.next;
+                if (e.deadline <= tick) {
+                    unlink(e);
+                    entries.remove(e.clientID);
+                    if (expired == null) {
+                        expired = new ArrayList<>();
+                    }
+                    expired.add(e);
+                }
+                e = next;
+            }
+        }
+        if (expired != null) {
+            for (Entry e : expired) {
+                try {
+                    expiry.expired(e.clientID, e.shapeID);
+                } catch (RuntimeException ex) {
+                    // A failing listener must not stop the wheel
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private long currentTick() {
+        return (System.nanoTime() - start) / tickNanos;
+    }
+
+    private void link(Entry e) {
+        int slot = (int) (e.deadline & mask);
+        e.prev = null;
+        e.next = slots[slot];
+        if (e.next != null) {
+            e.next.prev = e;
+        }
+        slots[slot] = e;
+    }
+
+    private void unlink(Entry e) {
+        if (e.prev != null) {
+            e.prev.next = e.next;
+        } else {
+            slots[(int) (e.deadline & mask)] = e.next;
+        }
+        if (e.next != null) {
+            e.next.prev = e.prev;
+        }
+        e.prev = null;
+        e.next = null;
+    }
+}
@@ -0,0 +1,350 @@
+package server.state;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable map of shape IDs to shapes (a hash array mapped trie).
+ * Putting or removing a shape returns a new map that shares every node
+ * of the old one except the few on the path to the shape, so keeping an
+ * old version of the map is free: the Canvas keeps its shapes in one, and
+ * a snapshot is just the version that was current when it was taken.
+ * Snapshots taken of a canvas that barely changed in between share
+ * almost all of their nodes, and all of their shapes.
+ *
+ * The shapes are the copies made for the change log, which nobody
+ * modifies, so they are shared as they are. Those copies in turn share
+ * their ShapeState with the shape on the canvas until it is edited.
+ */
+final class PersistentShapeMap {
+
+    static final PersistentShapeMap EMPTY = new PersistentShapeMap(new Node(0, new Object[0]), 0);
+
+    // Bits of the hash used at each level of the trie
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    // Rough sizes on a 64-bit JVM with compressed references, for footprint()
+    private static final int NODE_BYTES = 16;
+    private static final int ARRAY_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+    private static final int LEAF_BYTES = 24;
+    private static final int SHAPE_BYTES = 72;
+    private static final int STATE_BYTES = 48;
+
+    private final Node root;
+    private final int size;
+
+    private PersistentShapeMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @param shapes shapes to put in a new map
+     * @return a map of the shapes
+     */
+    static PersistentShapeMap of(Map<Long, GraphicalObject> shapes) {
+        PersistentShapeMap map = EMPTY;
+        for (Map.Entry<Long, GraphicalObject> e : shapes.entrySet()) {
+            map = map.with(e.getKey(), e.getValue());
+        }
+        return map;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    GraphicalObject get(long shapeID) {
+        long hash = hash(shapeID);
+        Node node = root;
+        for (int shift = 0; ; shift += BITS) {
+            int bit = bit(hash, shift);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            Object slot = node.slots[node.index(bit)];
+            if (slot instanceof Leaf) {
+                Leaf leaf = (Leaf) slot;
+                return leaf.shapeID == shapeID ? leaf.shape : null;
+            }
+            node = (Node) slot;
+        }
+    }
+
+    /**
+     * @return a map with the shape put in it, this map if it already holds that shape
+     */
+    PersistentShapeMap with(long shapeID, GraphicalObject shape) {
+        boolean[] added = new boolean[1];
+        Node newRoot = root.with(new Leaf(shapeID, shape), hash(shapeID), 0, added);
+        return newRoot == root ? this : new PersistentShapeMap(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * @return a map without the shape, this map if it doesn't have it
+     */
+    PersistentShapeMap without(long shapeID) {
+        Node newRoot = root.without(shapeID, hash(shapeID), 0);
+        if (newRoot == root) {
+            return this;
+        }
+        return newRoot == null ? EMPTY : new PersistentShapeMap(newRoot, size - 1);
+    }
+
+    /**
+     * @return a map without any of the client's shapes
+     */
+    PersistentShapeMap withoutShapesOf(long clientID) {
+        PersistentShapeMap[] map = {this};
+        forEach((shapeID, shape) -> {
+            if (shape.getClientID() == clientID) {
+                map[0] = map[0].without(shapeID);
+            }
+        });
+        return map[0];
+    }
+
+    /**
+     * Goes through the shapes, in no particular order.
+     */
+    void forEach(BiConsumer<Long, GraphicalObject> action) {
+        root.forEach(action);
+    }
+
+    /**
+     * Adds up the memory taken by the nodes and shapes of this map,
+     * counting only what the other maps in the census don't also use.
+     * @param census how many maps use each node and shape, filled in by count()
+     * @return bytes used by this map alone
+     */
+    long unsharedFootprint(Map<Object, Integer> census) {
+        return root.footprint(census, true);
+    }
+
+    /**
+     * @return bytes the map would take if it shared nothing
+     */
+    long footprint() {
+        return root.footprint(null, false);
+    }
+
+    /**
+     * Counts this map in a census of the nodes and shapes used by several maps.
+     * @param census identity map of node or shape to the number of maps using it
+     */
+    void count(IdentityHashMap<Object, Integer> census) {
+        root.count(census);
+    }
+
+    /**
+     * Splits shapes into a power of two number of shards, at most 32. The
+     * shard is picked by the slot of the root the shape goes in, so the maps
+     * of different shards never share a slot of the root and union() of
+     * them takes no more than the root.
+     * @return shard of the shape
+     */
+    static int shardOf(long shapeID, int shards) {
+        return (int) hash(shapeID) & (shards - 1);
+    }
+
+    /**
+     * Puts together the maps of the shards (see shardOf) in one map,
+     * sharing everything but the root
+     * @param shards maps whose roots don't share a slot
+     * @return a map of all their shapes
+     */
+    static PersistentShapeMap union(PersistentShapeMap[] shards) {
+        int bitmap = 0;
+        int size = 0;
+        for (PersistentShapeMap shard : shards) {
+            if ((bitmap & shard.root.bitmap) != 0) {
+                throw new IllegalArgumentException("Maps share a slot of the root");
+            }
+            bitmap |= shard.root.bitmap;
+            size += shard.size;
+        }
+        if (size == 0) {
+            return EMPTY;
+        }
+        Node root = new Node(bitmap, new Object[Integer.bitCount(bitmap)]);
+        for (PersistentShapeMap shard : shards) {
+            for (int bits = shard.root.bitmap; bits != 0; bits &= bits - 1) {
+                int bit = Integer.lowestOneBit(bits);
+                root.slots[root.index(bit)] = shard.root.slots[shard.root.index(bit)];
+            }
+        }
+        return new PersistentShapeMap(root, size);
+    }
+
+    // Shape IDs are handed out in order, so their bits are spread to keep the trie shallow.
+    // The mix can be undone, so two IDs never have the same hash.
+    private static long hash(long shapeID) {
+        long h = shapeID * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    private static int bit(long hash, int shift) {
+        return 1 << (int) ((hash >>> shift) & MASK);
+    }
+
+    private static final class Leaf {
+        final long shapeID;
+        final GraphicalObject shape;
+
+        Leaf(long shapeID, GraphicalObject shape) {
+            this.shapeID = shapeID;
+            this.shape = shape;
+        }
+    }
+
+    /**
+     * A level of the trie. A bit is set in the bitmap for each slot in
+     * use, and the slots (Leafs or Nodes) are packed in bit order.
+     */
+    private static final class Node {
+        final int bitmap;
+        final Object[] slots;
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Node with(Leaf leaf, long hash, int shift, boolean[] added) {
+            int bit = bit(hash, shift);
+            int i = index(bit);
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                Object[] newSlots = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, newSlots, 0, i);
+                newSlots[i] = leaf;
+                System.arraycopy(slots, i, newSlots, i + 1, slots.length - i);
+                return new Node(bitmap | bit, newSlots);
+            }
+            Object slot = slots[i];
+            Object newSlot;
+            if (slot instanceof Leaf) {
+                Leaf old = (Leaf) slot;
+                if (old.shapeID == leaf.shapeID) {
+                    if (old.shape == leaf.shape) {
+                        return this;
+                    }
+                    newSlot = leaf;
+                } else {
+                    // Two shapes in one slot: push both down a level
+                    added[0] = true;
+                    newSlot = new Node(0, new Object[0])
+                            .with(old, hash(old.shapeID), shift + BITS, new boolean[1])
+                            .with(leaf, hash, shift + BITS, new boolean[1]);
+                }
+            } else {
+                newSlot = ((Node) slot).with(leaf, hash, shift + BITS, added);
+                if (newSlot == slot) {
+                    return this;
+                }
+            }
+            Object[] newSlots = slots.clone();
+            newSlots[i] = newSlot;
+            return new Node(bitmap, newSlots);
+        }
+
+        // Returns null when the node is left empty
+        Node without(long shapeID, long hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = index(bit);
+            Object slot = slots[i];
+            if (slot instanceof Leaf) {
+                if (((Leaf) slot).shapeID != shapeID) {
+                    return this;
+                }
+                return removeSlot(bit, i);
+            }
+            Node child = ((Node) slot).without(shapeID, hash, shift + BITS);
+            if (child == slot) {
+                return this;
+            }
+            if (child == null) {
+                return removeSlot(bit, i);
+            }
+            Object[] newSlots = slots.clone();
+            // A node left with one leaf is replaced by the leaf
+            newSlots[i] = child.slots.length == 1 && child.slots[0] instanceof Leaf ? child.slots[0] : child;
+            return new Node(bitmap, newSlots);
+        }
+
+        private Node removeSlot(int bit, int i) {
+            if (slots.length == 1) {
+                return null;
+            }
+            Object[] newSlots = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, newSlots, 0, i);
+            System.arraycopy(slots, i + 1, newSlots, i, slots.length - i - 1);
+            return new Node(bitmap & ~bit, newSlots);
+        }
+
+        void forEach(BiConsumer<Long, GraphicalObject> action) {
+            for (Object slot : slots) {
+                if (slot instanceof Leaf) {
+                    action.accept(((Leaf) slot).shapeID, ((Leaf) slot).shape);
+                } else {
+                    ((Node) slot).forEach(action);
+                }
+            }
+        }
+
+        void count(IdentityHashMap<Object, Integer> census) {
+            if (census.merge(this, 1, Integer::sum) > 1) {
+                // Everything below was counted along with this node
+                return;
+            }
+            for (Object slot : slots) {
+                if (slot instanceof Leaf) {
+                    census.merge(slot, 1, Integer::sum);
+                    census.merge(((Leaf) slot).shape, 1, Integer::sum);
+                    census.merge(((Leaf) slot).shape.getState(), 1, Integer::sum);
+                } else {
+                    ((Node) slot).count(census);
+                }
+            }
+        }
+
+        long footprint(Map<Object, Integer> census, boolean unsharedOnly) {
+            if (unsharedOnly && census.get(this) > 1) {
+                // Shared, and so is everything below it
+                return 0;
+            }
+            long bytes = NODE_BYTES + ARRAY_BYTES + (long) slots.length * REFERENCE_BYTES;
+            for (Object slot : slots) {
+                if (slot instanceof Leaf) {
+                    Leaf leaf = (Leaf) slot;
+                    if (!unsharedOnly || census.get(leaf) == 1) {
+                        bytes += LEAF_BYTES;
+                    }
+                    if (!unsharedOnly || census.get(leaf.shape) == 1) {
+                        bytes += SHAPE_BYTES;
+                    }
+                    if (!unsharedOnly || census.get(leaf.shape.getState()) == 1) {
+                        bytes += STATE_BYTES;
+                    }
+                } else {
+                    bytes += ((Node) slot).footprint(census, unsharedOnly);
+                }
+            }
+            return bytes;
+        }
+    }
+}
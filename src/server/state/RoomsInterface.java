@@ -0,0 +1,16 @@
+package server.state;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * The rooms of a server, for RMI clients (see CanvasRegistry)
+ */
+public interface RoomsInterface extends Remote {
+
+    /**
+     * @param room name of the room, made if it doesn't exist yet
+     * @return the room's canvas
+     */
+    CanvasInterface join(String room) throws RemoteException;
+}
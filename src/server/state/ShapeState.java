@@ -0,0 +1,174 @@
+package server.state;
+
+import server.Socket.BinaryProtocol;
+
+import java.awt.Color;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Ellipse2D;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * What a shape looks like at one point in time: who last drew it, its
+ * type, color, size and location. It never changes; editing a shape gives
+ * it a new ShapeState. A GraphicalObject points at its current state, so
+ * reading a shape takes no lock, and everything read from one state is
+ * consistent. Copies of a shape share its state.
+ */
+public final class ShapeState implements Serializable {
+
+    private static final int BLACK = Color.BLACK.getRGB();
+    private static final int RED = Color.RED.getRGB();
+    private static final int GREEN = Color.GREEN.getRGB();
+    private static final int BLUE = Color.BLUE.getRGB();
+
+    // Largest width and height of a shape; bigger sizes from clients are clamped to it
+    public static final int MAX_SIZE = 4096;
+
+    private final long clientID;
+    private final GraphicalObject.ShapeType type;
+    private final Color color;
+    private final int width, height;
+
+    // Center of the shape
+    private final int x, y;
+
+    public ShapeState(long clientID, GraphicalObject.ShapeType type, Color color, int width, int height, int x, int y) {
+        this.clientID = clientID;
+        this.type = type;
+        this.color = color;
+        this.width = width;
+        this.height = height;
+        this.x = x;
+        this.y = y;
+    }
+
+    /**
+     * @return a width or height a client asked for, within 0 and MAX_SIZE
+     */
+    public static int clampSize(int size) {
+        return Math.max(0, Math.min(size, MAX_SIZE));
+    }
+
+    /**
+     * @return whether the width and height are within 0 and MAX_SIZE
+     */
+    boolean hasValidSize() {
+        return width == clampSize(width) && height == clampSize(height);
+    }
+
+    /**
+     * @return the state after an edit (a shape keeps its location when edited)
+     */
+    ShapeState edited(long clientID, GraphicalObject.ShapeType type, Color color, int width, int height) {
+        return new ShapeState(clientID, type, color, width, height, x, y);
+    }
+
+    public long getClientID() {
+        return clientID;
+    }
+
+    public GraphicalObject.ShapeType getType() {
+        return type;
+    }
+
+    public Color getColor() {
+        return color;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * @return The name of the color, used for readability
+     */
+    public String getColorName() {
+        return colorName(color);
+    }
+
+    /**
+     * @return the name of a color, as GraphicalObject.colorForName reads it
+     */
+    static String colorName(Color color) {
+        int rgb = color.getRGB();
+        if (rgb == BLACK) return "Black";
+        if (rgb == RED) return "Red";
+        if (rgb == GREEN) return "Green";
+        if (rgb == BLUE) return "Blue";
+        return "BLACK";
+    }
+
+    /**
+     * @return the box the shape is drawn in (the point is its center)
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(x - width / 2, y - height / 2, width, height);
+    }
+
+    /**
+     * @return the outline of the shape as the client draws it
+     */
+    public Shape getOutline() {
+        switch (type) {
+            case Triangle:
+                int[] xPoints = { x, x - (width / 2), x + (width / 2) };
+                int[] yPoints = { y - (height / 2), y + (height / 2), y + (height / 2) };
+                return new Polygon(xPoints, yPoints, 3);
+            case Rectangle:
+                return getBounds();
+            case Circle:
+            default:
+                return new Ellipse2D.Double(x - width / 2, y - height / 2, width, height);
+        }
+    }
+
+    /**
+     * @param region area of the canvas
+     * @return whether any part of the shape's box is in the region
+     */
+    public boolean intersects(Rectangle region) {
+        // Same as getBounds().intersects(region), without making the box
+        return width > 0 && height > 0 && region.width > 0 && region.height > 0 &&
+                (long) x - width / 2 < (long) region.x + region.width &&
+                (long) region.x < (long) x - width / 2 + width &&
+                (long) y - height / 2 < (long) region.y + region.height &&
+                (long) region.y < (long) y - height / 2 + height;
+    }
+
+    /**
+     * Writes the shape in the binary socket format, at most
+     * BinaryProtocol.MAX_SHAPE_SIZE bytes
+     * @param buf buffer to write to
+     */
+    public void writeBinary(ByteBuffer buf) {
+        buf.put((byte) type.ordinal());
+        BinaryProtocol.putRGB(buf, color.getRGB());
+        BinaryProtocol.putVarInt(buf, width);
+        BinaryProtocol.putVarInt(buf, height);
+        BinaryProtocol.putZigZag(buf, x);
+        BinaryProtocol.putZigZag(buf, y);
+    }
+
+    /**
+     * @return The standard format for GraphicalObject String constructor
+     */
+    @Override
+    public String toString() {
+        return type.toString() + " " + getColorName() + " " + width + " " + height + " " + x + " " + y;
+    }
+}
@@ -0,0 +1,81 @@
+package server.state;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Where a Canvas keeps its shapes. MapShapeStore keeps GraphicalObjects
+ * (the default); ColumnarShapeStore keeps primitive columns and makes
+ * GraphicalObjects only when they are asked for, for canvases too big for
+ * an object per shape.
+ *
+ * Shapes handed out by a store may be copies, so the Canvas changes shapes
+ * through the store, never through a GraphicalObject it got from one.
+ */
+interface ShapeStore {
+
+    /**
+     * Adds a shape, or replaces the one with the same ID
+     * @param shapeID ID of the shape
+     * @param go the shape
+     */
+    void put(long shapeID, GraphicalObject go);
+
+    /**
+     * @return the shape with the ID, null if there is none
+     */
+    GraphicalObject get(long shapeID);
+
+    /**
+     * Edits a shape. Edits of one shape are made one at a time, and each
+     * is told to the callback before the next one is made, so they are
+     * published in the order they were made.
+     * @param whileEditing called with the shape as edited
+     * @return the shape as edited, null if there is no such shape
+     */
+    GraphicalObject edit(long shapeID, long clientID, GraphicalObject.ShapeType type, Color color,
+                         int width, int height, Consumer<GraphicalObject> whileEditing);
+
+    /**
+     * Marks a shape (with the ID of the client that last drew it) or takes the mark away
+     */
+    void setMarked(long shapeID, boolean marked);
+
+    /**
+     * Removes every shape of a client
+     */
+    void removeShapesOf(long clientID);
+
+    void clear();
+
+    int size();
+
+    /**
+     * Goes through the shapes, in no particular order.
+     */
+    void forEach(BiConsumer<Long, GraphicalObject> action);
+
+    /**
+     * @return every shape, as a map clients can be sent
+     */
+    ConcurrentHashMap<Long, GraphicalObject> asMap();
+
+    /**
+     * @param region area of the canvas, null for all of it
+     * @return the shapes at least partly inside the region
+     */
+    ConcurrentHashMap<Long, GraphicalObject> inRegion(Rectangle region);
+
+    /**
+     * @return the topmost shape at the point, null if there is none
+     */
+    GraphicalObject topmostAt(int x, int y);
+
+    /**
+     * @return the shapes as they are now, for a snapshot
+     */
+    PersistentShapeMap snapshot();
+}
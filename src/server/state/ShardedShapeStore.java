@@ -0,0 +1,135 @@
+package server.state;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Splits the shapes between several stores by a hash of their ID (see
+ * PersistentShapeMap.shardOf), so changes to shapes of different shards
+ * take different locks. Changes to one shape go to one shard; removes and
+ * queries go through every shard.
+ *
+ * A snapshot is the union of the shards' persistent maps, which share
+ * everything but the root, so it stays as cheap as the shards' own.
+ */
+final class ShardedShapeStore implements ShapeStore {
+
+    // Most shards: one per slot of the root of a PersistentShapeMap
+    static final int MAX_SHARDS = 32;
+
+    private final ShapeStore[] shards;
+
+    /**
+     * @param count number of shards, a power of two no more than MAX_SHARDS
+     * @param newShard makes the store of each shard
+     */
+    ShardedShapeStore(int count, Supplier<ShapeStore> newShard) {
+        if (count < 1 || count > MAX_SHARDS || Integer.bitCount(count) != 1) {
+            throw new IllegalArgumentException("Shard count must be a power of two up to " + MAX_SHARDS + ": " + count);
+        }
+        shards = new ShapeStore[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = newShard.get();
+        }
+    }
+
+    private ShapeStore shard(long shapeID) {
+        return shards[PersistentShapeMap.shardOf(shapeID, shards.length)];
+    }
+
+    @Override
+    public void put(long shapeID, GraphicalObject go) {
+        shard(shapeID).put(shapeID, go);
+    }
+
+    @Override
+    public GraphicalObject get(long shapeID) {
+        return shard(shapeID).get(shapeID);
+    }
+
+    @Override
+    public GraphicalObject edit(long shapeID, long clientID, GraphicalObject.ShapeType type, Color color,
+                                int width, int height, Consumer<GraphicalObject> whileEditing) {
+        return shard(shapeID).edit(shapeID, clientID, type, color, width, height, whileEditing);
+    }
+
+    @Override
+    public void setMarked(long shapeID, boolean marked) {
+        shard(shapeID).setMarked(shapeID, marked);
+    }
+
+    @Override
+    public void removeShapesOf(long clientID) {
+        for (ShapeStore shard : shards) {
+            shard.removeShapesOf(clientID);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (ShapeStore shard : shards) {
+            shard.clear();
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (ShapeStore shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(BiConsumer<Long, GraphicalObject> action) {
+        for (ShapeStore shard : shards) {
+            shard.forEach(action);
+        }
+    }
+
+    @Override
+    public ConcurrentHashMap<Long, GraphicalObject> asMap() {
+        ConcurrentHashMap<Long, GraphicalObject> map = new ConcurrentHashMap<>(size());
+        forEach(map::put);
+        return map;
+    }
+
+    @Override
+    public ConcurrentHashMap<Long, GraphicalObject> inRegion(Rectangle region) {
+        if (region == null) {
+            return asMap();
+        }
+        ConcurrentHashMap<Long, GraphicalObject> found = new ConcurrentHashMap<>();
+        for (ShapeStore shard : shards) {
+            found.putAll(shard.inRegion(region));
+        }
+        return found;
+    }
+
+    @Override
+    public GraphicalObject topmostAt(int x, int y) {
+        // Shapes are drawn in ID order, so the topmost is the one with the highest ID
+        GraphicalObject topmost = null;
+        for (ShapeStore shard : shards) {
+            GraphicalObject go = shard.topmostAt(x, y);
+            if (go != null && (topmost == null || go.getShapeID() > topmost.getShapeID())) {
+                topmost = go;
+            }
+        }
+        return topmost;
+    }
+
+    @Override
+    public PersistentShapeMap snapshot() {
+        PersistentShapeMap[] maps = new PersistentShapeMap[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            maps[i] = shards[i].snapshot();
+        }
+        return PersistentShapeMap.union(maps);
+    }
+}
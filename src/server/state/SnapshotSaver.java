@@ -1,138 +1,607 @@
 package server.state;
 
-import java.io.*;
+import java.awt.Color;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 /**
- * Manages the snapshots saved by clients. All snapshots are stored
- * in a snapshots.txt file, in the following format:
+ * Manages the snapshots saved by clients. All snapshots are stored in a
+ * memory-mapped binary file, snapshots.bin, that is only ever appended to:
  *
- *      ID <#>
- *      <ID#>:<GraphicalObject>
+ *      <magic> <format version>
+ *      <block>
  *          .
  *          .
- *          .
- *      <ID#>:<GraphicalObject>
- *      ID <#>
- *      <ID#>:<GraphicalObject>
- *          .
- *          .
- *          .
- *      <ID#>:<GraphicalObject>
+ *      <block>
+ *
+ *      <block> = <count> <ID#> <record> ... <record> <magic>
+ *      <record> = <S#> <ID> <x> <y> <width> <height> <rgb> <type> (40 bytes)
+ *
+ * Saving a snapshot appends a block and points the client's entry of the
+ * index at it; the client's previous block becomes garbage, and the file
+ * is compacted once garbage makes up most of it. The index only holds a
+ * read-only slice of the mapped file per client, so neither the heap nor
+ * startup (which reads block headers only) grows with the shapes stored.
+ * Shapes are decoded when a snapshot is retrieved.
  *
- * etc.
+ * Taking a snapshot doesn't copy anything: the snapshot is the version of
+ * the canvas' persistent shape map current at the time, which shares its
+ * shapes with the canvas and with every other snapshot. It is kept in
+ * memory and written to the file in the background.
+ *
+ * Only snapshots in use stay in memory, since each pins the version of the
+ * canvas it was taken from. Once written, a snapshot that hasn't been saved
+ * or retrieved for the idle time is dropped, as are the least recently used
+ * ones beyond the most kept in memory; retrieving it again decodes it from
+ * the file.
+ *
+ * A block's magic is written after the rest of it, so a block cut short
+ * by a crash is never read. The old snapshots.txt is imported the first
+ * time the server starts without a snapshots.bin.
+ *
+ * Only one saver can have a file open at a time, in any process; it holds
+ * a lock on a .lock file next to it until it is closed.
  */
 class SnapshotSaver {
-    // File name
-    private static final String PATH_TO_SNAPSHOTS = "src/server/state/snapshots.txt";
+    // File names
+    private static final String PATH_TO_SNAPSHOTS = "src/server/state/snapshots.bin";
+    private static final String PATH_TO_TEXT_SNAPSHOTS = "src/server/state/snapshots.txt";
+
+    // File layout
+    private static final int FILE_MAGIC = 0x534E4150;
+    private static final int FILE_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int BLOCK_MAGIC = 0x534E4231;
+    private static final int BLOCK_HEADER_SIZE = 12;
+    private static final int BLOCK_TRAILER_SIZE = 4;
+    private static final int RECORD_SIZE = 40;
+
+    // Count that ends the file early (after the last block, or after erasing)
+    private static final int END_MARKER = -1;
 
-    // Map of snapshots (mapped ID to List Of GraphicalObjects)
-    private ConcurrentHashMap<Long, ConcurrentHashMap<Long, GraphicalObject>> map;
+    // The file is mapped in steps of at least this much
+    private static final int MIN_MAPPED_SIZE = 64 * 1024;
+
+    // Compact once superseded blocks take more than half the file, and at least this much
+    private static final int MIN_COMPACT_GARBAGE = 1024 * 1024;
+
+    // Default residency: most snapshots kept in memory, and how long an unused one stays
+    static final int DEFAULT_MAX_RESIDENT = 1024;
+    static final long DEFAULT_IDLE_MILLIS = 5 * 60_000;
+
+    // How long after a failed write it is tried again
+    private static final long RETRY_MILLIS = 1000;
+
+    private final Path path;
+    // Old text file to import into a new file, null for none
+    private final Path textPath;
+
+    // Lock that keeps other savers off the file, and the hook that syncs it on exit
+    private FileChannel lockChannel;
+    private final Thread syncHook;
+    private boolean closed;
+
+    // Mapped file, and the end of the last whole block (guarded by this)
+    private MappedByteBuffer mapped;
+    private int end;
+    private int garbage;
+
+    // Each client's latest block, as a read-only slice of the mapped file
+    private final ConcurrentHashMap<Long, ByteBuffer> index;
+
+    // A snapshot in memory, and when it was last saved or retrieved
+    private static final class Resident {
+        final PersistentShapeMap shapes;
+        volatile long lastUsed;
+
+        Resident(PersistentShapeMap shapes) {
+            this.shapes = shapes;
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    // Snapshots in memory, and those not written yet (guarded by itself,
+    // so a save never waits for a write)
+    private final ConcurrentHashMap<Long, Resident> taken;
+    private final HashMap<Long, PersistentShapeMap> unwritten;
+
+    // Writes snapshots and drops the unused ones, one at a time
+    private final ScheduledExecutorService writer;
+    private volatile int maxResident;
+    private volatile long idleMillis;
+    private ScheduledFuture<?> evicting;
 
     SnapshotSaver() {
-        map = loadSnapshotsFromFile();
-        // Save snapshots to file on shutdown
-        Runtime.getRuntime().addShutdownHook(new Thread(this::saveSnapshotsToFile));
+        this(Paths.get(PATH_TO_SNAPSHOTS), Paths.get(PATH_TO_TEXT_SNAPSHOTS));
+    }
+
+    /**
+     * @param path snapshot file, made if it doesn't exist
+     */
+    SnapshotSaver(Path path) {
+        this(path, null);
+    }
+
+    private SnapshotSaver(Path path, Path textPath) {
+        this.path = path;
+        this.textPath = textPath;
+        this.index = new ConcurrentHashMap<>();
+        this.taken = new ConcurrentHashMap<>();
+        this.unwritten = new HashMap<>();
+        this.writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Snapshot-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        setResidency(DEFAULT_MAX_RESIDENT, DEFAULT_IDLE_MILLIS);
+        System.out.println("SnapshotSaver: Reading from file...");
+        try {
+            boolean imported = textPath != null && !Files.exists(path) && Files.exists(textPath);
+            open();
+            if (imported) {
+                importTextSnapshots();
+            }
+        } catch (IOException e) {
+            writer.shutdownNow();
+            throw new IllegalStateException("Cannot open snapshot file " + path, e);
+        }
+        // Snapshots still in memory are written before the server exits
+        syncHook = new Thread(this::sync);
+        Runtime.getRuntime().addShutdownHook(syncHook);
     }
 
     /**
-     * Saves a snapshot to the map
+     * Saves a snapshot. It is retrievable right away, and appended to the
+     * file shortly after; saving again before then only writes the latest.
      * @param ID ID of client saving snapshot
-     * @param list List of GraphicalObjects at time of snapshot
+     * @param shapes the canvas' shapes at the time of the snapshot
      */
-    void saveSnapshot(long ID, ConcurrentHashMap<Long, GraphicalObject> list) {
-        ConcurrentHashMap<Long, GraphicalObject> newList = new ConcurrentHashMap<>(list.size());
-        list.forEach((shapeID, go) -> newList.put(shapeID, go.clone()));
-        map.put(ID, newList);
+    void saveSnapshot(long ID, PersistentShapeMap shapes) {
+        synchronized (unwritten) {
+            taken.put(ID, new Resident(shapes));
+            if (unwritten.put(ID, shapes) == null) {
+                writer.execute(() -> write(ID));
+            }
+        }
+    }
+
+    private synchronized void write(long ID) {
+        PersistentShapeMap shapes;
+        synchronized (unwritten) {
+            shapes = unwritten.remove(ID);
+        }
+        if (shapes != null && !append(ID, shapes)) {
+            // Not in the file, so it stays in memory until a retry writes it,
+            // unless it was saved again meanwhile and that write is coming
+            synchronized (unwritten) {
+                if (!closed && unwritten.putIfAbsent(ID, shapes) == null) {
+                    writer.schedule(() -> write(ID), RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        if (taken.size() > maxResident) {
+            evict();
+        }
+    }
+
+    /**
+     * Sets how many snapshots stay in memory
+     * @param maxResident most snapshots kept in memory
+     * @param idleMillis how long a snapshot nobody saves or retrieves stays in memory
+     */
+    synchronized void setResidency(int maxResident, long idleMillis) {
+        if (maxResident < 0 || idleMillis <= 0) {
+            throw new IllegalArgumentException("Snapshot residency must be positive");
+        }
+        this.maxResident = maxResident;
+        this.idleMillis = idleMillis;
+        if (evicting != null) {
+            evicting.cancel(false);
+        }
+        long period = Math.max(1, idleMillis / 4);
+        evicting = writer.scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return number of snapshots in memory
+     */
+    int residentCount() {
+        return taken.size();
+    }
+
+    /**
+     * Drops the written snapshots that have been unused for the idle time,
+     * then the least recently used ones until no more than the most are
+     * left. Runs on the writer, so a snapshot dropped is always in the file.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<Long, Resident>> written = new ArrayList<>();
+        // Times are read once, as they change while sorting
+        Map<Resident, Long> lastUsed = new IdentityHashMap<>();
+        synchronized (unwritten) {
+            for (Map.Entry<Long, Resident> e : taken.entrySet()) {
+                if (!unwritten.containsKey(e.getKey())) {
+                    written.add(e);
+                    lastUsed.put(e.getValue(), e.getValue().lastUsed);
+                }
+            }
+        }
+        written.sort(Comparator.comparingLong(e -> lastUsed.get(e.getValue())));
+        int over = taken.size() - maxResident;
+        for (Map.Entry<Long, Resident> e : written) {
+            if (over <= 0 && now - lastUsed.get(e.getValue()) < idleMillis) {
+                break;
+            }
+            // Only if it wasn't saved again meanwhile
+            if (taken.remove(e.getKey(), e.getValue())) {
+                over--;
+            }
+        }
+    }
+
+    /**
+     * Waits until every snapshot saved so far is in the file.
+     */
+    void sync() {
+        try {
+            writer.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
-     * Retrieves a snapshot from the map
+     * Writes every snapshot saved so far, stops the writer and lets go of
+     * the file, so another saver can open it. Does nothing the second time.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        sync();
+        writer.shutdown();
+        try {
+            Runtime.getRuntime().removeShutdownHook(syncHook);
+        } catch (IllegalStateException ignored) {
+            // Shutting down already
+        }
+        try {
+            lockChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Appends a block holding a snapshot to the file
+     * @return false if the file couldn't take it
+     */
+    private boolean append(long ID, PersistentShapeMap shapes) {
+        int size = BLOCK_HEADER_SIZE + shapes.size() * RECORD_SIZE + BLOCK_TRAILER_SIZE;
+        try {
+            // Room for the end marker after the block too
+            ensureCapacity(end + size + 4);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        int start = end;
+        mapped.putInt(start, shapes.size());
+        mapped.putLong(start + 4, ID);
+        int[] at = {start + BLOCK_HEADER_SIZE};
+        shapes.forEach((shapeID, go) -> {
+            writeRecord(mapped, at[0], shapeID, go);
+            at[0] += RECORD_SIZE;
+        });
+        mapped.putInt(start + size, END_MARKER);
+        // Everything else is on disk before the magic, so a torn block never looks whole
+        mapped.force();
+        mapped.putInt(at[0], BLOCK_MAGIC);
+        mapped.force();
+
+        ByteBuffer old = index.put(ID, slice(start, size));
+        if (old != null) {
+            garbage += old.capacity();
+        }
+        end = start + size;
+        if (garbage > MIN_COMPACT_GARBAGE && garbage > end / 2) {
+            try {
+                compact();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Retrieves a snapshot from the file
      * @param ID ID of snapshot being retrieved
      * @return List of GraphicalObjects saved in snapshot
      */
     ConcurrentHashMap<Long, GraphicalObject> retrieveSnapshot(long ID) {
-        return map.getOrDefault(ID, new ConcurrentHashMap<>());
+        Resident resident = taken.get(ID);
+        if (resident != null) {
+            resident.lastUsed = System.currentTimeMillis();
+            PersistentShapeMap shapes = resident.shapes;
+            // The shapes are shared, so the caller gets copies
+            ConcurrentHashMap<Long, GraphicalObject> copy = new ConcurrentHashMap<>(shapes.size());
+            shapes.forEach((shapeID, go) -> {
+                GraphicalObject clone = go.clone();
+                clone.setShapeID(shapeID);
+                copy.put(shapeID, clone);
+            });
+            return copy;
+        }
+        ByteBuffer block = index.get(ID);
+        return block == null ? new ConcurrentHashMap<>() : decode(block);
+    }
+
+    /**
+     * Forgets every snapshot. The file is kept, but written over from the start.
+     */
+    synchronized void eraseSnapshots() {
+        synchronized (unwritten) {
+            taken.clear();
+            unwritten.clear();
+        }
+        index.clear();
+        end = FILE_HEADER_SIZE;
+        garbage = 0;
+        mapped.putInt(end, END_MARKER);
+        mapped.force();
+    }
+
+    /**
+     * Goes through every client's snapshot, decoding each in turn
+     * @param action called with the client ID and its snapshot
+     */
+    void forEach(BiConsumer<Long, Map<Long, GraphicalObject>> action) {
+        taken.forEach((ID, resident) -> {
+            Map<Long, GraphicalObject> snapshot = new HashMap<>(resident.shapes.size());
+            resident.shapes.forEach(snapshot::put);
+            action.accept(ID, snapshot);
+        });
+        index.forEach((ID, block) -> {
+            if (!taken.containsKey(ID)) {
+                action.accept(ID, decode(block));
+            }
+        });
     }
 
-    void eraseSnapshots() {
-        map.clear();
+    /**
+     * Prints the memory taken by each snapshot in memory: what it would
+     * take as a copy of the canvas, and what it takes that isn't shared
+     * with the canvas or another snapshot.
+     * @param canvas the canvas' shapes now
+     */
+    void printMemory(PersistentShapeMap canvas) {
+        IdentityHashMap<Object, Integer> census = new IdentityHashMap<>();
+        canvas.count(census);
+        Map<Long, PersistentShapeMap> snapshots = new HashMap<>();
+        taken.forEach((ID, resident) -> snapshots.put(ID, resident.shapes));
+        snapshots.values().forEach(shapes -> shapes.count(census));
+
+        long copies = 0, unshared = 0;
+        for (Map.Entry<Long, PersistentShapeMap> e : snapshots.entrySet()) {
+            PersistentShapeMap shapes = e.getValue();
+            long full = shapes.footprint();
+            long own = shapes.unsharedFootprint(census);
+            copies += full;
+            unshared += own;
+            System.out.println("ID " + e.getKey() + ": " + shapes.size() + " shapes, " +
+                    kilobytes(full) + " as a copy, " + kilobytes(own) + " not shared");
+        }
+        long onFileOnly = index.keySet().stream().filter(ID -> !snapshots.containsKey(ID)).count();
+        System.out.println("Snapshots in memory: " + snapshots.size() + " (" + kilobytes(copies) +
+                " as copies, " + kilobytes(unshared) + " not shared), only in file: " + onFileOnly +
+                ", file: " + kilobytes(end));
     }
 
-    ConcurrentHashMap<Long, ConcurrentHashMap<Long, GraphicalObject>> getMap() {
-        return map;
+    private static String kilobytes(long bytes) {
+        return String.format("%.1f KB", bytes / 1024.0);
     }
 
     /**
-     * Helper method that loads snapshots from file. Creates a new map and
-     * fills it with information from the file.
-     * @return A map of the snapshots
+     * Maps the file, writing its header if it is new, and indexes the
+     * blocks in it by reading their headers.
+     * @throws IOException if the file can't be read or isn't a snapshot file
      */
-    private ConcurrentHashMap<Long, ConcurrentHashMap<Long, GraphicalObject>> loadSnapshotsFromFile() {
-        System.out.println("SnapshotSaver: Reading from file...");
-        ConcurrentHashMap<Long, ConcurrentHashMap<Long, GraphicalObject>> newMap = new ConcurrentHashMap<>();
+    private synchronized void open() throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        lockChannel = FileChannel.open(path.resolveSibling(path.getFileName() + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
         try {
-            // Open stream of file
-            FileReader fileReader = new FileReader(PATH_TO_SNAPSHOTS);
-            BufferedReader fileLines = new BufferedReader(fileReader);
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by another saver in this process
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Snapshot file is in use: " + path);
+        }
+        long size = Files.exists(path) ? Files.size(path) : 0;
+        map(Math.max(size, MIN_MAPPED_SIZE));
+        if (size == 0) {
+            mapped.putInt(0, FILE_MAGIC);
+            mapped.putInt(4, FILE_VERSION);
+            mapped.force();
+        } else if (mapped.getInt(0) != FILE_MAGIC || mapped.getInt(4) != FILE_VERSION) {
+            throw new IOException("Not a snapshot file: " + path);
+        }
 
-            // Prepare to get lines
-            String line;
+        int at = FILE_HEADER_SIZE;
+        while (at + BLOCK_HEADER_SIZE + BLOCK_TRAILER_SIZE <= mapped.capacity()) {
+            int count = mapped.getInt(at);
+            long blockSize = BLOCK_HEADER_SIZE + (long) count * RECORD_SIZE + BLOCK_TRAILER_SIZE;
+            if (count < 0 || at + blockSize > mapped.capacity() ||
+                    mapped.getInt(at + (int) blockSize - BLOCK_TRAILER_SIZE) != BLOCK_MAGIC) {
+                // Past the last whole block
+                break;
+            }
+            ByteBuffer old = index.put(mapped.getLong(at + 4), slice(at, (int) blockSize));
+            if (old != null) {
+                garbage += old.capacity();
+            }
+            at += (int) blockSize;
+        }
+        end = at;
+    }
 
-            // Prepare a "snapshot"
+    /**
+     * Grows the mapping so that it holds at least the given number of bytes.
+     */
+    private void ensureCapacity(long needed) throws IOException {
+        if (needed > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot file is full: " + path);
+        }
+        if (needed > mapped.capacity()) {
+            // Blocks already indexed keep their slices of the old mapping, which stay valid
+            map(Math.min(Math.max(needed, 2L * mapped.capacity()), Integer.MAX_VALUE));
+        }
+    }
+
+    private void map(long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Writes the live blocks to a new file and replaces the old one with it.
+     */
+    private void compact() throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        long live = FILE_HEADER_SIZE;
+        for (ByteBuffer block : index.values()) {
+            live += block.capacity();
+        }
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(live, MIN_MAPPED_SIZE));
+            out.putInt(FILE_MAGIC).putInt(FILE_VERSION);
+            for (ByteBuffer block : index.values()) {
+                out.put(block.duplicate().clear());
+            }
+            out.force();
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("SnapshotSaver: compacted " + (end - live) + " bytes");
+
+        // Readers holding slices of the old file can still read them
+        map(Math.max(live, MIN_MAPPED_SIZE));
+        int at = FILE_HEADER_SIZE;
+        for (Map.Entry<Long, ByteBuffer> e : index.entrySet()) {
+            int size = e.getValue().capacity();
+            e.setValue(slice(at, size));
+            at += size;
+        }
+        end = at;
+        garbage = 0;
+    }
+
+    private ByteBuffer slice(int start, int size) {
+        ByteBuffer dup = mapped.duplicate();
+        dup.position(start).limit(start + size);
+        return dup.slice().asReadOnlyBuffer();
+    }
+
+    private static void writeRecord(ByteBuffer buf, int at, long shapeID, GraphicalObject go) {
+        ShapeState s = go.getState();
+        buf.putLong(at, shapeID);
+        buf.putLong(at + 8, s.getClientID());
+        buf.putInt(at + 16, s.getX());
+        buf.putInt(at + 20, s.getY());
+        buf.putInt(at + 24, s.getWidth());
+        buf.putInt(at + 28, s.getHeight());
+        buf.putInt(at + 32, s.getColor().getRGB());
+        buf.put(at + 36, (byte) s.getType().ordinal());
+    }
+
+    private static ConcurrentHashMap<Long, GraphicalObject> decode(ByteBuffer block) {
+        int count = block.getInt(0);
+        ConcurrentHashMap<Long, GraphicalObject> shapes = new ConcurrentHashMap<>(count);
+        GraphicalObject.ShapeType[] types = GraphicalObject.ShapeType.values();
+        for (int i = 0, at = BLOCK_HEADER_SIZE; i < count; i++, at += RECORD_SIZE) {
+            long shapeID = block.getLong(at);
+            GraphicalObject go = new GraphicalObject(new ShapeState(block.getLong(at + 8), types[block.get(at + 36)],
+                    new Color(block.getInt(at + 32)), block.getInt(at + 24), block.getInt(at + 28),
+                    block.getInt(at + 16), block.getInt(at + 20)));
+            go.setShapeID(shapeID);
+            shapes.put(shapeID, go);
+        }
+        return shapes;
+    }
+
+    /**
+     * Imports the snapshots of the old text file, which has this format:
+     *
+     *      ID <#>
+     *      <ID#>:<GraphicalObject>
+     *          .
+     *          .
+     *      ID <#>
+     *      <ID#>:<GraphicalObject>
+     *          .
+     *          .
+     */
+    private synchronized void importTextSnapshots() {
+        System.out.println("SnapshotSaver: Importing " + textPath + "...");
+        try (BufferedReader fileLines = Files.newBufferedReader(textPath)) {
+            String line;
             long ID = 0;
             ConcurrentHashMap<Long, GraphicalObject> list = new ConcurrentHashMap<>();
-
-            // While file has lines
             while ((line = fileLines.readLine()) != null) {
-                // New "snapshot"
                 if (line.startsWith("ID")) {
-                    // Only if it's not the first snapshot
                     if (ID != 0) {
-                        newMap.put(ID, list);
+                        append(ID, PersistentShapeMap.of(list));
                     }
-
-                    // Get new ID and list
                     ID = Long.parseLong(line.substring(3));
                     list = new ConcurrentHashMap<>();
-                }
-                // Add GraphicalObject to the list
-                else {
+                } else {
                     String[] data = line.split(":");
-                    long shapeID = Long.parseLong(data[0]);
-                    long clientID = Long.parseLong(data[1]);
-                    list.put(shapeID, new GraphicalObject(clientID, data[2]));
+                    list.put(Long.parseLong(data[0]), new GraphicalObject(Long.parseLong(data[1]), data[2]));
                 }
             }
             if (ID != 0) {
-                newMap.put(ID, list);
+                append(ID, PersistentShapeMap.of(list));
             }
         } catch (Exception e) {
-            System.out.println("Cannot read file: " + PATH_TO_SNAPSHOTS);
-        }
-        return newMap;
-    }
-
-    /**
-     * Helper method to save snapshots to file on shutdown. It goes through
-     * the map and writes each snapshot to file in the format specified in
-     * the class JavaDoc above.
-     */
-    private void saveSnapshotsToFile() {
-        System.out.println("SnapshotSaver: Saving to file...");
-        try {
-            FileWriter fileWriter = new FileWriter(PATH_TO_SNAPSHOTS);
-            PrintWriter writer = new PrintWriter(fileWriter);
-            // Write each snapshot to file
-            map.forEach((id, map) -> {
-                // Print ID
-                writer.println("ID " + id);
-                // Then shape list
-                map.forEach((shapeID, go) -> writer.println(shapeID + ":" + go.getClientID() + ":" + go));
-            });
-            writer.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            System.out.println("Cannot import file: " + textPath);
         }
     }
 
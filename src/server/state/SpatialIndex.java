@@ -0,0 +1,224 @@
+package server.state;
+
+import java.awt.Rectangle;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A uniform grid over the canvas that finds the shapes in a region
+ * without looking at every shape. Each shape is listed in every cell its
+ * box overlaps. Cells are created as shapes land in them, so the canvas
+ * has no fixed size and coordinates may be negative.
+ *
+ * A shape whose box covers more than MAX_CELLS cells is kept in an
+ * overflow set instead, which every query and hit test also looks
+ * through, so one huge shape can't make the index visit millions of cells.
+ *
+ * Each cell keeps its IDs newest first. Shapes are drawn in ID order, so
+ * the topmost shape at a point is the first one in its cell that
+ * contains the point, and a hit test rarely looks past the first few.
+ *
+ * The Canvas indexes its shapes with one (see MapShapeStore), and so do
+ * clients, for their own copy of the canvas.
+ *
+ * A shape is changed by one thread at a time (the Canvas edits a shape
+ * while holding its lock), but any number of threads may query.
+ * A query can return shapes that were just removed or no longer reach
+ * the region, so callers check the shapes they get back.
+ */
+public class SpatialIndex {
+
+    // Width and height of a cell
+    static final int CELL_SIZE = 64;
+
+    // Most cells a shape is listed in; bigger shapes go in the overflow set
+    static final int MAX_CELLS = 256;
+
+    // Shape IDs in each cell, the IDs of shapes too big for the cells (newest
+    // first), and the box each shape was indexed with
+    private final ConcurrentHashMap<Long, NavigableSet<Long>> cells;
+    private final NavigableSet<Long> overflow;
+    private final ConcurrentHashMap<Long, Rectangle> boxes;
+
+    public SpatialIndex() {
+        cells = new ConcurrentHashMap<>();
+        overflow = new ConcurrentSkipListSet<>(Comparator.reverseOrder());
+        boxes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Indexes a shape, or moves it if its box changed.
+     * @param shapeID ID of the shape
+     * @param box box the shape is drawn in
+     */
+    public void put(long shapeID, Rectangle box) {
+        Rectangle old = boxes.put(shapeID, box);
+        boolean big = isBig(box);
+        boolean wasBig = old != null && isBig(old);
+        if (old != null && big == wasBig && (big || sameCells(old, box))) {
+            return;
+        }
+        // Add to the new cells before leaving the old ones, so a query never misses the shape
+        if (big) {
+            overflow.add(shapeID);
+        } else {
+            forEachCell(box, key -> enter(key, shapeID));
+        }
+        if (wasBig) {
+            overflow.remove(shapeID);
+        } else if (old != null) {
+            forEachCell(old, key -> {
+                if (big || !overlapsCell(box, key)) {
+                    leave(key, shapeID);
+                }
+            });
+        }
+    }
+
+    /**
+     * Takes a shape out of the index.
+     * @param shapeID ID of the shape
+     */
+    public void remove(long shapeID) {
+        Rectangle old = boxes.remove(shapeID);
+        if (old == null) {
+            return;
+        }
+        if (isBig(old)) {
+            overflow.remove(shapeID);
+        } else {
+            forEachCell(old, key -> leave(key, shapeID));
+        }
+    }
+
+    public void clear() {
+        boxes.clear();
+        cells.clear();
+        overflow.clear();
+    }
+
+    /**
+     * @param region area of the canvas
+     * @return IDs of the shapes that may be in the region
+     */
+    public Set<Long> query(Rectangle region) {
+        Set<Long> found = new HashSet<>(overflow);
+        long width = (long) cell(region.x + Math.max(region.width - 1, 0)) - cell(region.x) + 1;
+        long height = (long) cell(region.y + Math.max(region.height - 1, 0)) - cell(region.y) + 1;
+        if (width * height > cells.size()) {
+            // A region bigger than the drawn area: go through the cells there are instead
+            cells.forEach((key, cell) -> {
+                if (overlapsCell(region, key)) {
+                    found.addAll(cell);
+                }
+            });
+            return found;
+        }
+        forEachCell(region, key -> {
+            Set<Long> cell = cells.get(key);
+            if (cell != null) {
+                found.addAll(cell);
+            }
+        });
+        return found;
+    }
+
+    /**
+     * Finds the topmost shape at a point, going by the real outline of
+     * each shape rather than its box.
+     * @param shapes the indexed shapes
+     * @param x x coordinate of the point
+     * @param y y coordinate of the point
+     * @return the shape drawn on top at the point, null if there is none
+     */
+    public GraphicalObject topmostAt(Map<Long, GraphicalObject> shapes, int x, int y) {
+        long top = Math.max(topmostIn(cells.get(key(cell(x), cell(y))), shapes, x, y),
+                topmostIn(overflow, shapes, x, y));
+        return top < 0 ? null : shapes.get(top);
+    }
+
+    // ID of the first shape of a newest first set that contains the point, -1 if none does
+    private static long topmostIn(Set<Long> shapeIDs, Map<Long, GraphicalObject> shapes, int x, int y) {
+        if (shapeIDs == null) {
+            return -1;
+        }
+        for (long shapeID : shapeIDs) {
+            GraphicalObject go = shapes.get(shapeID);
+            if (go != null && go.contains(x, y)) {
+                return shapeID;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return number of shapes indexed
+     */
+    public int size() {
+        return boxes.size();
+    }
+
+    // Cells are changed inside compute, so an emptied cell is never dropped while a shape enters it
+    private void enter(long key, long shapeID) {
+        cells.compute(key, (k, cell) -> {
+            if (cell == null) {
+                cell = new ConcurrentSkipListSet<>(Comparator.reverseOrder());
+            }
+            cell.add(shapeID);
+            return cell;
+        });
+    }
+
+    private void leave(long key, long shapeID) {
+        cells.computeIfPresent(key, (k, cell) -> {
+            cell.remove(shapeID);
+            return cell.isEmpty() ? null : cell;
+        });
+    }
+
+    private interface CellVisitor {
+        void visit(long key);
+    }
+
+    private static void forEachCell(Rectangle box, CellVisitor visitor) {
+        int minX = cell(box.x), maxX = cell(box.x + Math.max(box.width - 1, 0));
+        int minY = cell(box.y), maxY = cell(box.y + Math.max(box.height - 1, 0));
+        for (int cx = minX; cx <= maxX; cx++) {
+            for (int cy = minY; cy <= maxY; cy++) {
+                visitor.visit(key(cx, cy));
+            }
+        }
+    }
+
+    // Whether a box covers more cells than a shape is listed in
+    private static boolean isBig(Rectangle box) {
+        long width = (long) cell(box.x + Math.max(box.width - 1, 0)) - cell(box.x) + 1;
+        long height = (long) cell(box.y + Math.max(box.height - 1, 0)) - cell(box.y) + 1;
+        return width * height > MAX_CELLS;
+    }
+
+    private static boolean sameCells(Rectangle a, Rectangle b) {
+        return cell(a.x) == cell(b.x) && cell(a.y) == cell(b.y)
+                && cell(a.x + Math.max(a.width - 1, 0)) == cell(b.x + Math.max(b.width - 1, 0))
+                && cell(a.y + Math.max(a.height - 1, 0)) == cell(b.y + Math.max(b.height - 1, 0));
+    }
+
+    private static boolean overlapsCell(Rectangle box, long key) {
+        int cx = (int) (key >> 32), cy = (int) key;
+        return cell(box.x) <= cx && cx <= cell(box.x + Math.max(box.width - 1, 0))
+                && cell(box.y) <= cy && cy <= cell(box.y + Math.max(box.height - 1, 0));
+    }
+
+    private static int cell(int coordinate) {
+        return Math.floorDiv(coordinate, CELL_SIZE);
+    }
+
+    private static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,62 @@
+package server.state;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gives every client a token bucket: it may make a burst of changes at
+ * once, then one change per refill interval.
+ *
+ * Each bucket is a single AtomicLong holding the time at which the bucket
+ * will be full again (the generic cell rate algorithm, which admits the
+ * same changes a bucket of tokens would). A change pushes that time one
+ * interval later, and is turned away if it would push it more than a
+ * burst ahead of now. Admitting takes a compare-and-set and no lock.
+ */
+public final class TokenBucketAdmission implements AdmissionPolicy {
+
+    private final long intervalNanos;
+    private final long burstNanos;
+
+    // Time each client's bucket is full again, in System.nanoTime()
+    private final ConcurrentHashMap<Long, AtomicLong> fullAt;
+
+    /**
+     * @param changesPerSecond how fast a client's bucket refills
+     * @param burst how many changes a full bucket allows at once
+     */
+    public TokenBucketAdmission(double changesPerSecond, int burst) {
+        if (changesPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / changesPerSecond);
+        burstNanos = intervalNanos * burst;
+        fullAt = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public long admit(long clientID) {
+        AtomicLong bucket = fullAt.get(clientID);
+        if (bucket == null) {
+            bucket = fullAt.computeIfAbsent(clientID, id -> new AtomicLong(Long.MIN_VALUE));
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long full = bucket.get();
+            long next = (full == Long.MIN_VALUE || full - now < 0 ? now : full) + intervalNanos;
+            long over = next - now - burstNanos;
+            if (over > 0) {
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(over + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+            }
+            if (bucket.compareAndSet(full, next)) {
+                return 0;
+            }
+        }
+    }
+
+    @Override
+    public void forget(long clientID) {
+        fullAt.remove(clientID);
+    }
+}
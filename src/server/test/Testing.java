@@ -1,21 +1,75 @@
 package server.test;
 
+import client.behaviors.RMIBehavior;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Assertions;
+import server.Socket.BinaryProtocol;
+import server.Socket.BroadcastBatch;
+import server.Socket.Drawer;
+import server.Socket.Frame;
+import server.Socket.NioSocketService;
+import server.Socket.SocketMessage;
+import server.Socket.TextParser;
+import server.metrics.CanvasOperationEvent;
+import server.metrics.Histogram;
+import server.metrics.MeteredRemote;
+import server.metrics.ServerMetrics;
+import server.metrics.SnapshotEvent;
+import server.state.AdmissionRejectedException;
 import server.state.Canvas;
+import server.state.CanvasDelta;
+import server.state.CanvasInterface;
+import server.state.CanvasListener;
+import server.state.CanvasRegistry;
 import server.state.GraphicalObject;
+import server.state.MarkerWheel;
+import server.state.ShapeState;
+import server.state.SpatialIndex;
+import server.state.TokenBucketAdmission;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import java.awt.*;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class Testing {
 
     private static Canvas c;
+    private static Path snapshots;
     private static ExecutorService exec;
     private static GraphicalObject go1;
     private static GraphicalObject go2;
@@ -30,8 +84,19 @@ class Testing {
     }
 
     @BeforeEach
-    void setUpBeforeEach() {
-        c = new Canvas();
+    void setUpBeforeEach() throws IOException {
+        snapshots = snapshotFile();
+        c = new Canvas(snapshots);
+    }
+
+    @AfterEach
+    void tearDownAfterEach() {
+        c.close();
+    }
+
+    // A snapshot file of a test's own, so tests never share snapshots
+    private static Path snapshotFile() throws IOException {
+        return Files.createTempDirectory("snapshots").resolve("snapshots.bin");
     }
 
     @Test
@@ -221,6 +286,452 @@ class Testing {
         }
     }
 
+    @Test
+    void changesSinceVersionKeepCopyInSync() {
+        HashMap<Long, GraphicalObject> copy = new HashMap<>();
+        CanvasDelta first = c.getChangesSince(0);
+        first.applyTo(copy);
+        Assertions.assertTrue(copy.isEmpty());
+
+        c.addShape(go1.clone());
+        c.addShape(go2.clone());
+        CanvasDelta second = c.getChangesSince(first.getToVersion());
+        Assertions.assertFalse(second.isFull());
+        second.applyTo(copy);
+        Assertions.assertEquals(2, copy.size());
+
+        c.removeAllWithID(1);
+        CanvasDelta third = c.getChangesSince(second.getToVersion());
+        Assertions.assertEquals(1, third.getChanges().size());
+        third.applyTo(copy);
+        Assertions.assertEquals(c.getShapeMap().keySet(), copy.keySet());
+        Assertions.assertTrue(c.getChangesSince(third.getToVersion()).isEmpty());
+
+        // A version the log doesn't know gets the whole canvas
+        CanvasDelta full = c.getChangesSince(third.getToVersion() + 100);
+        Assertions.assertTrue(full.isFull());
+    }
+
+    @Test
+    void shapesInRegionFollowEditsAndRemoves() {
+        // Other tests edit the shared shapes, so these are made fresh
+        c.addShape(new GraphicalObject(1, GraphicalObject.ShapeType.Circle, Color.BLACK, 50, 50, new Point(10, 10)));
+        c.addShape(new GraphicalObject(2, GraphicalObject.ShapeType.Triangle, Color.BLUE, 75, 25, new Point(100, 100)));
+        c.addShape(new GraphicalObject(3, GraphicalObject.ShapeType.Rectangle, Color.RED, 40, 60, new Point(310, 210)));
+        Assertions.assertEquals(2, c.getShapesInRegion(0, 0, 100, 100).size());
+        Assertions.assertEquals(1, c.getShapesInRegion(200, 150, 200, 200).size());
+        Assertions.assertEquals(3, c.getShapesInRegion(-1000, -1000, 5000, 5000).size());
+
+        // Growing the first shape brings it into the far region
+        c.editShape(1, 1, GraphicalObject.ShapeType.Circle, "Black", 400, 400);
+        Assertions.assertEquals(2, c.getShapesInRegion(200, 150, 200, 200).size());
+
+        c.removeAllWithID(3);
+        Assertions.assertEquals(c.getShapesInRegion(200, 150, 200, 200).keySet(), Set.of(1L));
+        c.removeAll(1);
+        Assertions.assertTrue(c.getShapesInRegion(-1000, -1000, 5000, 5000).isEmpty());
+    }
+
+    @Test
+    void shapeAtFindsTopmostByOutline() {
+        c.addShape(new GraphicalObject(1, GraphicalObject.ShapeType.Circle, Color.BLACK, 50, 50, new Point(100, 100)));
+        c.addShape(new GraphicalObject(2, GraphicalObject.ShapeType.Rectangle, Color.RED, 20, 20, new Point(100, 100)));
+        c.addShape(new GraphicalObject(3, GraphicalObject.ShapeType.Triangle, Color.BLUE, 40, 40, new Point(300, 300)));
+
+        Assertions.assertEquals(2, c.getShapeAt(100, 100).getShapeID());
+        Assertions.assertEquals(1, c.getShapeAt(120, 100).getShapeID());
+        // Inside the circle's box but outside the circle
+        Assertions.assertNull(c.getShapeAt(123, 123));
+        Assertions.assertEquals(3, c.getShapeAt(300, 310).getShapeID());
+        // Inside the triangle's box but outside the triangle
+        Assertions.assertNull(c.getShapeAt(282, 282));
+
+        c.removeAllWithID(2);
+        Assertions.assertEquals(1, c.getShapeAt(100, 100).getShapeID());
+    }
+
+    @Test
+    void journalRebuildsCanvas() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        c.openJournal(dir, 5, Canvas.DEFAULT_JOURNAL_CHECKPOINT_RECORDS);
+        long id1 = c.registerNewUser();
+        long id2 = c.registerNewUser();
+        c.addShape(new GraphicalObject(id1, GraphicalObject.ShapeType.Circle, Color.BLACK, 50, 50, new Point(10, 10)));
+        c.addShape(new GraphicalObject(id2, GraphicalObject.ShapeType.Triangle, Color.BLUE, 75, 25, new Point(100, 100)));
+        c.addShape(new GraphicalObject(id2, GraphicalObject.ShapeType.Rectangle, Color.RED, 40, 60, new Point(310, 210)));
+        c.editShape(1, id1, GraphicalObject.ShapeType.Rectangle, "Green", 20, 30);
+        c.removeAllWithID(id2);
+        c.addShape(new GraphicalObject(id2, GraphicalObject.ShapeType.Circle, Color.RED, 10, 10, new Point(50, 50)));
+        c.ban(id2);
+        // Give the committer time to write everything
+        Thread.sleep(200);
+
+        Canvas restored = new Canvas(snapshotFile());
+        restored.openJournal(dir, 5, Canvas.DEFAULT_JOURNAL_CHECKPOINT_RECORDS);
+        Assertions.assertEquals(c.getShapeMap().keySet(), restored.getShapeMap().keySet());
+        GraphicalObject edited = restored.getShapeMap().get(1L);
+        Assertions.assertEquals(GraphicalObject.ShapeType.Rectangle, edited.getType());
+        Assertions.assertEquals("Green", edited.getColorName());
+        Assertions.assertEquals(30, edited.getHeight());
+        // 5 shape changes, each counted as if its marker had run out, and 1 remove
+        Assertions.assertEquals(11, restored.getVersionNumber());
+        Assertions.assertEquals(id2 + 1, restored.registerNewUser());
+        // Banned before the restart, so still banned
+        restored.addShape(new GraphicalObject(id2, GraphicalObject.ShapeType.Circle, Color.RED, 10, 10, new Point(60, 60)));
+        Assertions.assertEquals(c.getShapeMap().size(), restored.getShapeMap().size());
+    }
+
+    @Test
+    void snapshotsSurviveRestart() throws IOException {
+        long id = c.registerNewUser();
+        c.addShape(new GraphicalObject(id, GraphicalObject.ShapeType.Triangle, Color.BLUE, 75, 25, new Point(-100, 100)));
+        c.addShape(new GraphicalObject(id, GraphicalObject.ShapeType.Circle, Color.RED, 10, 10, new Point(50, 50)));
+        c.saveSnapshot(id);
+        c.removeAll(id);
+        c.saveSnapshot(id + 1);
+        // Taken before removeAll, though written after it
+        Assertions.assertEquals(2, c.getSnapshot(id).size());
+        c.syncSnapshots();
+        // Only one canvas at a time has the file open
+        Assertions.assertThrows(IllegalStateException.class, () -> new Canvas(snapshots));
+        c.close();
+
+        // A new canvas reads the snapshot file again
+        Canvas restored = new Canvas(snapshots);
+        Map<Long, GraphicalObject> snapshot = restored.getSnapshot(id);
+        Assertions.assertEquals(Set.of(1L, 2L), snapshot.keySet());
+        GraphicalObject triangle = snapshot.get(1L);
+        Assertions.assertEquals(GraphicalObject.ShapeType.Triangle, triangle.getType());
+        Assertions.assertEquals(new Point(-100, 100), triangle.getPoint());
+        Assertions.assertEquals(25, triangle.getHeight());
+        Assertions.assertEquals("Blue", triangle.getColorName());
+        Assertions.assertEquals(id, triangle.getClientID());
+        Assertions.assertTrue(restored.getSnapshot(id + 1).isEmpty());
+        restored.close();
+    }
+
+    @Test
+    void coldSnapshotsAreReadBackFromDisk() {
+        c.setSnapshotResidency(1, Canvas.DEFAULT_SNAPSHOT_IDLE_MILLIS);
+        long id = c.registerNewUser();
+        c.addShape(new GraphicalObject(id, GraphicalObject.ShapeType.Rectangle, Color.GREEN, 30, 40, new Point(5, 5)));
+        c.saveSnapshot(id);
+        c.addShape(new GraphicalObject(id, GraphicalObject.ShapeType.Circle, Color.RED, 10, 10, new Point(50, 50)));
+        c.saveSnapshot(id + 1);
+        c.syncSnapshots();
+
+        // Only the latest stays in memory; the other is decoded from the file
+        Assertions.assertEquals(1, c.getResidentSnapshotCount());
+        Map<Long, GraphicalObject> cold = c.getSnapshot(id);
+        Assertions.assertEquals(Set.of(1L), cold.keySet());
+        Assertions.assertEquals("Rectangle Green 30 40 5 5", cold.get(1L).toString());
+        Assertions.assertEquals(Set.of(1L, 2L), c.getSnapshot(id + 1).keySet());
+    }
+
+    @Test
+    void columnarStoreMatchesMapStore() throws IOException {
+        Canvas columnar = new Canvas(true, 1, snapshotFile());
+        Random random = new Random(835);
+        GraphicalObject.ShapeType[] types = GraphicalObject.ShapeType.values();
+        for (int i = 0; i < 2000; i++) {
+            int op = random.nextInt(100);
+            long clientID = 1 + random.nextInt(8);
+            for (Canvas canvas : new Canvas[] {c, columnar}) {
+                Random same = new Random(i);
+                if (op < 70) {
+                    canvas.addShape(new GraphicalObject(clientID, types[same.nextInt(3)], new Color(same.nextInt(0xFFFFFF)),
+                            1 + same.nextInt(80), 1 + same.nextInt(80), new Point(same.nextInt(1000) - 200, same.nextInt(800))));
+                } else if (op < 95 && canvas.getShapeCount() > 0) {
+                    canvas.editShape(1 + same.nextInt(i), clientID, types[same.nextInt(3)], "Green",
+                            1 + same.nextInt(80), 1 + same.nextInt(80));
+                } else if (op < 99) {
+                    canvas.removeAllWithID(clientID);
+                } else {
+                    canvas.removeAll(clientID);
+                }
+            }
+        }
+
+        // Markers (and the versions they count towards) run out on their own, so only shapes are compared
+        Assertions.assertEquals(c.getShapeCount(), columnar.getShapeCount());
+        c.getShapeMap().forEach((shapeID, go) -> {
+            GraphicalObject copy = columnar.getShapeMap().get(shapeID);
+            Assertions.assertEquals(go.toString(), copy.toString());
+            Assertions.assertEquals(go.getClientID(), copy.getClientID());
+        });
+        Assertions.assertEquals(c.getShapesInRegion(100, 100, 300, 200).keySet(),
+                columnar.getShapesInRegion(100, 100, 300, 200).keySet());
+        for (int i = 0; i < 200; i++) {
+            int x = random.nextInt(1000) - 200, y = random.nextInt(800);
+            GraphicalObject expected = c.getShapeAt(x, y);
+            GraphicalObject found = columnar.getShapeAt(x, y);
+            Assertions.assertEquals(expected == null ? null : expected.getShapeID(), found == null ? null : found.getShapeID());
+        }
+    }
+
+    @Test
+    void shardedCanvasMatchesOneShard() throws InterruptedException, IOException {
+        Canvas sharded = new Canvas(false, 8, snapshotFile());
+        sharded.addShape(new GraphicalObject(1, GraphicalObject.ShapeType.Circle, Color.BLACK, 50, 50, new Point(10, 10)));
+        sharded.addShape(new GraphicalObject(2, GraphicalObject.ShapeType.Triangle, Color.BLUE, 75, 25, new Point(100, 100)));
+        sharded.addShape(new GraphicalObject(3, GraphicalObject.ShapeType.Rectangle, Color.RED, 40, 60, new Point(310, 210)));
+        // The shards' versions add up to what one canvas would count
+        Assertions.assertEquals(3, sharded.getVersionNumber());
+        sharded.removeAllWithID(2);
+        Assertions.assertEquals(4, sharded.getVersionNumber());
+        sharded.removeAll(1);
+        Assertions.assertEquals(0, sharded.getVersionNumber());
+
+        Random random = new Random(517);
+        GraphicalObject.ShapeType[] types = GraphicalObject.ShapeType.values();
+        for (int i = 0; i < 2000; i++) {
+            int op = random.nextInt(100);
+            long clientID = 1 + random.nextInt(8);
+            Random same = new Random(i);
+            GraphicalObject go = new GraphicalObject(clientID, types[same.nextInt(3)], new Color(same.nextInt(0xFFFFFF)),
+                    1 + same.nextInt(80), 1 + same.nextInt(80), new Point(same.nextInt(1000) - 200, same.nextInt(800)));
+            if (op < 70) {
+                c.addShape(go);
+                sharded.addShape(go.clone());
+            } else if (op < 95) {
+                long shapeID = 1 + same.nextInt(i + 1);
+                GraphicalObject.ShapeType type = types[same.nextInt(3)];
+                c.editShape(shapeID, clientID, type, "Green", 10, 20);
+                // Shape IDs go on from the three added first
+                sharded.editShape(shapeID + 3, clientID, type, "Green", 10, 20);
+            } else {
+                c.removeAllWithID(clientID);
+                sharded.removeAllWithID(clientID);
+            }
+        }
+        Assertions.assertEquals(c.getShapeCount(), sharded.getShapeCount());
+        c.getShapeMap().forEach((shapeID, go) ->
+                Assertions.assertEquals(go.toString(), sharded.getShapeMap().get(shapeID + 3).toString()));
+        Assertions.assertEquals(c.getShapesInRegion(100, 100, 300, 200).size(),
+                sharded.getShapesInRegion(100, 100, 300, 200).size());
+        for (int i = 0; i < 200; i++) {
+            int x = random.nextInt(1000) - 200, y = random.nextInt(800);
+            GraphicalObject expected = c.getShapeAt(x, y);
+            GraphicalObject found = sharded.getShapeAt(x, y);
+            Assertions.assertEquals(expected == null ? null : expected.getShapeID() + 3, found == null ? null : found.getShapeID());
+        }
+        long id = sharded.registerNewUser();
+        sharded.saveSnapshot(id);
+        Assertions.assertEquals(sharded.getShapeMap().keySet(), sharded.getSnapshot(id).keySet());
+
+        // Writers of different shards at once
+        CountDownLatch done = new CountDownLatch(8);
+        int before = sharded.getShapeCount();
+        for (int t = 0; t < 8; t++) {
+            long clientID = 100 + t;
+            exec.submit(() -> {
+                for (int i = 0; i < 500; i++) {
+                    sharded.addShape(new GraphicalObject(clientID, GraphicalObject.ShapeType.Circle, Color.RED, 5, 5, new Point(i, i)));
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        Assertions.assertEquals(before + 4000, sharded.getShapeCount());
+    }
+
+    @Test
+    void followerReplicatesLeader() throws Exception {
+        c.addShape(new GraphicalObject(1000, GraphicalObject.ShapeType.Circle, Color.BLACK, 50, 50, new Point(10, 10)));
+        Canvas follower = new Canvas(snapshotFile());
+        follower.follow(c);
+        Assertions.assertEquals(c.getShapeMap().keySet(), follower.getShapeMap().keySet());
+
+        // Changes made on the follower are made by the leader and replicated back
+        long id = follower.registerNewUser();
+        Assertions.assertEquals(id + 1, c.registerNewUser());
+        follower.addShape(new GraphicalObject(id, GraphicalObject.ShapeType.Triangle, Color.BLUE, 75, 25, new Point(100, 100)));
+        c.addShape(new GraphicalObject(1001, GraphicalObject.ShapeType.Rectangle, Color.RED, 40, 60, new Point(310, 210)));
+        follower.editShape(2, id, GraphicalObject.ShapeType.Circle, Color.GREEN, 20, 30);
+        Assertions.assertEquals(3, c.getShapeCount());
+        Assertions.assertEquals("Circle Green 20 30 100 100", c.getShapeMap().get(2L).toString());
+        awaitReplicated(follower);
+        Assertions.assertEquals(2, follower.getShapeAt(100, 100).getShapeID());
+        Assertions.assertTrue(follower.getShapeAt(100, 100).isMarked());
+
+        follower.removeAllWithID(id);
+        awaitReplicated(follower);
+        Assertions.assertEquals(Set.of(1L, 3L), follower.getShapeMap().keySet());
+    }
+
+    // Waits until the follower has every shape of the leader, as the leader has it
+    private static void awaitReplicated(Canvas follower) throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            Map<Long, GraphicalObject> leader = c.getShapeMap();
+            Map<Long, GraphicalObject> replica = follower.getShapeMap();
+            if (leader.keySet().equals(replica.keySet()) && leader.entrySet().stream().allMatch(e ->
+                    e.getValue().toString().equals(replica.get(e.getKey()).toString()) &&
+                    e.getValue().isMarked() == replica.get(e.getKey()).isMarked())) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        Assertions.fail("Follower did not catch up: " + follower.getShapeMap() + " vs " + c.getShapeMap());
+    }
+
+    @Test
+    void roomsAreMadeOnJoinAndEvictedToDisk() throws Exception {
+        CanvasRegistry rooms = new CanvasRegistry(c, Files.createTempDirectory("rooms"), 100, CanvasRegistry.DEFAULT_MAX_ROOMS);
+        Assertions.assertSame(c, rooms.join(CanvasRegistry.LOBBY));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> rooms.join("../lobby"));
+
+        Canvas blue = (Canvas) rooms.join("blue");
+        Assertions.assertSame(blue, rooms.join("blue"));
+        long id = blue.registerNewUser();
+        Assertions.assertEquals(id + 1, c.registerNewUser());
+        blue.addShape(new GraphicalObject(id, GraphicalObject.ShapeType.Circle, Color.BLACK, 50, 50, new Point(10, 10)));
+        Assertions.assertEquals(1, blue.getShapeCount());
+        Assertions.assertEquals(0, c.getShapeCount());
+
+        // Nobody listens to the room, so it is dropped and read back from its journal
+        for (int i = 0; i < 200 && rooms.size() > 0; i++) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(0, rooms.size());
+        Canvas reloaded = (Canvas) rooms.join("blue");
+        Assertions.assertNotSame(blue, reloaded);
+        Assertions.assertEquals(blue.getShapeMap().keySet(), reloaded.getShapeMap().keySet());
+        Assertions.assertEquals(id, reloaded.getShapeAt(10, 10).getClientID());
+    }
+
+    @Test
+    void histogramKeepsPercentilesWithinOnePercent() {
+        Histogram histogram = new Histogram();
+        for (long v = 1; v <= 100_000; v++) {
+            histogram.record(v);
+        }
+        histogram.record(5_000_000_000L);
+        Assertions.assertEquals(100_001, histogram.getCount());
+        Assertions.assertEquals(5_000_000_000L, histogram.getMax());
+        for (double percentile : new double[] {50, 90, 99, 99.9}) {
+            long expected = (long) Math.ceil(percentile / 100 * 100_001);
+            long actual = histogram.getValueAtPercentile(percentile);
+            Assertions.assertTrue(actual >= expected && actual <= expected * 1.01, percentile + ": " + actual);
+        }
+        Assertions.assertEquals(5_000_000_000L, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    void metricsCountChangesAndRejections() {
+        ServerMetrics metrics = ServerMetrics.get();
+        long adds = metrics.getAdds(), edits = metrics.getEdits(), removes = metrics.getRemoveMines();
+        long banned = metrics.getBanRejections(), snapshots = metrics.snapshotShapes.getCount();
+        c.addShape(new GraphicalObject(1, GraphicalObject.ShapeType.Circle, Color.BLACK, 50, 50, new Point(10, 10)));
+        c.addShape(new GraphicalObject(2, GraphicalObject.ShapeType.Triangle, Color.BLUE, 75, 25, new Point(100, 100)));
+        c.editShape(1, 1, GraphicalObject.ShapeType.Rectangle, "Green", 20, 30);
+        c.ban(2);
+        c.removeAllWithID(2);
+        c.unban(2);
+        c.removeAllWithID(2);
+        c.saveSnapshot(1);
+
+        Assertions.assertEquals(adds + 2, metrics.getAdds());
+        Assertions.assertEquals(edits + 1, metrics.getEdits());
+        Assertions.assertEquals(removes + 1, metrics.getRemoveMines());
+        Assertions.assertEquals(banned + 1, metrics.getBanRejections());
+        Assertions.assertEquals(snapshots + 1, metrics.snapshotShapes.getCount());
+    }
+
+    @Test
+    void canvasOperationsAreRecordedWhenEnabled() throws Exception {
+        Path file = Files.createTempFile("canvas", ".jfr");
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable(CanvasOperationEvent.class).withThreshold(Duration.ZERO);
+            recording.enable(SnapshotEvent.class);
+            recording.start();
+            c.addShape(new GraphicalObject(11, GraphicalObject.ShapeType.Circle, Color.BLACK, 50, 50, new Point(10, 10)));
+            c.removeAllWithID(11);
+            c.saveSnapshot(11);
+            recording.stop();
+            recording.dump(file);
+            events = RecordingFile.readAllEvents(file);
+        } finally {
+            Files.delete(file);
+        }
+
+        Assertions.assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("server.CanvasOperation")
+                && e.getString("operation").equals(CanvasOperationEvent.ADD) && e.getLong("clientID") == 11));
+        Assertions.assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("server.CanvasOperation")
+                && e.getString("operation").equals(CanvasOperationEvent.REMOVE_MINE) && e.getLong("clientID") == 11));
+        Assertions.assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("server.Snapshot")
+                && e.getString("operation").equals(SnapshotEvent.SAVE) && e.getLong("clientID") == 11));
+    }
+
+    @Test
+    void textParserReadsCommandsInPlace() {
+        ByteBuffer input = ByteBuffer.wrap(("ADD Triangle Blue 75 25 -100 100\r\n" +
+                "EDIT 42:Rectangle Green 20 30\n" +
+                "JOIN  room-1 \n" +
+                "VIEWPORT\n" +
+                "FOO 1\n" +
+                "ADD Circ").getBytes(StandardCharsets.UTF_8));
+        TextParser parser = new TextParser();
+
+        Assertions.assertTrue(parser.nextLine(input));
+        Assertions.assertEquals(BinaryProtocol.ADD, parser.command());
+        GraphicalObject added = GraphicalObject.readText(7, parser);
+        Assertions.assertEquals("Triangle Blue 75 25 -100 100", added.toString());
+        Assertions.assertEquals(7, added.getClientID());
+
+        Assertions.assertTrue(parser.nextLine(input));
+        Assertions.assertEquals(BinaryProtocol.EDIT, parser.command());
+        Assertions.assertEquals(42, parser.nextLong());
+        Assertions.assertEquals(GraphicalObject.ShapeType.Rectangle, parser.nextShapeType());
+        Assertions.assertEquals(Color.GREEN, parser.nextColor());
+        Assertions.assertEquals(20, parser.nextInt());
+        Assertions.assertEquals(30, parser.nextInt());
+        Assertions.assertFalse(parser.hasMore());
+
+        Assertions.assertTrue(parser.nextLine(input));
+        Assertions.assertEquals(BinaryProtocol.JOIN, parser.command());
+        Assertions.assertEquals("room-1", parser.rest());
+
+        Assertions.assertTrue(parser.nextLine(input));
+        Assertions.assertEquals(BinaryProtocol.VIEWPORT, parser.command());
+        Assertions.assertFalse(parser.hasMore());
+
+        Assertions.assertTrue(parser.nextLine(input));
+        Assertions.assertEquals(TextParser.UNKNOWN, parser.command());
+
+        // A partial line is left in the buffer for the next read
+        int position = input.position();
+        Assertions.assertFalse(parser.nextLine(input));
+        Assertions.assertEquals(position, input.position());
+
+        input = ByteBuffer.wrap("ADD Circle Red 10 x 1 2\n".getBytes(StandardCharsets.UTF_8));
+        Assertions.assertTrue(parser.nextLine(input));
+        parser.command();
+        Assertions.assertThrows(NumberFormatException.class, () -> GraphicalObject.readText(7, parser));
+    }
+
+    @Test
+    void admissionRejectsClientsOverTheirRate() {
+        c.setAdmissionPolicy(new TokenBucketAdmission(1, 2));
+        c.addShape(new GraphicalObject(7, GraphicalObject.ShapeType.Circle, Color.BLACK, 10, 10, new Point(10, 10)));
+        c.addShape(new GraphicalObject(7, GraphicalObject.ShapeType.Circle, Color.BLACK, 10, 10, new Point(20, 20)));
+        AdmissionRejectedException rejected = Assertions.assertThrows(AdmissionRejectedException.class, () ->
+                c.addShape(new GraphicalObject(7, GraphicalObject.ShapeType.Circle, Color.BLACK, 10, 10, new Point(30, 30))));
+        Assertions.assertTrue(rejected.getRetryAfterMillis() > 0 && rejected.getRetryAfterMillis() <= 1000);
+        Assertions.assertThrows(AdmissionRejectedException.class, () -> c.removeAllWithID(7));
+        Assertions.assertEquals(2, c.getShapeCount());
+
+        // Other clients have their own buckets, and banned ones are ignored before using theirs up
+        c.addShape(new GraphicalObject(8, GraphicalObject.ShapeType.Circle, Color.BLACK, 10, 10, new Point(40, 40)));
+        c.ban(9);
+        for (int i = 0; i < 5; i++) {
+            c.addShape(new GraphicalObject(9, GraphicalObject.ShapeType.Circle, Color.BLACK, 10, 10, new Point(50, 50)));
+        }
+        c.unban(9);
+        c.addShape(new GraphicalObject(9, GraphicalObject.ShapeType.Circle, Color.BLACK, 10, 10, new Point(50, 50)));
+        Assertions.assertEquals(4, c.getShapeCount());
+    }
+
     @Test
     void tonsOfGhostClientsAdding() throws InterruptedException {
         CountDownLatch readyLatch = new CountDownLatch(100);
@@ -248,4 +759,623 @@ class Testing {
         Assertions.assertEquals(10000, c.getVersionNumber());
     }
 
+    @Test
+    void hugeShapesAreClampedAndIndexedWithoutVisitingTheirCells() {
+        Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            // From a socket client
+            ByteBuffer input = ByteBuffer.wrap("ADD Circle Red 2000000000 2000000000 0 0\n".getBytes(StandardCharsets.UTF_8));
+            TextParser parser = new TextParser();
+            Assertions.assertTrue(parser.nextLine(input));
+            parser.command();
+            GraphicalObject parsed = GraphicalObject.readText(1, parser);
+            Assertions.assertEquals(ShapeState.MAX_SIZE, parsed.getWidth());
+            Assertions.assertEquals(ShapeState.MAX_SIZE, parsed.getHeight());
+
+            // From an RMI client, which sends the whole shape
+            GraphicalObject huge = new GraphicalObject(2, GraphicalObject.ShapeType.Rectangle, Color.RED,
+                    2000000000, 2000000000, new Point(0, 0));
+            c.addShape(huge);
+            Assertions.assertEquals(ShapeState.MAX_SIZE, huge.getWidth());
+            c.editShape(huge.getShapeID(), 2, GraphicalObject.ShapeType.Rectangle, "Blue", -5, Integer.MAX_VALUE);
+            Assertions.assertEquals(0, huge.getWidth());
+            Assertions.assertEquals(ShapeState.MAX_SIZE, huge.getHeight());
+            c.editShape(huge.getShapeID(), 2, GraphicalObject.ShapeType.Rectangle, "Blue", 4000, 4000);
+            Assertions.assertEquals(huge, c.getShapeAt(1900, -1900));
+            Assertions.assertTrue(c.getShapesInRegion(new Rectangle(1500, 1500, 10, 10)).containsKey(huge.getShapeID()));
+
+            // The index itself takes any box, keeping big ones out of the cells
+            SpatialIndex index = new SpatialIndex();
+            Map<Long, GraphicalObject> shapes = new HashMap<>();
+            GraphicalObject big = new GraphicalObject(3, GraphicalObject.ShapeType.Rectangle, Color.RED,
+                    2000000000, 2000000000, new Point(0, 0));
+            GraphicalObject small = new GraphicalObject(3, GraphicalObject.ShapeType.Rectangle, Color.RED,
+                    10, 10, new Point(100, 100));
+            big.setShapeID(1);
+            small.setShapeID(2);
+            shapes.put(1L, big);
+            shapes.put(2L, small);
+            index.put(1, big.getBounds());
+            index.put(2, small.getBounds());
+            Assertions.assertEquals(small, index.topmostAt(shapes, 100, 100));
+            Assertions.assertEquals(big, index.topmostAt(shapes, 500000, 500000));
+            Assertions.assertEquals(Set.of(1L), index.query(new Rectangle(1000000, 1000000, 5, 5)));
+
+            // Shrinking moves it into the cells, and removing takes it out of both
+            index.put(1, new Rectangle(0, 0, 10, 10));
+            Assertions.assertEquals(Set.of(1L), index.query(new Rectangle(0, 0, 5, 5)));
+            Assertions.assertTrue(index.query(new Rectangle(1000000, 1000000, 5, 5)).isEmpty());
+            index.put(1, big.getBounds());
+            index.remove(1);
+            Assertions.assertTrue(index.query(new Rectangle(1000000, 1000000, 5, 5)).isEmpty());
+            Assertions.assertEquals(1, index.size());
+        });
+    }
+
+    @Test
+    void socketMessagesRoundTripInBothFormats() {
+        // Varints and zigzag at their edges
+        ByteBuffer buf = ByteBuffer.allocate(256);
+        long[] longs = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1};
+        int[] ints = {0, 1, -1, 63, -64, 64, -65, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (long value : longs) {
+            BinaryProtocol.putVarLong(buf, value);
+        }
+        for (int value : ints) {
+            BinaryProtocol.putZigZag(buf, value);
+            BinaryProtocol.putVarInt(buf, value);
+        }
+        BinaryProtocol.putRGB(buf, 0x123456);
+        BinaryProtocol.putString(buf, "room-1");
+        buf.flip();
+        for (long value : longs) {
+            Assertions.assertEquals(value, BinaryProtocol.getVarLong(buf));
+        }
+        for (int value : ints) {
+            Assertions.assertEquals(value, BinaryProtocol.getZigZag(buf));
+            Assertions.assertEquals(value, BinaryProtocol.getVarInt(buf));
+        }
+        Assertions.assertEquals(0x123456, BinaryProtocol.getRGB(buf));
+        Assertions.assertEquals("room-1", BinaryProtocol.getString(buf));
+        Assertions.assertFalse(buf.hasRemaining());
+
+        // Every message the server sends, with a shape at negative coordinates in an RGB color
+        GraphicalObject shape = new GraphicalObject(5, GraphicalObject.ShapeType.Triangle, new Color(0x123456), 300, 20, new Point(-70000, 42));
+        GraphicalObject named = new GraphicalObject(5, GraphicalObject.ShapeType.Rectangle, Color.GREEN, 3, 4, new Point(5, -6));
+        Frame frame = new Frame(List.of(SocketMessage.welcome(9), SocketMessage.added(11, shape), SocketMessage.edited(12, named),
+                SocketMessage.removedFrom(5), SocketMessage.removedAll(), SocketMessage.gettingSnapshot(2),
+                SocketMessage.gettingCanvas(300), SocketMessage.sh(13, named), SocketMessage.mark(11, 5),
+                SocketMessage.unmark(11, 5), SocketMessage.rejected(250)));
+
+        ByteBuffer binary = ByteBuffer.wrap(frame.bytes(true));
+        Assertions.assertEquals(BinaryProtocol.WELCOME, binary.get());
+        Assertions.assertEquals(9, BinaryProtocol.getVarLong(binary));
+        Assertions.assertEquals(BinaryProtocol.ADDED, binary.get());
+        Assertions.assertEquals(11, BinaryProtocol.getVarLong(binary));
+        Assertions.assertEquals(5, BinaryProtocol.getVarLong(binary));
+        GraphicalObject read = GraphicalObject.readBinary(5, binary);
+        Assertions.assertEquals(shape.toString(), read.toString());
+        Assertions.assertEquals(shape.getColor(), read.getColor());
+        Assertions.assertEquals(BinaryProtocol.EDITED, binary.get());
+        Assertions.assertEquals(12, BinaryProtocol.getVarLong(binary));
+        Assertions.assertEquals(5, BinaryProtocol.getVarLong(binary));
+        Assertions.assertEquals(named.toString(), GraphicalObject.readBinary(5, binary).toString());
+        Assertions.assertEquals(BinaryProtocol.REMOVED_FROM, binary.get());
+        Assertions.assertEquals(5, BinaryProtocol.getVarLong(binary));
+        Assertions.assertEquals(BinaryProtocol.REMOVED_ALL, binary.get());
+        Assertions.assertEquals(BinaryProtocol.GETTING_SNAPSHOT, binary.get());
+        Assertions.assertEquals(2, BinaryProtocol.getVarInt(binary));
+        Assertions.assertEquals(BinaryProtocol.GETTING_CANVAS, binary.get());
+        Assertions.assertEquals(300, BinaryProtocol.getVarInt(binary));
+        Assertions.assertEquals(BinaryProtocol.SH, binary.get());
+        Assertions.assertEquals(13, BinaryProtocol.getVarLong(binary));
+        Assertions.assertEquals(5, BinaryProtocol.getVarLong(binary));
+        Assertions.assertEquals(named.toString(), GraphicalObject.readBinary(5, binary).toString());
+        for (byte opcode : new byte[]{BinaryProtocol.MARK, BinaryProtocol.UNMARK}) {
+            Assertions.assertEquals(opcode, binary.get());
+            Assertions.assertEquals(11, BinaryProtocol.getVarLong(binary));
+            Assertions.assertEquals(5, BinaryProtocol.getVarLong(binary));
+        }
+        Assertions.assertEquals(BinaryProtocol.REJECTED, binary.get());
+        Assertions.assertEquals(250, BinaryProtocol.getVarLong(binary));
+        Assertions.assertFalse(binary.hasRemaining());
+
+        // The text lines carry the same, and the parser reads them back
+        ByteBuffer text = ByteBuffer.wrap(frame.bytes(false));
+        TextParser parser = new TextParser();
+        Assertions.assertTrue(parser.nextLine(text));
+        Assertions.assertEquals(BinaryProtocol.WELCOME, parser.command());
+        Assertions.assertEquals(9, parser.nextLong());
+        Assertions.assertTrue(parser.nextLine(text));
+        Assertions.assertEquals(BinaryProtocol.ADDED, parser.command());
+        Assertions.assertEquals(11, parser.nextLong());
+        Assertions.assertEquals(5, parser.nextLong());
+        // Text only names a few colors, so the rest of the shape is compared
+        GraphicalObject readText = GraphicalObject.readText(5, parser);
+        Assertions.assertEquals(shape.getType(), readText.getType());
+        Assertions.assertEquals(shape.getBounds(), readText.getBounds());
+        Assertions.assertTrue(parser.nextLine(text));
+        Assertions.assertEquals(BinaryProtocol.EDITED, parser.command());
+        Assertions.assertEquals(12, parser.nextLong());
+        Assertions.assertEquals(5, parser.nextLong());
+        Assertions.assertEquals(named.toString(), GraphicalObject.readText(5, parser).toString());
+        Assertions.assertTrue(parser.nextLine(text));
+        Assertions.assertEquals(BinaryProtocol.REMOVED_FROM, parser.command());
+        Assertions.assertEquals(5, parser.nextLong());
+        Assertions.assertTrue(parser.nextLine(text));
+        Assertions.assertEquals(BinaryProtocol.REMOVED_ALL, parser.command());
+        Assertions.assertFalse(parser.hasMore());
+        Assertions.assertTrue(parser.nextLine(text));
+        Assertions.assertEquals(BinaryProtocol.GETTING_SNAPSHOT, parser.command());
+        Assertions.assertEquals(2, parser.nextInt());
+        Assertions.assertTrue(parser.nextLine(text));
+        Assertions.assertEquals(BinaryProtocol.GETTING_CANVAS, parser.command());
+        Assertions.assertEquals(300, parser.nextInt());
+        Assertions.assertTrue(parser.nextLine(text));
+        Assertions.assertEquals(BinaryProtocol.SH, parser.command());
+        Assertions.assertEquals(13, parser.nextLong());
+        Assertions.assertEquals(5, parser.nextLong());
+        Assertions.assertEquals(named.toString(), GraphicalObject.readText(5, parser).toString());
+        for (byte opcode : new byte[]{BinaryProtocol.MARK, BinaryProtocol.UNMARK}) {
+            Assertions.assertTrue(parser.nextLine(text));
+            Assertions.assertEquals(opcode, parser.command());
+            Assertions.assertEquals(11, parser.nextLong());
+            Assertions.assertEquals(5, parser.nextLong());
+        }
+        Assertions.assertTrue(parser.nextLine(text));
+        Assertions.assertEquals(BinaryProtocol.REJECTED, parser.command());
+        Assertions.assertEquals(250, parser.nextLong());
+        Assertions.assertFalse(text.hasRemaining());
+    }
+
+    @Test
+    void editsRacingRemovesNeverBringShapesBack() throws InterruptedException {
+        for (int round = 0; round < 20; round++) {
+            long clientID = 10 + round;
+            long[] shapeIDs = new long[20];
+            for (int i = 0; i < shapeIDs.length; i++) {
+                GraphicalObject go = new GraphicalObject(clientID, GraphicalObject.ShapeType.Circle, Color.BLACK,
+                        40, 40, new Point(100, 100));
+                c.addShape(go);
+                shapeIDs[i] = go.getShapeID();
+            }
+            // Editors keep editing the client's shapes while they are removed, and after
+            AtomicBoolean stop = new AtomicBoolean();
+            CountDownLatch editing = new CountDownLatch(4);
+            CountDownLatch done = new CountDownLatch(4);
+            for (int t = 0; t < 4; t++) {
+                exec.submit(() -> {
+                    GraphicalObject.ShapeType[] types = GraphicalObject.ShapeType.values();
+                    for (int i = 0; !stop.get(); i++) {
+                        c.editShape(shapeIDs[i % shapeIDs.length], clientID, types[i % types.length], "Red",
+                                10 + i % 50, 10 + i % 50);
+                        if (i == shapeIDs.length) {
+                            editing.countDown();
+                        }
+                    }
+                    done.countDown();
+                });
+            }
+            editing.await();
+            c.removeAllWithID(clientID);
+            for (int i = 0; i < 200; i++) {
+                Assertions.assertTrue(c.getShapesInRegion(0, 0, 300, 300).isEmpty());
+                Assertions.assertNull(c.getShapeAt(100, 100));
+            }
+            stop.set(true);
+            done.await();
+            Assertions.assertTrue(c.getShapesInRegion(0, 0, 300, 300).isEmpty());
+            Assertions.assertNull(c.getShapeAt(100, 100));
+            Assertions.assertEquals(0, c.getShapeCount());
+        }
+        long id = c.registerNewUser();
+        c.saveSnapshot(id);
+        Assertions.assertTrue(c.getSnapshot(id).isEmpty());
+    }
+
+    @Test
+    void broadcastBatchesKeepWhatClientsNeed() {
+        GraphicalObject shape = new GraphicalObject(1, GraphicalObject.ShapeType.Circle, Color.RED, 10, 10, new Point(20, 20));
+
+        // Everything before the last REMOVED_ALL is dropped
+        SocketMessage lastClear = SocketMessage.removedAll();
+        SocketMessage addedAfter = SocketMessage.added(3, shape);
+        Assertions.assertEquals(List.of(lastClear, addedAfter), BroadcastBatch.coalesce(List.of(
+                SocketMessage.added(1, shape), SocketMessage.removedAll(), SocketMessage.added(2, shape),
+                SocketMessage.mark(2, 1), lastClear, addedAfter)));
+
+        // Only the last MARK/UNMARK of each shape is kept, where it was
+        SocketMessage lastOf7 = SocketMessage.unmark(7, 1);
+        SocketMessage lastOf8 = SocketMessage.mark(8, 2);
+        SocketMessage edited = SocketMessage.edited(7, shape);
+        Assertions.assertEquals(List.of(lastOf8, edited, lastOf7), BroadcastBatch.coalesce(List.of(
+                SocketMessage.mark(7, 1), SocketMessage.unmark(8, 2), lastOf8, edited, SocketMessage.mark(7, 1),
+                lastOf7)));
+
+        // An UNMARK of a shape added in the batch is dropped, a MARK is kept
+        SocketMessage added = SocketMessage.added(9, shape);
+        SocketMessage marked = SocketMessage.mark(10, 1);
+        SocketMessage alsoAdded = SocketMessage.added(10, shape);
+        Assertions.assertEquals(List.of(added, alsoAdded, marked), BroadcastBatch.coalesce(List.of(
+                added, SocketMessage.mark(9, 1), alsoAdded, SocketMessage.unmark(9, 1), marked)));
+
+        // A REMOVED_FROM between an ADDED and its MARK stays between them
+        SocketMessage removedFrom = SocketMessage.removedFrom(1);
+        SocketMessage lateMark = SocketMessage.mark(11, 1);
+        List<SocketMessage> ordered = List.of(SocketMessage.added(11, shape), removedFrom, lateMark);
+        Assertions.assertEquals(ordered, BroadcastBatch.coalesce(ordered));
+        SocketMessage addedAgain = SocketMessage.added(12, shape);
+        Assertions.assertEquals(List.of(addedAgain, removedFrom), BroadcastBatch.coalesce(List.of(
+                addedAgain, SocketMessage.mark(12, 1), removedFrom, SocketMessage.unmark(12, 1))));
+
+        // Frames leave out only the shapes added outside a viewport
+        GraphicalObject outside = new GraphicalObject(1, GraphicalObject.ShapeType.Circle, Color.RED, 10, 10, new Point(500, 500));
+        Rectangle viewport = new Rectangle(0, 0, 100, 100);
+        Frame inside = new Frame(List.of(SocketMessage.added(1, shape), SocketMessage.edited(2, outside),
+                SocketMessage.mark(2, 1)));
+        Assertions.assertSame(inside, inside.within(viewport));
+        Frame mixed = new Frame(List.of(SocketMessage.added(3, outside), SocketMessage.added(4, shape),
+                SocketMessage.edited(3, outside), SocketMessage.added(5, outside), SocketMessage.removedFrom(1)));
+        Assertions.assertEquals(new Frame(List.of(SocketMessage.added(4, shape), SocketMessage.edited(3, outside),
+                SocketMessage.removedFrom(1))).toString(), mixed.within(viewport).toString());
+        Assertions.assertTrue(new Frame(List.of(SocketMessage.added(6, outside))).within(viewport).isEmpty());
+    }
+
+    @Test
+    void stalledReadersAreDroppedOrResynced() throws Exception {
+        GraphicalObject shape = new GraphicalObject(1, GraphicalObject.ShapeType.Circle, Color.RED, 10, 10, new Point(20, 20));
+        List<SocketMessage> added = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            added.add(SocketMessage.added(i + 1, shape));
+        }
+        Frame frame = new Frame(added);
+        Drawer.setOutboundCapacity(8);
+        try (ServerSocket listener = new ServerSocket(0)) {
+            for (Drawer.SlowConsumerPolicy policy : Drawer.SlowConsumerPolicy.values()) {
+                Drawer.setSlowConsumerPolicy(policy);
+                try (Socket client = new Socket()) {
+                    // Small buffers, so the writer blocks soon after the client stops reading
+                    client.setReceiveBufferSize(4096);
+                    client.connect(listener.getLocalSocketAddress());
+                    Socket accepted = listener.accept();
+                    accepted.setSendBufferSize(4096);
+                    Drawer drawer = new Drawer(accepted, 7, c);
+                    exec.submit(drawer);
+                    // Let the writer start and block on the first frame
+                    drawer.tell(frame);
+                    Thread.sleep(200);
+                    for (int i = 0; i < 200; i++) {
+                        drawer.tell(frame);
+                    }
+                    Assertions.assertTrue(drawer.getDroppedFrames() > 0);
+                    if (policy == Drawer.SlowConsumerPolicy.DROP) {
+                        Assertions.assertTrue(accepted.isClosed());
+                        Assertions.assertEquals(0, drawer.getQueueDepth());
+                        Assertions.assertEquals(0, drawer.getResyncs());
+                        continue;
+                    }
+                    Assertions.assertFalse(accepted.isClosed());
+                    Assertions.assertTrue(drawer.getResyncs() > 0);
+                    Assertions.assertTrue(drawer.getQueueDepth() <= 8);
+                    // Once the client reads again it is sent the whole (empty) canvas
+                    client.setSoTimeout(10000);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+                    Assertions.assertEquals("WELCOME 7", in.readLine());
+                    String line;
+                    while ((line = in.readLine()) != null && !line.startsWith("GETTING_CANVAS")) {
+                        Assertions.assertTrue(line.startsWith("ADDED"), line);
+                    }
+                    Assertions.assertEquals("GETTING_CANVAS 0", line);
+                }
+            }
+        } finally {
+            Drawer.setSlowConsumerPolicy(Drawer.SlowConsumerPolicy.RESYNC);
+            Drawer.setOutboundCapacity(Drawer.DEFAULT_OUTBOUND_CAPACITY);
+        }
+    }
+
+    @Test
+    void markersRunOutOnceWithinATickOfTheirLifetime() throws InterruptedException {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new MarkerWheel(10, 20, null, (clientID, shapeID) -> {}));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new MarkerWheel(10, 0, null, (clientID, shapeID) -> {}));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new MarkerWheel(0, 0, null, (clientID, shapeID) -> {}));
+
+        long lifetime = 300, tick = 50;
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+        List<String> expired = new CopyOnWriteArrayList<>();
+        Map<String, Long> expiredAfter = new ConcurrentHashMap<>();
+        long start = System.nanoTime();
+        MarkerWheel wheel = new MarkerWheel(lifetime, tick, ticker, (clientID, shapeID) -> {
+            expired.add(clientID + ":" + shapeID);
+            expiredAfter.put(clientID + ":" + shapeID, (System.nanoTime() - start) / 1_000_000);
+        });
+        try {
+            List<Long> moved = new ArrayList<>();
+            Assertions.assertEquals(MarkerWheel.NONE, wheel.mark(1, 10, moved::add));
+            Assertions.assertEquals(MarkerWheel.NONE, wheel.mark(2, 20, moved::add));
+            Thread.sleep(lifetime / 2);
+            // Marking again moves the client's entry, and the old deadline never fires
+            long remarked = (System.nanoTime() - start) / 1_000_000;
+            Assertions.assertEquals(20, wheel.mark(2, 21, moved::add));
+            Assertions.assertEquals(List.of(MarkerWheel.NONE, MarkerWheel.NONE, 20L), moved);
+            Assertions.assertEquals(2, wheel.size());
+
+            Thread.sleep(3 * lifetime);
+            Assertions.assertEquals(List.of("1:10", "2:21"), expired);
+            Assertions.assertEquals(0, wheel.size());
+            // Within a tick of the lifetime, give or take how late the ticker runs
+            long first = expiredAfter.get("1:10");
+            Assertions.assertTrue(first >= lifetime - tick && first <= lifetime + tick + 100, "ran out after " + first);
+            long second = expiredAfter.get("2:21") - remarked;
+            Assertions.assertTrue(second >= lifetime - tick && second <= lifetime + tick + 100, "ran out after " + second);
+        } finally {
+            wheel.stop();
+            ticker.shutdownNow();
+        }
+    }
+
+    @Test
+    void slowListenersAreEvictedWithoutHoldingUpTheOthers() throws Exception {
+        // The first listener the client registers stalls on every push; after
+        // it is evicted, the client's next registration is the client itself
+        AtomicInteger registrations = new AtomicInteger();
+        AtomicInteger stalledPushes = new AtomicInteger();
+        Canvas pushed = new Canvas(snapshotFile()) {
+            @Override
+            public void addListener(CanvasListener listener, long version, Rectangle viewport) {
+                if (registrations.incrementAndGet() == 1) {
+                    super.addListener(delta -> {
+                        stalledPushes.incrementAndGet();
+                        try {
+                            Thread.sleep(1100);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        listener.canvasChanged(delta);
+                    }, version, viewport);
+                } else {
+                    super.addListener(listener, version, viewport);
+                }
+            }
+        };
+        Map<Long, GraphicalObject> fastShapes = new ConcurrentHashMap<>();
+        AtomicInteger fastPushes = new AtomicInteger();
+        pushed.addListener(delta -> {
+            delta.applyTo(fastShapes);
+            fastPushes.incrementAndGet();
+        }, 0);
+
+        RMIBehavior client = new RMIBehavior(pushed);
+        exec.submit(() -> client.listenForUpdates(null));
+        for (int i = 0; i < 40; i++) {
+            pushed.addShape(new GraphicalObject(1, GraphicalObject.ShapeType.Circle, Color.RED, 10, 10, new Point(i, i)));
+            Thread.sleep(100);
+        }
+        // The fast listener kept up while the slow one was stalled
+        Assertions.assertTrue(fastPushes.get() >= 20, fastPushes.get() + " pushes");
+        Assertions.assertEquals(pushed.getShapeMap().keySet(), fastShapes.keySet());
+        // Three slow pushes in a row evicted the stalled listener
+        Assertions.assertEquals(3, stalledPushes.get());
+
+        // The client notices it isn't pushed to any more, registers again and catches up
+        for (int i = 0; i < 100 && client.getGraphicalObjects().size() < 40; i++) {
+            Thread.sleep(100);
+        }
+        Assertions.assertTrue(registrations.get() >= 2);
+        Assertions.assertEquals(pushed.getShapeMap().keySet(), client.getGraphicalObjects().keySet());
+        Assertions.assertEquals(3, stalledPushes.get());
+        client.disconnect();
+    }
+
+    @Test
+    void nioConnectionsReassembleCommandsAndHoldBackOnlyStalledClients() throws Exception {
+        // Big enough that the stalled client is never resynced
+        Drawer.setOutboundCapacity(100_000);
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress("127.0.0.1", 0));
+        exec.submit(() -> {
+            NioSocketService.start(listener, c, 1);
+            return null;
+        });
+        try (Socket stalled = new Socket(); Socket writer = new Socket()) {
+            stalled.setReceiveBufferSize(4096);
+            stalled.connect(listener.getLocalAddress());
+            stalled.setSoTimeout(10000);
+            BufferedReader stalledIn = new BufferedReader(new InputStreamReader(stalled.getInputStream(), StandardCharsets.UTF_8));
+            Assertions.assertTrue(stalledIn.readLine().startsWith("WELCOME"));
+
+            writer.connect(listener.getLocalAddress());
+            writer.setSoTimeout(10000);
+            BufferedReader writerIn = new BufferedReader(new InputStreamReader(writer.getInputStream(), StandardCharsets.UTF_8));
+            long writerID = Long.parseLong(writerIn.readLine().substring("WELCOME ".length()));
+
+            // Commands split anywhere, and several in one write
+            OutputStream out = writer.getOutputStream();
+            for (String part : new String[]{"AD", "D Circle Red 10 10 50 50\nADD Rect",
+                    "angle Blue 20 20 100 100\nADD Triangle Green 5 5 7 7\n"}) {
+                out.write(part.getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                Thread.sleep(50);
+            }
+            List<String> expected = List.of("Circle Red 10 10 50 50", "Rectangle Blue 20 20 100 100", "Triangle Green 5 5 7 7");
+            List<String> added = new ArrayList<>();
+            while (added.size() < expected.size()) {
+                String line = writerIn.readLine();
+                if (line.startsWith("ADDED")) {
+                    String[] fields = line.substring("ADDED ".length()).split(":");
+                    Assertions.assertEquals(writerID, Long.parseLong(fields[1]));
+                    added.add(fields[2]);
+                }
+            }
+            Assertions.assertEquals(expected, added);
+
+            // Far more than the stalled client's socket holds: the writer still hears every shape
+            int flood = 100_000;
+            for (int i = 0; i < flood; i++) {
+                c.addShape(new GraphicalObject(99, GraphicalObject.ShapeType.Circle, Color.BLUE, 5, 5, new Point(i % 500, i % 300)));
+            }
+            for (int seen = 0; seen < flood; ) {
+                if (writerIn.readLine().startsWith("ADDED")) {
+                    seen++;
+                }
+            }
+
+            // Once the stalled client reads again it gets everything, in order
+            long last = 0;
+            for (int seen = 0; seen < flood + expected.size(); ) {
+                String line = stalledIn.readLine();
+                Assertions.assertFalse(line.startsWith("GETTING_CANVAS"), "resynced");
+                if (line.startsWith("ADDED")) {
+                    long shapeID = Long.parseLong(line.substring("ADDED ".length(), line.indexOf(':')));
+                    Assertions.assertTrue(shapeID > last, line);
+                    last = shapeID;
+                    seen++;
+                }
+            }
+            Assertions.assertEquals(flood + expected.size(), c.getShapeCount());
+        } finally {
+            listener.close();
+            Drawer.setOutboundCapacity(Drawer.DEFAULT_OUTBOUND_CAPACITY);
+        }
+    }
+
+    @Test
+    void writersBlockedPastTheWriteTimeoutDropTheirClient() throws Exception {
+        GraphicalObject shape = new GraphicalObject(1, GraphicalObject.ShapeType.Circle, Color.RED, 10, 10, new Point(20, 20));
+        List<SocketMessage> added = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            added.add(SocketMessage.added(i + 1, shape));
+        }
+        Frame frame = new Frame(added);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Drawer.setWriteTimeout(0));
+        Drawer.setWriteTimeout(300);
+        try (ServerSocket listener = new ServerSocket(0); Socket client = new Socket()) {
+            // Small buffers, and a queue big enough that only the timeout can drop the client
+            client.setReceiveBufferSize(4096);
+            client.connect(listener.getLocalSocketAddress());
+            Socket accepted = listener.accept();
+            accepted.setSendBufferSize(4096);
+            Drawer drawer = new Drawer(accepted, 7, c);
+            exec.submit(drawer);
+            for (int i = 0; i < 10; i++) {
+                drawer.tell(frame);
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!accepted.isClosed() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assertions.assertTrue(accepted.isClosed());
+            Assertions.assertEquals(0, drawer.getDroppedFrames());
+        } finally {
+            Drawer.setWriteTimeout(Drawer.DEFAULT_WRITE_TIMEOUT_MILLIS);
+        }
+    }
+
+    @Test
+    void followerConnectionsSurviveASlowOrMissingLeader() throws Exception {
+        // The leader, reached through a stub that can hang on adds or be down
+        AtomicBoolean down = new AtomicBoolean(false);
+        CountDownLatch addsHang = new CountDownLatch(1);
+        CanvasInterface leader = (CanvasInterface) Proxy.newProxyInstance(CanvasInterface.class.getClassLoader(),
+                new Class<?>[]{CanvasInterface.class}, (proxy, method, args) -> {
+            if (down.get()) {
+                throw new RemoteException("Leader is down");
+            }
+            if (method.getName().equals("addShape")) {
+                addsHang.await();
+            }
+            try {
+                return method.invoke(c, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+        Canvas follower = new Canvas(snapshotFile());
+        follower.follow(leader);
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress("127.0.0.1", 0));
+        exec.submit(() -> {
+            NioSocketService.start(listener, follower, 1);
+            return null;
+        });
+        try (Socket client = new Socket()) {
+            client.connect(listener.getLocalAddress());
+            client.setSoTimeout(10000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+            Assertions.assertTrue(in.readLine().startsWith("WELCOME"));
+
+            // An add hanging on the leader doesn't hold up the event loop
+            OutputStream out = client.getOutputStream();
+            out.write("ADD Circle Red 10 10 50 50\nLOAD_CANVAS\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            Assertions.assertEquals("GETTING_CANVAS 0", in.readLine());
+            addsHang.countDown();
+            Assertions.assertTrue(in.readLine().startsWith("ADDED"));
+
+            // A client the follower can't get an ID for is turned away, and the next one is taken
+            down.set(true);
+            try (Socket turnedAway = new Socket()) {
+                turnedAway.connect(listener.getLocalAddress());
+                turnedAway.setSoTimeout(10000);
+                Assertions.assertEquals(-1, turnedAway.getInputStream().read());
+            }
+            down.set(false);
+            try (Socket next = new Socket()) {
+                next.connect(listener.getLocalAddress());
+                next.setSoTimeout(10000);
+                BufferedReader nextIn = new BufferedReader(new InputStreamReader(next.getInputStream(), StandardCharsets.UTF_8));
+                Assertions.assertTrue(nextIn.readLine().startsWith("WELCOME"));
+            }
+        } finally {
+            addsHang.countDown();
+            listener.close();
+            follower.close();
+        }
+    }
+
+    @Test
+    void roomsPolledOverRmiAreNotEvicted() throws Exception {
+        CanvasRegistry rooms = new CanvasRegistry(c, Files.createTempDirectory("rooms"), 200, CanvasRegistry.DEFAULT_MAX_ROOMS);
+        rooms.setExported(MeteredRemote.wrap(c, CanvasInterface.class));
+        CanvasInterface polled = rooms.join("polled");
+        Assertions.assertFalse(polled instanceof Canvas);
+
+        // A polling client never listens, but its calls keep the room in memory
+        for (int i = 0; i < 15; i++) {
+            polled.getChangesSince(0);
+            Thread.sleep(50);
+        }
+        Assertions.assertEquals(1, rooms.size());
+
+        // Once the calls stop, the room is dropped like any other
+        for (int i = 0; i < 200 && rooms.size() > 0; i++) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(0, rooms.size());
+    }
+
+    @Test
+    void snapshotsThatFailToWriteStayInMemory() throws Exception {
+        long id = c.registerNewUser();
+        for (int i = 0; i < 2000; i++) {
+            c.addShape(new GraphicalObject(id, GraphicalObject.ShapeType.Circle, Color.RED, 5, 5, new Point(i % 800, i % 600)));
+        }
+        // More than the file's first mapping holds, and it can't grow with a directory in its place
+        Files.delete(snapshots);
+        Files.createDirectory(snapshots);
+        c.setSnapshotResidency(0, 50);
+        c.saveSnapshot(id);
+        c.syncSnapshots();
+        Thread.sleep(200);
+        Assertions.assertEquals(1, c.getResidentSnapshotCount());
+        Assertions.assertEquals(2000, c.getSnapshot(id).size());
+    }
+
+    @Test
+    void truncatedCheckpointIsReportedAsCorrupt() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        Files.write(dir.resolve("checkpoint"), new byte[] {1, 2});
+        IOException e = Assertions.assertThrows(IOException.class,
+                () -> c.openJournal(dir, 5, Canvas.DEFAULT_JOURNAL_CHECKPOINT_RECORDS));
+        Assertions.assertTrue(e.getMessage().startsWith("Corrupt checkpoint"), e.getMessage());
+    }
 }